@@ -0,0 +1,345 @@
+package llvm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import errors.ErrorEchoer;
+import llvmast.LlvmEmitter;
+import llvmast.LlvmInstruction;
+import minijava.lexer.Lexer;
+import minijava.node.Start;
+import minijava.parser.Parser;
+import semant.Env;
+import semant.TypeChecker;
+import syntaxtree.Absyn;
+import syntaxtree.Program;
+import util.conversor.SyntaxTreeGenerator;
+
+/*
+ * Throughput of each compiler phase, measured apart:
+ *
+ *   parse     minijava.lexer.Lexer + minijava.parser.Parser
+ *   convert   util.conversor.SyntaxTreeGenerator
+ *   check     semant.TypeChecker
+ *   symtab    SymTab.FillTabSymbol
+ *   lower     Codegen lowering + optimization of every function
+ *   emit      rendering the lowered functions as text
+ *
+ * Each phase runs on the output of the previous one, prepared once before
+ * timing. An iteration repeats the phase over the whole input set until
+ * '-t' ms have passed; after '-w' warmup iterations, '-i' iterations are
+ * measured and their mean is reported as ops/s (one op = one pass over the
+ * set) together with the bytes allocated per op and the allocation rate.
+ *
+ * Como executar:
+ * $ make bench
+ * $ java -classpath bench:src:lib/projeto2.jar llvm.PhaseBenchmark \
+ *       [-w 3] [-i 5] [-t 1000] [-s 10,100,1000] [arquivo.java...]
+ *
+ * Without files the test/bigger corpus is used. Each '-s' scale adds a
+ * synthetic program with that many classes (10 methods each).
+ */
+public class PhaseBenchmark {
+	private int warmup = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+
+	// Results go here so the JIT cannot drop the work
+	private static long sink;
+
+	public static void main(String[] args) throws IOException {
+		PhaseBenchmark bench = new PhaseBenchmark();
+		List<File> files = new ArrayList<File>();
+		int[] scales = { 10, 100 };
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w") && i + 1 < args.length)
+				bench.warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-i") && i + 1 < args.length)
+				bench.iterations = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-t") && i + 1 < args.length)
+				bench.iterationMillis = Long.parseLong(args[++i]);
+			else if (args[i].equals("-s") && i + 1 < args.length)
+				scales = parseScales(args[++i]);
+			else
+				files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			File[] corpus = new File("test/bigger").listFiles();
+			if (corpus == null) {
+				System.err.println("test/bigger nao encontrado");
+				System.exit(-1);
+			}
+			Arrays.sort(corpus);
+			for (File f : corpus)
+				if (f.getName().endsWith(".java"))
+					files.add(f);
+		}
+
+		List<String> corpus = new ArrayList<String>();
+		for (File f : files)
+			corpus.add(read(f));
+		System.out.printf("%-12s %-8s %12s %14s %12s%n", "entrada", "fase",
+				"ops/s", "B/op", "MB/s alloc");
+		bench.run("corpus(" + corpus.size() + ")", corpus);
+		for (int scale : scales) {
+			List<String> synthetic = new ArrayList<String>();
+			synthetic.add(synthesize(scale));
+			bench.run("synth-" + scale, synthetic);
+		}
+		System.out.println("(sink " + (sink & 0xff) + ")");
+	}
+
+	// One input set through every phase
+	private void run(String name, final List<String> sources) {
+		final List<Start> trees = new ArrayList<Start>();
+		final List<Program> programs = new ArrayList<Program>();
+		final List<SymTab> symTabs = new ArrayList<SymTab>();
+		final List<List<List<LlvmInstruction>>> code = new ArrayList<List<List<LlvmInstruction>>>();
+		for (String source : sources) {
+			Start tree = parse(source);
+			Program program = SyntaxTreeGenerator.convert(tree);
+			check(program);
+			SymTab symTab = new SymTab();
+			symTab.FillTabSymbol(program);
+			trees.add(tree);
+			programs.add(program);
+			symTabs.add(symTab);
+			code.add(Codegen.lower(program, symTab));
+		}
+
+		report(name, "parse", new Phase() {
+			long run() {
+				long r = 0;
+				for (String source : sources)
+					r += parse(source).hashCode();
+				return r;
+			}
+		});
+		report(name, "convert", new Phase() {
+			long run() {
+				long r = 0;
+				for (Start tree : trees)
+					r += SyntaxTreeGenerator.convert(tree).hashCode();
+				return r;
+			}
+		});
+		report(name, "check", new Phase() {
+			long run() {
+				long r = 0;
+				for (Program program : programs)
+					r += check(program).hashCode();
+				return r;
+			}
+		});
+		report(name, "symtab", new Phase() {
+			long run() {
+				long r = 0;
+				for (Program program : programs) {
+					SymTab symTab = new SymTab();
+					symTab.FillTabSymbol(program);
+					r += symTab.classes.size();
+				}
+				return r;
+			}
+		});
+		report(name, "lower", new Phase() {
+			long run() {
+				long r = 0;
+				for (int i = 0; i < programs.size(); i++)
+					r += Codegen.lower(programs.get(i), symTabs.get(i)).size();
+				return r;
+			}
+		});
+		report(name, "emit", new Phase() {
+			long run() {
+				long r = 0;
+				for (List<List<LlvmInstruction>> functions : code) {
+					StringBuilder text = new StringBuilder();
+					LlvmEmitter out = new LlvmEmitter(text);
+					try {
+						for (List<LlvmInstruction> f : functions)
+							out.emitAll(f);
+					} catch (IOException e) {
+						// StringBuilder never throws
+						throw new IllegalStateException(e);
+					}
+					r += text.length();
+				}
+				return r;
+			}
+		});
+	}
+
+	private abstract static class Phase {
+		abstract long run();
+	}
+
+	private void report(String input, String phase, Phase p) {
+		for (int i = 0; i < warmup; i++)
+			measure(p);
+		double opsPerSecond = 0, bytesPerOp = 0;
+		for (int i = 0; i < iterations; i++) {
+			double[] m = measure(p);
+			opsPerSecond += m[0] / iterations;
+			bytesPerOp += m[1] / iterations;
+		}
+		if (bytesPerOp < 0)
+			System.out.printf("%-12s %-8s %12.1f %14s %12s%n", input, phase,
+					opsPerSecond, "n/d", "n/d");
+		else
+			System.out.printf("%-12s %-8s %12.1f %14.0f %12.1f%n", input,
+					phase, opsPerSecond, bytesPerOp, opsPerSecond * bytesPerOp
+							/ (1024 * 1024));
+	}
+
+	// { ops/s, allocated bytes/op (negative if unknown) } of one iteration
+	private double[] measure(Phase p) {
+		long ops = 0;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long deadline = start + iterationMillis * 1000000L;
+		long now;
+		do {
+			sink += p.run();
+			ops++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		long bytes = allocatedBytes() - allocated;
+		double seconds = (now - start) / 1e9;
+		return new double[] { ops / seconds,
+				allocated < 0 ? -1 : (double) bytes / ops };
+	}
+
+	// Bytes allocated so far by this thread, or -1 on JVMs without the
+	// HotSpot extension
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) threads)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static Start parse(String source) {
+		try {
+			return new Parser(new Lexer(new PushbackReader(new StringReader(
+					source)))).parse();
+		} catch (Exception e) {
+			throw new IllegalStateException("erro de sintaxe: " + e.getMessage(), e);
+		}
+	}
+
+	private static Env check(Program program) {
+		CountingEchoer err = new CountingEchoer();
+		Env env = TypeChecker.TypeCheck(err, program);
+		if (err.ErrorCount() != 0)
+			throw new IllegalStateException(err.ErrorCount() + " erros semanticos");
+		return env;
+	}
+
+	// main.SimpleError is not visible from here, and printing is not wanted
+	private static class CountingEchoer implements ErrorEchoer {
+		private int errors;
+		private int warnings;
+
+		public void Print(Object[] msg) {
+		}
+
+		public void Error(Absyn node, Object[] msg) {
+			errors++;
+		}
+
+		public void Warning(Absyn node, Object[] msg) {
+			warnings++;
+		}
+
+		public int ErrorCount() {
+			return errors;
+		}
+
+		public int WarningCount() {
+			return warnings;
+		}
+
+		public void Reset() {
+			errors = 0;
+			warnings = 0;
+		}
+	}
+
+	/*
+	 * A program with 'classes' classes of 10 methods each, mixing loops,
+	 * short-circuit conditions, arrays, inherited fields and both direct
+	 * and virtual calls (every even class overrides Base.get).
+	 */
+	static String synthesize(int classes) {
+		StringBuilder s = new StringBuilder();
+		s.append("class Synth {\n");
+		s.append("    public static void main(String[] a) {\n");
+		s.append("        System.out.println(new C0().m0(10));\n");
+		s.append("    }\n}\n\n");
+		s.append("class Base {\n    int f;\n    int[] data;\n\n");
+		s.append("    public int init(int n) {\n        int i;\n");
+		s.append("        data = new int[n];\n        i = 0;\n");
+		s.append("        while (i < n) {\n            data[i] = i * 2;\n");
+		s.append("            i = i + 1;\n        }\n        f = n;\n");
+		s.append("        return f;\n    }\n\n");
+		s.append("    public int get(int i) {\n        return data[i];\n    }\n}\n");
+
+		for (int c = 0; c < classes; c++) {
+			s.append("\nclass C").append(c).append(" extends Base {\n");
+			s.append("    int g;\n");
+			if (c % 2 == 0)
+				s.append("\n    public int get(int i) {\n        return i + ")
+						.append(c).append(";\n    }\n");
+			for (int m = 0; m < 10; m++) {
+				s.append("\n    public int m").append(m).append("(int x) {\n");
+				s.append("        int i;\n        int s;\n        boolean b;\n");
+				s.append("        i = this.init(x);\n        i = 0;\n");
+				s.append("        s = 0;\n        b = true;\n");
+				s.append("        while (i < x) {\n");
+				s.append("            if (b && i < f)\n");
+				s.append("                s = s + this.get(i) * ").append(m)
+						.append(";\n");
+				s.append("            else\n                s = s - 1;\n");
+				s.append("            b = !b;\n            i = i + 1;\n");
+				s.append("        }\n        g = s;\n");
+				s.append("        return s + data.length;\n    }\n");
+			}
+			s.append("}\n");
+		}
+		return s.toString();
+	}
+
+	private static int[] parseScales(String list) {
+		String[] parts = list.split(",");
+		int[] scales = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			scales[i] = Integer.parseInt(parts[i].trim());
+		return scales;
+	}
+
+	private static String read(File f) throws IOException {
+		StringBuilder text = new StringBuilder();
+		Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+		try {
+			char[] buf = new char[8192];
+			for (int n; (n = in.read(buf)) > 0;)
+				text.append(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return text.toString();
+	}
+}
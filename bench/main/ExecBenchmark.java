@@ -0,0 +1,354 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.PushbackReader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import llvm.Codegen;
+import minijava.lexer.Lexer;
+import minijava.parser.Parser;
+import semant.Env;
+import semant.TypeChecker;
+import syntaxtree.Program;
+import util.conversor.SyntaxTreeGenerator;
+
+/*
+ * How fast the generated code runs. Every test/bigger program (and scaled
+ * variants of it) is compiled and then run
+ *
+ *   lli-O<n>   under 'lli -O<n>'
+ *   llc-O<n>   as a native executable: 'llc -O<n>', linked with 'cc'
+ *
+ * for each level given with '-O'. Both get runtime/runtime.c, compiled
+ * once into the work directory. For each run we record the median wall
+ * time of '-r' executions, the instructions retired ('perf stat') and the
+ * peak RSS ('/usr/bin/time'); tools that are missing are reported as n/d.
+ * All runners must print the same thing.
+ *
+ * Como executar:
+ * $ make bench-run
+ * $ java -classpath bench:src:lib/projeto2.jar main.ExecBenchmark \
+ *       [-O 0,2] [-k 1,100] [-r 5] [-R lli,llc] [-d DIR] [-llvm DIR]
+ *       [-b baseline.txt [-update] [-tol 10]] [arquivo.java...]
+ *
+ * A variant scaled by k wraps the expression printed by main in a loop that
+ * evaluates it k times. With '-b' each result is compared with the baseline
+ * file and the exit status is 1 if any got more than 'tol' percent slower
+ * (wall time or instructions); '-update' rewrites the baseline instead.
+ * The IR uses typed pointers, so '-llvm' must point to an LLVM older than 15.
+ */
+public class ExecBenchmark {
+	private static final String NA = "n/d";
+
+	private File workDir = new File("bench/out");
+	private File runtime;
+	private String llvmBin = "";
+	private int repetitions = 5;
+	private String[] runners = { "lli", "llc" };
+	private double tolerance = 10;
+	private boolean hasTime = new File("/usr/bin/time").canExecute();
+	private boolean hasPerf = onPath("perf");
+
+	// "programa/variante runner" -> medicao
+	private Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+	private static class Result {
+		double wallMillis;
+		long instructions = -1;
+		long rssKb = -1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ExecBenchmark bench = new ExecBenchmark();
+		List<File> files = new ArrayList<File>();
+		int[] levels = { 0, 2 };
+		int[] scales = { 1, 100 };
+		File baseline = null;
+		boolean update = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-O") && i + 1 < args.length)
+				levels = parseList(args[++i]);
+			else if (args[i].equals("-k") && i + 1 < args.length)
+				scales = parseList(args[++i]);
+			else if (args[i].equals("-r") && i + 1 < args.length)
+				bench.repetitions = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-R") && i + 1 < args.length)
+				bench.runners = args[++i].split(",");
+			else if (args[i].equals("-d") && i + 1 < args.length)
+				bench.workDir = new File(args[++i]);
+			else if (args[i].equals("-llvm") && i + 1 < args.length)
+				bench.llvmBin = args[++i] + File.separator;
+			else if (args[i].equals("-b") && i + 1 < args.length)
+				baseline = new File(args[++i]);
+			else if (args[i].equals("-tol") && i + 1 < args.length)
+				bench.tolerance = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-update"))
+				update = true;
+			else
+				files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			File[] corpus = new File("test/bigger").listFiles();
+			if (corpus == null) {
+				System.err.println("test/bigger nao encontrado");
+				System.exit(-1);
+			}
+			Arrays.sort(corpus);
+			for (File f : corpus)
+				if (f.getName().endsWith(".java"))
+					files.add(f);
+		}
+		bench.workDir.mkdirs();
+		bench.runtime = new File(bench.workDir, "runtime.o");
+		exec(Arrays.asList("cc", "-O2", "-c", "runtime/runtime.c", "-o",
+				bench.runtime.getPath()));
+
+		System.out.printf("%-24s %-8s %12s %14s %10s%n", "programa", "runner",
+				"wall ms", "instrucoes", "RSS KB");
+		for (File f : files) {
+			String source = read(f);
+			String name = f.getName().replace(".java", "");
+			for (int k : scales)
+				bench.run(k == 1 ? name : name + "-x" + k, k == 1 ? source
+						: scale(source, k), levels);
+		}
+
+		if (baseline == null)
+			return;
+		if (update || !baseline.exists()) {
+			bench.writeBaseline(baseline);
+			System.out.println("baseline gravado em " + baseline);
+			return;
+		}
+		System.exit(bench.compare(baseline) == 0 ? 0 : 1);
+	}
+
+	private void run(String name, String source, int[] levels)
+			throws Exception {
+		File ir = new File(workDir, name + ".s");
+		compile(source, ir);
+
+		String expected = null;
+		for (int level : levels) {
+			for (String runner : runners) {
+				List<String> command;
+				if (runner.equals("lli")) {
+					command = Arrays.asList(llvmBin + "lli", "-O" + level,
+							"-extra-object=" + runtime.getPath(), ir.getPath());
+				} else {
+					File obj = new File(workDir, name + "-O" + level + ".o");
+					File exe = new File(workDir, name + "-O" + level);
+					exec(Arrays.asList(llvmBin + "llc", "-O" + level,
+							"-filetype=obj", ir.getPath(), "-o", obj.getPath()));
+					exec(Arrays.asList("cc", obj.getPath(), runtime.getPath(),
+							"-o", exe.getPath()));
+					command = Arrays.asList(exe.getPath());
+				}
+
+				String key = name + " " + runner + "-O" + level;
+				Result r = measure(command);
+				String output = exec(command);
+				if (expected == null)
+					expected = output;
+				else if (!expected.equals(output))
+					throw new IllegalStateException(key + ": saida diferente");
+				results.put(key, r);
+				System.out.printf("%-24s %-8s %12.2f %14s %10s%n", name, runner
+						+ "-O" + level, r.wallMillis, r.instructions < 0 ? NA
+						: String.valueOf(r.instructions), r.rssKb < 0 ? NA
+						: String.valueOf(r.rssKb));
+			}
+		}
+	}
+
+	private Result measure(List<String> command) throws Exception {
+		Result r = new Result();
+		double[] wall = new double[repetitions];
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			exec(command);
+			wall[i] = (System.nanoTime() - start) / 1e6;
+		}
+		Arrays.sort(wall);
+		r.wallMillis = wall[repetitions / 2];
+
+		File report = new File(workDir, "medicao.txt");
+		if (hasTime) {
+			List<String> timed = new ArrayList<String>(Arrays.asList(
+					"/usr/bin/time", "-f", "%M", "-o", report.getPath()));
+			timed.addAll(command);
+			exec(timed);
+			r.rssKb = Long.parseLong(read(report).trim());
+		}
+		if (hasPerf) {
+			List<String> counted = new ArrayList<String>(Arrays.asList("perf",
+					"stat", "-x,", "-e", "instructions", "-o",
+					report.getPath(), "--"));
+			counted.addAll(command);
+			exec(counted);
+			// "<contagem>,,instructions,..." (perf may not have access)
+			for (String line : read(report).split("\n"))
+				if (line.contains("instructions") && !line.isEmpty()
+						&& Character.isDigit(line.charAt(0)))
+					r.instructions = Long.parseLong(line.substring(0,
+							line.indexOf(',')));
+		}
+		return r;
+	}
+
+	private int compare(File baseline) throws IOException {
+		int regressions = 0;
+		System.out.println();
+		System.out.printf("%-33s %10s %10s%n", "comparado ao baseline",
+				"wall", "instr");
+		for (String line : read(baseline).split("\n")) {
+			String[] f = line.trim().split("\\s+");
+			if (line.startsWith("#") || f.length != 5)
+				continue;
+			Result now = results.get(f[0] + " " + f[1]);
+			if (now == null)
+				continue;
+			double wall = change(now.wallMillis, Double.parseDouble(f[2]));
+			double instr = now.instructions < 0 || f[3].equals(NA) ? 0
+					: change(now.instructions, Double.parseDouble(f[3]));
+			boolean slower = wall > tolerance || instr > tolerance;
+			if (slower)
+				regressions++;
+			System.out.printf("%-33s %+9.1f%% %+9.1f%%%s%n", f[0] + " " + f[1],
+					wall, instr, slower ? "  REGRESSAO" : "");
+		}
+		System.out.println(regressions + " regressoes (tolerancia "
+				+ tolerance + "%)");
+		return regressions;
+	}
+
+	// Percent change from 'before' to 'now'
+	private static double change(double now, double before) {
+		return before == 0 ? 0 : (now - before) * 100 / before;
+	}
+
+	private void writeBaseline(File baseline) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(baseline), "UTF-8"));
+		try {
+			out.println("# programa runner wall_ms instrucoes rss_kb");
+			for (Map.Entry<String, Result> e : results.entrySet()) {
+				Result r = e.getValue();
+				out.printf("%s %.3f %s %s%n", e.getKey(), r.wallMillis,
+						r.instructions < 0 ? NA : String.valueOf(r.instructions),
+						r.rssKb < 0 ? NA : String.valueOf(r.rssKb));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static final Pattern PRINTED = Pattern
+			.compile("System\\.out\\.println\\s*\\((.*)\\)\\s*;");
+
+	/*
+	 * Evaluates what main prints k times. MiniJava's main has no locals, so
+	 * the loop lives in an extra class.
+	 */
+	static String scale(String source, int k) {
+		Matcher m = PRINTED.matcher(source);
+		if (!m.find())
+			throw new IllegalArgumentException("main sem println");
+		String loop = "\nclass Repeat__ {\n"
+				+ "    public int run(int k) {\n"
+				+ "        int i;\n        int r;\n"
+				+ "        i = 0;\n        r = 0;\n"
+				+ "        while (i < k) {\n"
+				+ "            r = " + m.group(1) + ";\n"
+				+ "            i = i + 1;\n        }\n"
+				+ "        return r;\n    }\n}\n";
+		return source.substring(0, m.start())
+				+ "System.out.println(new Repeat__().run(" + k + "));"
+				+ source.substring(m.end()) + loop;
+	}
+
+	private static void compile(String source, File output) throws Exception {
+		Program program = SyntaxTreeGenerator.convert(new Parser(new Lexer(
+				new PushbackReader(new StringReader(source)))).parse());
+		SimpleError err = new SimpleError(output.getPath());
+		Env env = TypeChecker.TypeCheck(err, program);
+		if (err.ErrorCount() != 0)
+			throw new IllegalStateException(output + ": " + err.ErrorCount()
+					+ " erros");
+		Writer out = new OutputStreamWriter(new FileOutputStream(output),
+				"UTF-8");
+		try {
+			new Codegen().translate(program, env, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	// Runs 'command' and returns its stdout; fails on a nonzero exit status
+	private static String exec(List<String> command) throws Exception {
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		StringBuilder output = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				p.getInputStream(), "UTF-8"));
+		try {
+			for (String line; (line = in.readLine()) != null;)
+				output.append(line).append('\n');
+		} finally {
+			in.close();
+		}
+		int status = p.waitFor();
+		if (status != 0)
+			throw new IllegalStateException(command + " terminou com "
+					+ status + ":\n" + output);
+		return output.toString();
+	}
+
+	private static boolean onPath(String tool) {
+		String path = System.getenv("PATH");
+		if (path == null)
+			return false;
+		for (String dir : path.split(File.pathSeparator))
+			if (new File(dir, tool).canExecute())
+				return true;
+		return false;
+	}
+
+	private static int[] parseList(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	private static String read(File f) throws IOException {
+		StringBuilder text = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(f), "UTF-8"));
+		try {
+			for (String line; (line = in.readLine()) != null;)
+				text.append(line).append('\n');
+		} finally {
+			in.close();
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Rotinas de suporte chamadas pelo codigo gerado.
+ *
+ * Como compilar:
+ * $ cc -c runtime/runtime.c -o runtime/runtime.o
+ *
+ * Como executar com o lli:
+ * $ lli -extra-object=runtime/runtime.o teste.s
+ *
+ * Com MINIJAVA_ALLOC_STATS definida, os contadores da arena de objetos
+ * sao impressos em stderr ao final da execucao.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+/*
+ * Saida do System.out.println: print_int escreve os digitos direto num
+ * buffer grande, sem passar pelo printf (interpretar o formato e travar o
+ * stdout a cada numero). O buffer vai para o stdout quando enche, na saida
+ * do programa e antes de qualquer mensagem de erro.
+ */
+#define OUTPUT_SIZE (1 << 16)
+/* "-2147483648\n" */
+#define MAX_LINE 12
+
+static char output[OUTPUT_SIZE];
+static size_t outputLength;
+static int outputRegistered;
+
+static void flushOutput(void) {
+	fwrite(output, 1, outputLength, stdout);
+	outputLength = 0;
+	fflush(stdout);
+}
+
+void print_int(int value) {
+	char digits[MAX_LINE];
+	char *p = digits + MAX_LINE;
+	/* em unsigned, -INT_MIN nao transborda */
+	unsigned magnitude = value < 0 ? 0u - (unsigned) value : (unsigned) value;
+
+	if (!outputRegistered) {
+		outputRegistered = 1;
+		atexit(flushOutput);
+	}
+	if (outputLength + MAX_LINE > OUTPUT_SIZE)
+		flushOutput();
+
+	*--p = '\n';
+	do {
+		*--p = (char) ('0' + magnitude % 10);
+		magnitude /= 10;
+	} while (magnitude != 0);
+	if (value < 0)
+		*--p = '-';
+	memcpy(output + outputLength, p, digits + MAX_LINE - p);
+	outputLength += digits + MAX_LINE - p;
+}
+
+/* Indice fora do vetor: chamado pelo codigo gerado em vez de acessar a memoria */
+void boundCheckFailed(int line, int index, int length) {
+	flushOutput();
+	fprintf(stderr, "Index out of bounds exception @ %d: index %d, length %d\n",
+			line, index, length);
+	exit(-1);
+}
+
+/*
+ * new int[size] com size negativo, ou grande demais para o malloc (os
+ * size + 1 inteiros nao cabem em um int de bytes)
+ */
+void arraySizeFailed(int line, int size) {
+	flushOutput();
+	if (size < 0)
+		fprintf(stderr, "Negative array size exception @ %d: size %d\n",
+				line, size);
+	else
+		fprintf(stderr, "Out of memory @ %d: array of %d ints\n", line, size);
+	exit(-1);
+}
+
+/*
+ * Arena de objetos (new C()). O codigo gerado (llvm/ArenaAllocation.java)
+ * faz o caminho rapido sozinho: se cabem 'size' bytes em
+ * minijava_arena_free, devolve minijava_arena_next e avanca os dois.
+ * Senao chama minijava_arena_refill, que pega um bloco novo.
+ *
+ * Os blocos vem zerados do calloc e nada e' liberado, entao os objetos
+ * ja nascem zerados. Os programas MiniJava tem uma unica thread, por isso
+ * o estado e' global (o JIT do lli nao resolve variaveis thread-local).
+ */
+#define ARENA_CHUNK (1 << 20)
+/* Objetos maiores que isso nao entram na arena */
+#define ARENA_LARGE (ARENA_CHUNK / 8)
+
+char *minijava_arena_next;
+int minijava_arena_free;
+
+static struct {
+	unsigned long chunks;
+	unsigned long large;
+	unsigned long largeBytes;
+	unsigned long wasted;	/* sobra no fim dos blocos abandonados */
+} arena;
+
+static void *arenaCalloc(size_t size) {
+	void *p = calloc(1, size);
+	if (p == NULL) {
+		flushOutput();
+		fprintf(stderr, "Out of memory: %lu bytes\n", (unsigned long) size);
+		exit(-1);
+	}
+	return p;
+}
+
+static void arenaStats(void) {
+	unsigned long bytes = arena.chunks * ARENA_CHUNK - arena.wasted
+			- minijava_arena_free + arena.largeBytes;
+	/* o caminho rapido nao conta objetos: so os bytes usados sao conhecidos */
+	fprintf(stderr, "arena: %lu bytes, %lu blocos de %d KB, "
+			"%lu objetos grandes\n", bytes, arena.chunks,
+			ARENA_CHUNK / 1024, arena.large);
+}
+
+void *minijava_arena_refill(int size) {
+	char *chunk;
+	if (arena.chunks == 0 && arena.large == 0
+			&& getenv("MINIJAVA_ALLOC_STATS") != NULL)
+		atexit(arenaStats);
+	if (size > ARENA_LARGE) {
+		arena.large++;
+		arena.largeBytes += size;
+		return arenaCalloc(size);
+	}
+	arena.wasted += minijava_arena_free;
+	chunk = arenaCalloc(ARENA_CHUNK);
+	arena.chunks++;
+	minijava_arena_next = chunk + size;
+	minijava_arena_free = ARENA_CHUNK - size;
+	return chunk;
+}
@@ -0,0 +1,105 @@
+package llvm;
+
+import java.util.Map;
+
+import llvmast.LlvmAnd;
+import llvmast.LlvmBitcast;
+import llvmast.LlvmCall;
+import llvmast.LlvmClassType;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmIcmp;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmLoad;
+import llvmast.LlvmMinus;
+import llvmast.LlvmPlus;
+import llvmast.LlvmPointer;
+import llvmast.LlvmTimes;
+import llvmast.LlvmValue;
+import llvmast.LlvmXor;
+
+/*
+ * What memory a load or store may reach, from the way Codegen computes
+ * its address. By the type system, addresses of different kinds are never
+ * the same memory:
+ *
+ *   FIELD    getelementptr %obj, i32 0, i32 k; two of them may be the
+ *            same memory only if k and the field type are the same (the
+ *            layout is flat)
+ *   ELEMENT  an element of an int[]
+ *   LENGTH   the header of an int[]
+ *   VTABLE   the vtable pointer of an object, and the slots of a vtable
+ *
+ * Lengths and vtables are only written when the array or object is made,
+ * so a load of one never changes; UNKNOWN addresses may be anything.
+ */
+class AddressKinds {
+	static final int UNKNOWN = 0;
+	static final int FIELD = 1;
+	static final int ELEMENT = 2;
+	static final int LENGTH = 3;
+	static final int VTABLE = 4;
+
+	// result -> instruction, over the function
+	private final Map<String, LlvmInstruction> defs;
+
+	AddressKinds(Map<String, LlvmInstruction> defs) {
+		this.defs = defs;
+	}
+
+	int kindOf(LlvmValue address) {
+		LlvmInstruction def = defs.get(address.toString());
+		if (def instanceof LlvmBitcast)
+			return isObject(((LlvmBitcast) def).source) ? VTABLE : UNKNOWN;
+		if (!(def instanceof LlvmGetElementPointer))
+			return UNKNOWN;
+		LlvmGetElementPointer gep = (LlvmGetElementPointer) def;
+		if (ArrayLayout.isLength(gep))
+			return LENGTH;
+		if (gep.source.type.toString().equals(ArrayLayout.TYPE.toString()))
+			return gep.offsets.size() == 3 ? ELEMENT : UNKNOWN;
+		if (isObject(gep.source))
+			return gep.offsets.size() == 2
+					&& gep.offsets.get(1) instanceof LlvmIntegerLiteral ? FIELD
+					: UNKNOWN;
+		// a slot of a vtable: the vtables are constants
+		LlvmInstruction vtable = defs.get(gep.source.toString());
+		if (vtable instanceof LlvmLoad
+				&& kindOf(((LlvmLoad) vtable).address) == VTABLE)
+			return VTABLE;
+		return UNKNOWN;
+	}
+
+	// FIELD addresses with the same key may be the same memory
+	String fieldKey(LlvmValue address) {
+		LlvmGetElementPointer gep = (LlvmGetElementPointer) defs.get(address
+				.toString());
+		return gep.offsets.get(1) + " " + address.type;
+	}
+
+	static boolean isImmutable(int kind) {
+		return kind == LENGTH || kind == VTABLE;
+	}
+
+	// Calls into the program may store to any field or element; the
+	// runtime's do not
+	static boolean mayStore(LlvmCall call) {
+		return !call.fnName.equals(Codegen.PRINT_INT)
+				&& !call.fnName.equals(BoundsCheckElimination.TRAP)
+				&& !call.fnName.equals(Codegen.SIZE_TRAP);
+	}
+
+	// Instructions that compute their result from their operands alone
+	static boolean isPure(LlvmInstruction instr) {
+		return instr instanceof LlvmPlus || instr instanceof LlvmMinus
+				|| instr instanceof LlvmTimes || instr instanceof LlvmIcmp
+				|| instr instanceof LlvmAnd || instr instanceof LlvmXor
+				|| instr instanceof LlvmBitcast
+				|| instr instanceof LlvmGetElementPointer;
+	}
+
+	static boolean isObject(LlvmValue v) {
+		return v.type instanceof LlvmPointer
+				&& ((LlvmPointer) v.type).content instanceof LlvmClassType;
+	}
+}
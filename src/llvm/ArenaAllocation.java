@@ -0,0 +1,148 @@
+package llvm;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmBitcast;
+import llvmast.LlvmBranch;
+import llvmast.LlvmCall;
+import llvmast.LlvmContext;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmIcmp;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmLabel;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmLoad;
+import llvmast.LlvmMalloc;
+import llvmast.LlvmMinus;
+import llvmast.LlvmNamedValue;
+import llvmast.LlvmPhi;
+import llvmast.LlvmPointer;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmRegister;
+import llvmast.LlvmStore;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * Lowers every object allocation (new C()) to the bump-pointer arena of
+ * runtime/runtime.c. Runs after the other passes, which still see one
+ * LlvmMalloc per object. The fast path is inline:
+ *
+ *   %free = load i32* @minijava_arena_free
+ *   %fits = icmp uge i32 %free, SIZE
+ *   br i1 %fits, label %allocfastN, label %allocslowN
+ * allocfastN:
+ *   %p = load i8** @minijava_arena_next          ; bump next and free
+ *   ...
+ * allocslowN:
+ *   %q = call i8* @minijava_arena_refill(i32 SIZE)
+ * allocdoneN:
+ *   %r = phi i8* [ %p, %allocfastN ], [ %q, %allocslowN ]
+ *
+ * Chunks come zeroed from the runtime and nothing is freed, so objects
+ * need no clearing. The arena starts empty (free = 0): the first object
+ * goes through minijava_arena_refill, which gets the first chunk. Objects
+ * are not counted here: the runtime reports the bytes used instead.
+ */
+class ArenaAllocation implements FunctionPass {
+	static final String NEXT = "@minijava_arena_next";
+	static final String FREE = "@minijava_arena_free";
+	static final String REFILL = "@minijava_arena_refill";
+
+	private static final LlvmType BYTES = new LlvmPointer(
+			LlvmPrimitiveType.I8);
+	// Objects start at multiples of this (the vtable pointer's alignment)
+	private static final int ALIGN = 8;
+
+	private int lowered;
+
+	public String getName() {
+		return "arena";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("arena allocations", lowered);
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		Cfg cfg = new Cfg(function);
+		// blocks added by a split come right after it and are scanned too
+		for (int i = 0; i < cfg.blocks.size(); i++) {
+			Cfg.Block b = cfg.blocks.get(i);
+			for (int k = 0; k < b.body.size(); k++) {
+				LlvmInstruction instr = b.body.get(k);
+				if (instr instanceof LlvmMalloc
+						&& ((LlvmMalloc) instr).getClassName() != null) {
+					lower(cfg, i, k, (LlvmMalloc) instr);
+					lowered++;
+					break;
+				}
+			}
+		}
+		if (lowered == 0)
+			return function;
+		cfg.link();
+		return cfg.toInstructions();
+	}
+
+	// Replaces body[k] of block i, moving what follows it to a new block
+	private void lower(Cfg cfg, int i, int k, LlvmMalloc malloc) {
+		Cfg.Block b = cfg.blocks.get(i);
+		Cfg.Block fast = new Cfg.Block(new LlvmLabel(newLabel("allocfast")));
+		Cfg.Block slow = new Cfg.Block(new LlvmLabel(newLabel("allocslow")));
+		Cfg.Block done = cfg.split(i, k + 1, newLabel("allocdone"));
+		b.body.remove(k);
+		LlvmIntegerLiteral size = new LlvmIntegerLiteral((malloc.getSize()
+				+ ALIGN - 1) / ALIGN * ALIGN);
+
+		LlvmNamedValue free = new LlvmNamedValue(FREE, new LlvmPointer(
+				LlvmPrimitiveType.I32));
+		LlvmRegister available = new LlvmRegister(LlvmPrimitiveType.I32);
+		b.body.add(new LlvmLoad(available, free));
+		LlvmRegister fits = new LlvmRegister(LlvmPrimitiveType.I1);
+		b.body.add(new LlvmIcmp(fits, LlvmIcmp.UGE, LlvmPrimitiveType.I32,
+				available, size));
+		b.body.add(new LlvmBranch(fits, fast.getLabelValue(), slow
+				.getLabelValue()));
+
+		// fast: next += size, free -= size
+		LlvmNamedValue next = new LlvmNamedValue(NEXT, new LlvmPointer(BYTES));
+		LlvmRegister bumped = new LlvmRegister(BYTES);
+		fast.body.add(new LlvmLoad(bumped, next));
+		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+		offsets.add(size);
+		LlvmRegister end = new LlvmRegister(BYTES);
+		fast.body.add(new LlvmGetElementPointer(end, bumped, offsets));
+		fast.body.add(new LlvmStore(end, next));
+		LlvmRegister left = new LlvmRegister(LlvmPrimitiveType.I32);
+		fast.body.add(new LlvmMinus(left, LlvmPrimitiveType.I32, available,
+				size));
+		fast.body.add(new LlvmStore(left, free));
+		fast.body.add(new LlvmBranch(done.getLabelValue()));
+
+		List<LlvmValue> args = new LinkedList<LlvmValue>();
+		args.add(size);
+		LlvmRegister refilled = new LlvmRegister(BYTES);
+		slow.body.add(new LlvmCall(refilled, BYTES, REFILL, args));
+		slow.body.add(new LlvmBranch(done.getLabelValue()));
+
+		LlvmRegister raw = new LlvmRegister(BYTES);
+		LlvmPhi phi = new LlvmPhi(raw, BYTES);
+		phi.addIncoming(bumped, fast.getLabelValue());
+		phi.addIncoming(refilled, slow.getLabelValue());
+		done.body.add(0, phi);
+		done.body.add(1, new LlvmBitcast(malloc.lhs, raw, malloc.lhs.type));
+
+		cfg.insert(i + 1, fast);
+		cfg.insert(i + 2, slow);
+	}
+
+	private static LlvmLabelValue newLabel(String prefix) {
+		return new LlvmLabelValue(prefix
+				+ LlvmContext.current().newLabelNumber());
+	}
+}
@@ -0,0 +1,67 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import llvmast.LlvmArray;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmPointer;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmStructure;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * int[] is a pointer to { i32, [0 x i32] }: the length, then the
+ * elements. Both are reached with one getelementptr from the array,
+ *
+ *   length   getelementptr { i32, [0 x i32] }* %a, i32 0, i32 0
+ *   a[i]     getelementptr { i32, [0 x i32] }* %a, i32 0, i32 1, i32 %i
+ *
+ * so an access needs no index arithmetic. The header is as big as an
+ * element: new int[n] allocates n + 1 words.
+ */
+class ArrayLayout {
+	static final LlvmType TYPE;
+	// Largest n whose n + 1 words still fit malloc's i32 byte count
+	static final int MAX_LENGTH = Integer.MAX_VALUE / 4 - 1;
+
+	static {
+		List<LlvmType> header = new ArrayList<LlvmType>();
+		header.add(LlvmPrimitiveType.I32);
+		header.add(new LlvmArray(0, LlvmPrimitiveType.I32));
+		TYPE = new LlvmPointer(new LlvmStructure(header));
+	}
+
+	// Offsets of the length (a new list every time: an instruction owns its
+	// offsets)
+	static List<LlvmValue> lengthOffsets() {
+		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+		offsets.add(new LlvmIntegerLiteral(0));
+		offsets.add(new LlvmIntegerLiteral(0));
+		return offsets;
+	}
+
+	// Offsets of element 'index'
+	static List<LlvmValue> elementOffsets(LlvmValue index) {
+		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+		offsets.add(new LlvmIntegerLiteral(0));
+		offsets.add(new LlvmIntegerLiteral(1));
+		offsets.add(index);
+		return offsets;
+	}
+
+	// Whether 'gep' computes the address of the length of its source
+	static boolean isLength(LlvmGetElementPointer gep) {
+		return gep.source.type.toString().equals(TYPE.toString())
+				&& gep.offsets.size() == 2 && isZero(gep.offsets.get(0))
+				&& isZero(gep.offsets.get(1));
+	}
+
+	private static boolean isZero(LlvmValue v) {
+		return v instanceof LlvmIntegerLiteral
+				&& ((LlvmIntegerLiteral) v).value == 0;
+	}
+}
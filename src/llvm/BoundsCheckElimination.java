@@ -0,0 +1,1030 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAnd;
+import llvmast.LlvmBranch;
+import llvmast.LlvmCall;
+import llvmast.LlvmContext;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmIcmp;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmLabel;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmLoad;
+import llvmast.LlvmMalloc;
+import llvmast.LlvmMinus;
+import llvmast.LlvmPhi;
+import llvmast.LlvmPlus;
+import llvmast.LlvmPointer;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmRegister;
+import llvmast.LlvmStore;
+import llvmast.LlvmTimes;
+import llvmast.LlvmUnreachable;
+import llvmast.LlvmValue;
+
+/*
+ * Removes the array bounds checks emitted by Codegen.boundsCheck that are
+ * known to pass, and takes most of the others out of innermost loops.
+ *
+ * A check is the end of a block
+ *
+ *   %len = load i32* %p          ; %p = the length of %a (ArrayLayout)
+ *   %ok = icmp ult i32 %i, %len
+ *   br i1 %ok, label %boundsokN, label %boundstrapN
+ *
+ * where boundstrapN only calls the runtime's trap.
+ *
+ * Elimination: a value-range analysis gives every i32 register an
+ * interval, narrowed at each use by the branch conditions that dominate
+ * it; so in "while (i < n) { ...; i = i + 1; }" i is below n in the body,
+ * i + 1 cannot wrap and i stays >= 0 if it starts there. A check goes
+ * away when its index is >= 0 and a dominating condition bounds it by the
+ * length of the same array: a loop test like "i < a.length" or "i < n"
+ * (a = new int[n]), or an earlier check of the same element.
+ *
+ * Hoisting: an innermost loop "while (j < hi) { ...; j = j + 1; }" whose
+ * checks index with j + c is versioned. A guard in front of it tests once
+ * that j + c stays inside the array for every j from its start up to hi
+ * and, if so, runs a copy of the loop without those checks; otherwise the
+ * original loop runs, so a failing check still traps at the same access.
+ */
+class BoundsCheckElimination implements FunctionPass {
+	static final String TRAP = "@boundCheckFailed";
+
+	private static final long MIN = Integer.MIN_VALUE;
+	private static final long MAX = Integer.MAX_VALUE;
+	private static final long[] FULL = { MIN, MAX };
+	// Updates of one register before its interval is widened to infinity
+	private static final int WIDEN_AFTER = 3;
+	// Largest loop (in instructions) worth having twice
+	private static final int MAX_LOOP_SIZE = 400;
+
+	private Cfg cfg;
+	private Map<String, LlvmInstruction> defs;
+	private Map<String, Cfg.Block> defBlocks;
+	private Map<Cfg.Block, Fact> facts;
+	private Map<String, long[]> ranges;
+	private int checks, eliminated, hoisted;
+
+	private static class Check {
+		Cfg.Block block;
+		LlvmIcmp compare;
+		LlvmValue index;
+		LlvmValue array;
+		Cfg.Block ok;
+	}
+
+	// lo < hi (or lo <= hi); the facts known in a block form a list
+	private static class Fact {
+		final LlvmValue lo, hi;
+		final boolean strict;
+		final Fact next;
+
+		Fact(LlvmValue lo, LlvmValue hi, boolean strict, Fact next) {
+			this.lo = lo;
+			this.hi = hi;
+			this.strict = strict;
+			this.next = next;
+		}
+	}
+
+	// base + c; base is null for a constant
+	private static class Linear {
+		final LlvmValue base;
+		final long c;
+
+		Linear(LlvmValue base, long c) {
+			this.base = base;
+			this.c = c;
+		}
+
+		boolean sameBase(Linear other) {
+			if (base == null || other.base == null)
+				return base == other.base;
+			return base.toString().equals(other.base.toString());
+		}
+	}
+
+	public String getName() {
+		return "bce";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+		// found; proven to pass and removed; replaced by a test before
+		// their loop
+		statistics.put("bounds checks", checks);
+		statistics.put("bounds checks eliminated", eliminated);
+		statistics.put("bounds checks hoisted", hoisted);
+		return statistics;
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		cfg = new Cfg(function);
+		analyze();
+		List<Check> found = findChecks(cfg.blocks);
+		checks = found.size();
+		if (found.isEmpty())
+			return cfg.toInstructions();
+
+		if (computeRanges()) {
+			List<Check> redundant = new ArrayList<Check>();
+			for (Check c : found)
+				if (isRedundant(c))
+					redundant.add(c);
+			// All decided before any is removed: removing one drops the
+			// facts its branch gave to the blocks below it
+			Set<LlvmInstruction> dead = new HashSet<LlvmInstruction>();
+			for (Check c : redundant) {
+				jump(c.block, c.ok);
+				dead.addAll(checkCode(c));
+			}
+			eliminated = redundant.size();
+			if (eliminated > 0) {
+				cfg.link();
+				cfg.removeUnreachable();
+				removeUnused(dead);
+			}
+		}
+
+		versionLoops();
+		return cfg.toInstructions();
+	}
+
+	private void analyze() {
+		cfg.computeDominators();
+		defs = new HashMap<String, LlvmInstruction>();
+		defBlocks = new HashMap<String, Cfg.Block>();
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				if (instr.getResult() != null) {
+					defs.put(instr.getResult().toString(), instr);
+					defBlocks.put(instr.getResult().toString(), b);
+				}
+		facts = new HashMap<Cfg.Block, Fact>();
+	}
+
+	private List<Check> findChecks(Iterable<Cfg.Block> blocks) {
+		List<Check> found = new ArrayList<Check>();
+		for (Cfg.Block b : blocks) {
+			LlvmInstruction term = b.getTerminator();
+			if (!(term instanceof LlvmBranch) || ((LlvmBranch) term).cond == null)
+				continue;
+			LlvmBranch br = (LlvmBranch) term;
+			LlvmInstruction def = defs.get(br.cond.toString());
+			if (!(def instanceof LlvmIcmp)
+					|| ((LlvmIcmp) def).conditionCode != LlvmIcmp.ULT
+					|| !isTrap(cfg.byLabel.get(br.brFalse.value)))
+				continue;
+			Check c = new Check();
+			c.block = b;
+			c.compare = (LlvmIcmp) def;
+			c.index = c.compare.op1;
+			c.array = arrayOf(c.compare.op2);
+			c.ok = cfg.byLabel.get(br.brTrue.value);
+			if (c.array != null)
+				found.add(c);
+		}
+		return found;
+	}
+
+	private static boolean isTrap(Cfg.Block b) {
+		return b != null && b.body.size() == 2
+				&& b.body.get(0) instanceof LlvmCall
+				&& ((LlvmCall) b.body.get(0)).fnName.equals(TRAP)
+				&& b.body.get(1) instanceof LlvmUnreachable;
+	}
+
+	// Array whose length 'v' is (load of its header), or null
+	private LlvmValue arrayOf(LlvmValue v) {
+		LlvmInstruction load = defs.get(v.toString());
+		if (!(load instanceof LlvmLoad))
+			return null;
+		LlvmInstruction gep = defs.get(((LlvmLoad) load).address.toString());
+		if (!(gep instanceof LlvmGetElementPointer))
+			return null;
+		if (!ArrayLayout.isLength((LlvmGetElementPointer) gep))
+			return null;
+		return ((LlvmGetElementPointer) gep).source;
+	}
+
+	/*
+	 * Arrays with the same key have the same length. A field of this that
+	 * nothing in 'region' can assign (no store to it and no call, which
+	 * could assign it) holds one array throughout, so all of its loads
+	 * share a key; any other array is known only by its register.
+	 */
+	private String arrayKey(LlvmValue array, Iterable<Cfg.Block> region) {
+		int field = fieldOf(array);
+		if (field >= 0 && isFieldStable(field, region))
+			return "%this." + field;
+		return array.toString();
+	}
+
+	// Index in %this of the field 'v' was loaded from, or -1
+	private int fieldOf(LlvmValue v) {
+		LlvmInstruction load = defs.get(v.toString());
+		if (!(load instanceof LlvmLoad))
+			return -1;
+		return fieldIndex(((LlvmLoad) load).address);
+	}
+
+	// 'address' = getelementptr %this, 0, k gives k, otherwise -1
+	private int fieldIndex(LlvmValue address) {
+		LlvmInstruction gep = defs.get(address.toString());
+		if (!(gep instanceof LlvmGetElementPointer))
+			return -1;
+		LlvmGetElementPointer g = (LlvmGetElementPointer) gep;
+		if (!g.source.toString().equals("%this") || g.offsets.size() != 2
+				|| !(g.offsets.get(1) instanceof LlvmIntegerLiteral))
+			return -1;
+		return ((LlvmIntegerLiteral) g.offsets.get(1)).value;
+	}
+
+	private boolean isFieldStable(int field, Iterable<Cfg.Block> region) {
+		for (Cfg.Block b : region)
+			for (LlvmInstruction instr : b.body) {
+				if (instr instanceof LlvmStore
+						&& fieldIndex(((LlvmStore) instr).address) == field)
+					return false;
+				if (instr instanceof LlvmCall && mayAssignFields((LlvmCall) instr))
+					return false;
+			}
+		return true;
+	}
+
+	private static boolean mayAssignFields(LlvmCall call) {
+		return !call.fnName.equals(Codegen.PRINT_INT) && !call.fnName.equals(TRAP)
+				&& !call.fnName.equals(Codegen.SIZE_TRAP);
+	}
+
+	/*
+	 * Size given to 'new int[size]' if 'array' was allocated here (Codegen's
+	 * NewArray stores it into the header right after the malloc), or null.
+	 */
+	private Linear allocatedLength(LlvmValue array) {
+		LlvmInstruction def = defs.get(array.toString());
+		if (!(def instanceof LlvmMalloc))
+			return null;
+		Cfg.Block b = defBlocks.get(array.toString());
+		int i = b.body.indexOf(def);
+		if (i + 2 >= b.body.size()
+				|| !(b.body.get(i + 1) instanceof LlvmGetElementPointer)
+				|| !(b.body.get(i + 2) instanceof LlvmStore))
+			return null;
+		LlvmGetElementPointer gep = (LlvmGetElementPointer) b.body.get(i + 1);
+		LlvmStore store = (LlvmStore) b.body.get(i + 2);
+		if (!gep.source.toString().equals(array.toString())
+				|| !ArrayLayout.isLength(gep)
+				|| !store.address.toString().equals(gep.lhs.toString()))
+			return null;
+		return linear(store.content);
+	}
+
+	/*
+	 * The conditions that hold in 'b': those of the branches into the
+	 * blocks that dominate it, taken along their only incoming edge.
+	 */
+	private Fact factsAt(Cfg.Block b) {
+		List<Cfg.Block> chain = new ArrayList<Cfg.Block>();
+		Cfg.Block d = b;
+		while (!facts.containsKey(d)) {
+			chain.add(d);
+			if (d.idom == null || d.idom == d)
+				break;
+			d = d.idom;
+		}
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			Cfg.Block x = chain.get(i);
+			Fact inherited = x.idom == null || x.idom == x ? null : facts
+					.get(x.idom);
+			facts.put(x, edgeFacts(x, inherited));
+		}
+		return facts.get(b);
+	}
+
+	private Fact edgeFacts(Cfg.Block b, Fact f) {
+		if (b.preds.size() != 1 || b.preds.get(0) == b)
+			return f;
+		LlvmInstruction term = b.preds.get(0).getTerminator();
+		if (!(term instanceof LlvmBranch) || ((LlvmBranch) term).cond == null)
+			return f;
+		LlvmBranch br = (LlvmBranch) term;
+		if (br.brTrue.value.equals(br.brFalse.value))
+			return f;
+		LlvmInstruction def = defs.get(br.cond.toString());
+		if (!(def instanceof LlvmIcmp))
+			return f;
+		LlvmIcmp cmp = (LlvmIcmp) def;
+		boolean taken = br.brTrue.value.equals(b.getName());
+		LlvmValue x = cmp.op1, y = cmp.op2;
+		switch (cmp.conditionCode) {
+		case LlvmIcmp.SLT:
+			return taken ? new Fact(x, y, true, f) : new Fact(y, x, false, f);
+		case LlvmIcmp.SLE:
+			return taken ? new Fact(x, y, false, f) : new Fact(y, x, true, f);
+		case LlvmIcmp.SGT:
+			return taken ? new Fact(y, x, true, f) : new Fact(x, y, false, f);
+		case LlvmIcmp.SGE:
+			return taken ? new Fact(y, x, false, f) : new Fact(x, y, true, f);
+		case LlvmIcmp.EQ:
+			return taken ? new Fact(x, y, false, new Fact(y, x, false, f)) : f;
+		case LlvmIcmp.ULT:
+			// x <u length: 0 <= x < length (NewArray traps on
+			// negative sizes, so lengths never are)
+			if (taken && arrayOf(y) != null)
+				return new Fact(new LlvmIntegerLiteral(0), x, false, new Fact(
+						x, y, true, f));
+			return f;
+		default:
+			return f;
+		}
+	}
+
+	/*
+	 * Intervals of the i32 registers, iterated to a fixpoint in reverse
+	 * postorder. Intervals only grow; one that keeps growing around a loop
+	 * is widened to the full range. Returns false if it did not settle.
+	 */
+	private boolean computeRanges() {
+		ranges = new HashMap<String, long[]>();
+		Map<String, Integer> updates = new HashMap<String, Integer>();
+		List<Cfg.Block> rpo = cfg.reversePostOrder();
+		boolean changed = true;
+		for (int round = 0; changed; round++) {
+			if (round > 100)
+				return false;
+			changed = false;
+			for (Cfg.Block b : rpo) {
+				for (LlvmInstruction instr : b.body) {
+					LlvmValue result = instr.getResult();
+					if (result == null || result.type != LlvmPrimitiveType.I32)
+						continue;
+					long[] now = evaluate(instr, b);
+					if (now == null)
+						continue;
+					String name = result.toString();
+					long[] old = ranges.get(name);
+					if (old != null) {
+						now = new long[] { Math.min(old[0], now[0]),
+								Math.max(old[1], now[1]) };
+						if (now[0] == old[0] && now[1] == old[1])
+							continue;
+						Integer n = updates.get(name);
+						n = n == null ? 1 : n + 1;
+						updates.put(name, n);
+						if (n >= WIDEN_AFTER) {
+							if (now[0] < old[0])
+								now[0] = MIN;
+							if (now[1] > old[1])
+								now[1] = MAX;
+						}
+					}
+					ranges.put(name, now);
+					changed = true;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Interval of the result of 'instr' (in block 'b'); null if unknown yet
+	private long[] evaluate(LlvmInstruction instr, Cfg.Block b) {
+		if (instr instanceof LlvmPlus) {
+			long[] x = rangeAt(((LlvmPlus) instr).op1, b);
+			long[] y = rangeAt(((LlvmPlus) instr).op2, b);
+			if (x == null || y == null)
+				return null;
+			return clamp(x[0] + y[0], x[1] + y[1]);
+		}
+		if (instr instanceof LlvmMinus) {
+			long[] x = rangeAt(((LlvmMinus) instr).op1, b);
+			long[] y = rangeAt(((LlvmMinus) instr).op2, b);
+			if (x == null || y == null)
+				return null;
+			return clamp(x[0] - y[1], x[1] - y[0]);
+		}
+		if (instr instanceof LlvmTimes) {
+			long[] x = rangeAt(((LlvmTimes) instr).op1, b);
+			long[] y = rangeAt(((LlvmTimes) instr).op2, b);
+			if (x == null || y == null)
+				return null;
+			long p1 = x[0] * y[0], p2 = x[0] * y[1];
+			long p3 = x[1] * y[0], p4 = x[1] * y[1];
+			return clamp(Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+					Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+		}
+		if (instr instanceof LlvmPhi) {
+			LlvmPhi phi = (LlvmPhi) instr;
+			long[] r = null;
+			for (int i = 0; i < phi.values.size(); i++) {
+				Cfg.Block pred = cfg.byLabel.get(phi.labels.get(i).value);
+				long[] in = pred == null ? null : rangeAt(phi.values.get(i),
+						pred);
+				if (in == null)
+					continue;
+				r = r == null ? in : new long[] { Math.min(r[0], in[0]),
+						Math.max(r[1], in[1]) };
+			}
+			return r;
+		}
+		if (instr instanceof LlvmLoad && arrayOf(instr.getResult()) != null)
+			return new long[] { 0, MAX };
+		return FULL;
+	}
+
+	// A result that may wrap around can be anything
+	private static long[] clamp(long lo, long hi) {
+		if (lo < MIN || hi > MAX)
+			return FULL;
+		return new long[] { lo, hi };
+	}
+
+	// Interval of 'v' where it is read in 'b'; null if unknown yet, or if
+	// the conditions known in 'b' cannot all hold
+	private long[] rangeAt(LlvmValue v, Cfg.Block b) {
+		long[] r = range(v);
+		if (r == null || v instanceof LlvmIntegerLiteral)
+			return r;
+		long lo = r[0], hi = r[1];
+		String name = v.toString();
+		for (Fact f = factsAt(b); f != null; f = f.next) {
+			int strict = f.strict ? 1 : 0;
+			if (f.hi.toString().equals(name)) {
+				long[] other = range(f.lo);
+				if (other != null)
+					lo = Math.max(lo, other[0] + strict);
+			}
+			if (f.lo.toString().equals(name)) {
+				long[] other = range(f.hi);
+				if (other != null)
+					hi = Math.min(hi, other[1] - strict);
+			}
+		}
+		if (lo > hi)
+			return null;
+		return new long[] { lo, hi };
+	}
+
+	private long[] range(LlvmValue v) {
+		if (v instanceof LlvmIntegerLiteral)
+			return new long[] { ((LlvmIntegerLiteral) v).value,
+					((LlvmIntegerLiteral) v).value };
+		if (!defs.containsKey(v.toString()))
+			return FULL; // formal
+		return ranges.get(v.toString());
+	}
+
+	// Follows additions of constants that are known not to wrap around
+	private Linear linear(LlvmValue v) {
+		long c = 0;
+		while (true) {
+			if (v instanceof LlvmIntegerLiteral)
+				return new Linear(null, c + ((LlvmIntegerLiteral) v).value);
+			LlvmInstruction def = defs.get(v.toString());
+			LlvmValue next = null;
+			long k = 0;
+			if (def instanceof LlvmPlus) {
+				LlvmPlus add = (LlvmPlus) def;
+				if (add.op2 instanceof LlvmIntegerLiteral) {
+					next = add.op1;
+					k = ((LlvmIntegerLiteral) add.op2).value;
+				} else if (add.op1 instanceof LlvmIntegerLiteral) {
+					next = add.op2;
+					k = ((LlvmIntegerLiteral) add.op1).value;
+				}
+			} else if (def instanceof LlvmMinus
+					&& ((LlvmMinus) def).op2 instanceof LlvmIntegerLiteral) {
+				next = ((LlvmMinus) def).op1;
+				k = -((LlvmIntegerLiteral) ((LlvmMinus) def).op2).value;
+			}
+			if (next == null || next instanceof LlvmIntegerLiteral)
+				return new Linear(v, c);
+			long[] r = rangeAt(next, defBlocks.get(v.toString()));
+			if (r == null || r[0] + k < MIN || r[1] + k > MAX)
+				return new Linear(v, c);
+			c += k;
+			v = next;
+		}
+	}
+
+	private boolean isRedundant(Check c) {
+		long[] index = rangeAt(c.index, c.block);
+		if (index == null || index[0] < 0)
+			return false;
+
+		String key = arrayKey(c.array, cfg.blocks);
+		Linear allocated = key.equals(c.array.toString()) ? allocatedLength(c.array)
+				: null;
+		if (allocated != null && allocated.base == null
+				&& index[1] < allocated.c)
+			return true;
+
+		// index = x + dx and x < y = length + dy  =>  index < length if
+		// dx + dy <= 0 (dx + dy < 0 for x <= y)
+		Linear i = linear(c.index);
+		for (Fact f = factsAt(c.block); f != null; f = f.next) {
+			Linear x = linear(f.lo);
+			if (!x.sameBase(i))
+				continue;
+			long dx = i.c - x.c;
+			Linear y = linear(f.hi);
+			long slack = f.strict ? 0 : 1;
+			if (y.base != null) {
+				LlvmValue array = arrayOf(y.base);
+				if (array != null && arrayKey(array, cfg.blocks).equals(key)
+						&& dx + y.c + slack <= 0)
+					return true;
+			}
+			if (allocated != null && y.sameBase(allocated)
+					&& dx + y.c - allocated.c + slack <= 0)
+				return true;
+		}
+		return false;
+	}
+
+	// The compare of 'c' and the load of the length it reads
+	private List<LlvmInstruction> checkCode(Check c) {
+		List<LlvmInstruction> code = new ArrayList<LlvmInstruction>();
+		code.add(c.compare);
+		LlvmInstruction load = defs.get(c.compare.op2.toString());
+		code.add(load);
+		code.add(defs.get(((LlvmLoad) load).address.toString()));
+		return code;
+	}
+
+	// Replaces the conditional branch that ends 'from'
+	private static void jump(Cfg.Block from, Cfg.Block to) {
+		from.body.set(from.body.size() - 1, new LlvmBranch(to.getLabelValue()));
+	}
+
+	// Drops the instructions of 'dead' whose results are no longer read
+	private void removeUnused(Set<LlvmInstruction> dead) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Set<String> used = new HashSet<String>();
+			for (Cfg.Block b : cfg.blocks)
+				for (LlvmInstruction instr : b.body)
+					for (LlvmValue op : instr.getOperands())
+						used.add(op.toString());
+			for (Cfg.Block b : cfg.blocks)
+				for (Iterator<LlvmInstruction> it = b.body.iterator(); it.hasNext();) {
+					LlvmInstruction instr = it.next();
+					if (dead.contains(instr)
+							&& !used.contains(instr.getResult().toString())) {
+						it.remove();
+						changed = true;
+					}
+				}
+		}
+	}
+
+	/*
+	 * Loop versioning
+	 */
+
+	private static class Loop {
+		Cfg.Block header, latch, preheader, exit;
+		Set<Cfg.Block> body = new LinkedHashSet<Cfg.Block>();
+	}
+
+	private void versionLoops() {
+		Set<String> done = new HashSet<String>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			analyze();
+			for (Cfg.Block h : new ArrayList<Cfg.Block>(cfg.blocks)) {
+				if (!done.add(h.getName()))
+					continue;
+				Loop loop = innermostLoop(h);
+				if (loop != null && version(loop, done)) {
+					changed = true;
+					break;
+				}
+			}
+		}
+	}
+
+	// The loop 'h' heads, if it has one latch and no loop inside it
+	private Loop innermostLoop(Cfg.Block h) {
+		Loop loop = new Loop();
+		loop.header = h;
+		for (Cfg.Block p : h.preds) {
+			if (cfg.dominates(h, p)) {
+				if (loop.latch != null)
+					return null;
+				loop.latch = p;
+			} else {
+				loop.preheader = p;
+			}
+		}
+		if (loop.latch == null || h.preds.size() != 2 || loop.preheader == null)
+			return null;
+
+		// Natural loop: every block that reaches the latch without h
+		List<Cfg.Block> work = new ArrayList<Cfg.Block>();
+		loop.body.add(h);
+		if (loop.body.add(loop.latch))
+			work.add(loop.latch);
+		while (!work.isEmpty())
+			for (Cfg.Block p : work.remove(work.size() - 1).preds)
+				if (loop.body.add(p))
+					work.add(p);
+
+		for (Cfg.Block b : loop.body)
+			for (Cfg.Block p : b.preds)
+				if (b != h && loop.body.contains(p) && cfg.dominates(b, p))
+					return null;
+
+		// In layout order, which the copy keeps
+		Set<Cfg.Block> found = loop.body;
+		loop.body = new LinkedHashSet<Cfg.Block>();
+		for (Cfg.Block b : cfg.blocks)
+			if (found.contains(b))
+				loop.body.add(b);
+		return loop;
+	}
+
+	/*
+	 * Versions 'loop' if it counts j upwards by one while j < hi and some
+	 * of its checks index with j + c. Returns true if the CFG changed.
+	 */
+	private boolean version(Loop loop, Set<String> done) {
+		Cfg.Block h = loop.header;
+
+		LlvmInstruction term = h.getTerminator();
+		if (!(term instanceof LlvmBranch) || ((LlvmBranch) term).cond == null)
+			return false;
+		LlvmBranch test = (LlvmBranch) term;
+		LlvmInstruction def = defs.get(test.cond.toString());
+		if (!(def instanceof LlvmIcmp)
+				|| ((LlvmIcmp) def).conditionCode != LlvmIcmp.SLT
+				|| defBlocks.get(test.cond.toString()) != h)
+			return false;
+		LlvmValue j = ((LlvmIcmp) def).op1;
+		LlvmValue hi = ((LlvmIcmp) def).op2;
+		loop.exit = cfg.byLabel.get(test.brFalse.value);
+		if (!loop.body.contains(cfg.byLabel.get(test.brTrue.value))
+				|| loop.body.contains(loop.exit) || loop.exit.preds.size() != 1
+				|| (!loop.exit.body.isEmpty() && loop.exit.body.get(0) instanceof LlvmPhi))
+			return false;
+
+		// j = phi [lo, preheader], [j + 1, latch]
+		LlvmInstruction phi = defs.get(j.toString());
+		if (!(phi instanceof LlvmPhi) || defBlocks.get(j.toString()) != h)
+			return false;
+		LlvmValue lo = incoming((LlvmPhi) phi, loop.preheader);
+		LlvmValue step = incoming((LlvmPhi) phi, loop.latch);
+		if (lo == null || step == null || !isIncrement(step, j))
+			return false;
+
+		LlvmInstruction enter = loop.preheader.getTerminator();
+		if (!(enter instanceof LlvmBranch) || ((LlvmBranch) enter).cond != null)
+			return false;
+
+		// Everything that leaves the loop goes to the exit or to a trap
+		Set<Cfg.Block> traps = new HashSet<Cfg.Block>();
+		int size = 0;
+		for (Cfg.Block b : loop.body) {
+			size += b.body.size();
+			for (Cfg.Block s : b.succs)
+				if (!loop.body.contains(s) && s != loop.exit) {
+					if (!isTrap(s) || s.preds.size() != 1)
+						return false;
+					traps.add(s);
+				}
+		}
+		Set<Cfg.Block> region = new LinkedHashSet<Cfg.Block>();
+		for (Cfg.Block b : cfg.blocks)
+			if (loop.body.contains(b) || traps.contains(b))
+				region.add(b);
+		if (size > MAX_LOOP_SIZE)
+			return false;
+
+		// hi may be computed in the header, from values set before the loop
+		List<LlvmInstruction> bound = new ArrayList<LlvmInstruction>();
+		if (!isInvariant(hi, loop, bound))
+			return false;
+
+		// Checks of j + c on arrays whose length can be read before the loop
+		Map<String, List<Check>> byArray = new LinkedHashMap<String, List<Check>>();
+		Map<Check, Long> offsets = new HashMap<Check, Long>();
+		Map<String, Check> entered = new HashMap<String, Check>();
+		for (Check c : findChecks(loop.body)) {
+			Long offset = offsetFrom(c.index, j);
+			String key = loopArrayKey(c.array, loop);
+			if (offset == null || key == null)
+				continue;
+			offsets.put(c, offset);
+			if (!byArray.containsKey(key))
+				byArray.put(key, new ArrayList<Check>());
+			byArray.get(key).add(c);
+			// Its length is read before the loop only if every iteration
+			// reads it anyway (the array may be null otherwise)
+			if (cfg.dominates(c.block, loop.latch))
+				entered.put(key, c);
+		}
+		byArray.keySet().retainAll(entered.keySet());
+		if (byArray.isEmpty())
+			return false;
+
+		long lowest = Long.MAX_VALUE;
+		for (List<Check> list : byArray.values())
+			for (Check c : list)
+				lowest = Math.min(lowest, offsets.get(c));
+		if (lo instanceof LlvmIntegerLiteral
+				&& ((LlvmIntegerLiteral) lo).value + lowest < 0)
+			return false; // the copy would never run
+
+		// Copy of the loop and of its traps
+		Map<String, LlvmValue> subst = new HashMap<String, LlvmValue>();
+		for (Cfg.Block b : region) {
+			subst.put(b.getName(), freshLabel(b.getName()));
+			for (LlvmInstruction instr : b.body)
+				if (instr.getResult() != null)
+					subst.put(instr.getResult().toString(), new LlvmRegister(
+							instr.getResult().type));
+		}
+		Map<Cfg.Block, Cfg.Block> copies = new LinkedHashMap<Cfg.Block, Cfg.Block>();
+		Map<LlvmInstruction, LlvmInstruction> copyOf = new HashMap<LlvmInstruction, LlvmInstruction>();
+		for (Cfg.Block b : region) {
+			Cfg.Block copy = new Cfg.Block(new LlvmLabel(
+					(LlvmLabelValue) subst.get(b.getName())));
+			for (LlvmInstruction instr : b.body) {
+				LlvmInstruction c = instr.copy(subst);
+				if (c == null)
+					return false;
+				copy.body.add(c);
+				copyOf.put(instr, c);
+			}
+			copies.put(b, copy);
+		}
+		Cfg.Block fast = copies.get(h);
+
+		// guard: does the loop run at all?
+		Cfg.Block guard = new Cfg.Block(new LlvmLabel(freshLabel("boundsguard")));
+		Cfg.Block range = new Cfg.Block(new LlvmLabel(freshLabel("boundsrange")));
+		Map<String, LlvmValue> hoist = new HashMap<String, LlvmValue>();
+		for (LlvmInstruction instr : bound) {
+			hoist.put(instr.getResult().toString(), new LlvmRegister(instr
+					.getResult().type));
+			guard.body.add(instr.copy(hoist));
+		}
+		LlvmValue limit = hoist.containsKey(hi.toString()) ? hoist.get(hi
+				.toString()) : hi;
+		LlvmValue runs = compare(guard, LlvmIcmp.SLT, lo, limit);
+		guard.body.add(new LlvmBranch(runs, range.getLabelValue(), h
+				.getLabelValue()));
+
+		// range: is lo + c >= 0 and hi - 1 + c < length for every check?
+		List<LlvmValue> conditions = new ArrayList<LlvmValue>();
+		if (!(lo instanceof LlvmIntegerLiteral))
+			conditions.add(compare(range, LlvmIcmp.SGE, lo,
+					new LlvmIntegerLiteral((int) -lowest)));
+		for (Map.Entry<String, List<Check>> e : byArray.entrySet()) {
+			long highest = 0;
+			for (Check c : e.getValue())
+				highest = Math.max(highest, offsets.get(c));
+			LlvmValue length = loadLength(range, entered.get(e.getKey()).array);
+			if (highest > 0) {
+				LlvmRegister reduced = new LlvmRegister(LlvmPrimitiveType.I32);
+				range.body.add(new LlvmMinus(reduced, LlvmPrimitiveType.I32,
+						length, new LlvmIntegerLiteral((int) highest)));
+				length = reduced;
+			}
+			conditions.add(compare(range, LlvmIcmp.SLE, limit, length));
+		}
+		LlvmValue all = conditions.get(0);
+		for (int i = 1; i < conditions.size(); i++) {
+			LlvmRegister both = new LlvmRegister(LlvmPrimitiveType.I1);
+			range.body.add(new LlvmAnd(both, LlvmPrimitiveType.I1, all,
+					conditions.get(i)));
+			all = both;
+		}
+		range.body.add(new LlvmBranch(all, fast.getLabelValue(), h
+				.getLabelValue()));
+
+		// From here on the CFG changes
+		jump(loop.preheader, guard);
+		for (LlvmInstruction instr : h.body) {
+			if (!(instr instanceof LlvmPhi))
+				break;
+			LlvmPhi p = (LlvmPhi) instr;
+			int i = indexOfLabel(p, loop.preheader);
+			p.labels.set(i, guard.getLabelValue());
+			p.addIncoming(p.values.get(i), range.getLabelValue());
+		}
+		for (LlvmInstruction instr : fast.body) {
+			if (!(instr instanceof LlvmPhi))
+				break;
+			LlvmPhi p = (LlvmPhi) instr;
+			p.labels.set(indexOfLabel(p, loop.preheader), range.getLabelValue());
+		}
+
+		// No checks in the copy
+		Set<LlvmInstruction> dead = new HashSet<LlvmInstruction>();
+		for (List<Check> list : byArray.values())
+			for (Check c : list) {
+				jump(copies.get(c.block), copies.get(c.ok));
+				for (LlvmInstruction instr : checkCode(c))
+					dead.add(copyOf.get(instr));
+				hoisted++;
+			}
+
+		mergeAtExit(loop, region, subst, fast);
+
+		int at = cfg.blocks.indexOf(h);
+		cfg.insert(at, range);
+		cfg.insert(at, guard);
+		int after = cfg.blocks.indexOf(loop.exit);
+		List<Cfg.Block> added = new ArrayList<Cfg.Block>(copies.values());
+		for (int i = added.size() - 1; i >= 0; i--)
+			cfg.insert(after, added.get(i));
+		for (Cfg.Block b : added)
+			done.add(b.getName());
+		done.add(guard.getName());
+		done.add(range.getName());
+
+		cfg.link();
+		cfg.removeUnreachable();
+		removeUnused(dead);
+		return true;
+	}
+
+	private static LlvmValue incoming(LlvmPhi phi, Cfg.Block pred) {
+		int i = indexOfLabel(phi, pred);
+		return i < 0 ? null : phi.values.get(i);
+	}
+
+	private static int indexOfLabel(LlvmPhi phi, Cfg.Block pred) {
+		for (int i = 0; i < phi.labels.size(); i++)
+			if (phi.labels.get(i).value.equals(pred.getName()))
+				return i;
+		return -1;
+	}
+
+	// 'step' = j + 1
+	private boolean isIncrement(LlvmValue step, LlvmValue j) {
+		LlvmInstruction def = defs.get(step.toString());
+		if (!(def instanceof LlvmPlus))
+			return false;
+		LlvmPlus add = (LlvmPlus) def;
+		return add.op1.toString().equals(j.toString()) && isLiteral(add.op2, 1)
+				|| add.op2.toString().equals(j.toString()) && isLiteral(add.op1, 1);
+	}
+
+	// c such that 'index' = j + c, or null
+	private Long offsetFrom(LlvmValue index, LlvmValue j) {
+		String name = j.toString();
+		if (index.toString().equals(name))
+			return 0L;
+		LlvmInstruction def = defs.get(index.toString());
+		long c;
+		if (def instanceof LlvmPlus && ((LlvmPlus) def).op1.toString().equals(name)
+				&& ((LlvmPlus) def).op2 instanceof LlvmIntegerLiteral)
+			c = ((LlvmIntegerLiteral) ((LlvmPlus) def).op2).value;
+		else if (def instanceof LlvmPlus
+				&& ((LlvmPlus) def).op2.toString().equals(name)
+				&& ((LlvmPlus) def).op1 instanceof LlvmIntegerLiteral)
+			c = ((LlvmIntegerLiteral) ((LlvmPlus) def).op1).value;
+		else if (def instanceof LlvmMinus
+				&& ((LlvmMinus) def).op1.toString().equals(name)
+				&& ((LlvmMinus) def).op2 instanceof LlvmIntegerLiteral)
+			c = -(long) ((LlvmIntegerLiteral) ((LlvmMinus) def).op2).value;
+		else
+			return null;
+		// Keeps the guard's own arithmetic far from wrapping around
+		return Math.abs(c) <= 1 << 16 ? Long.valueOf(c) : null;
+	}
+
+	/*
+	 * Adds to 'bound' (in order) what the header computes 'v' with, if it
+	 * is the same on every iteration: arithmetic and loads of fields that
+	 * the loop leaves alone (as in "while (j < size)")
+	 */
+	private boolean isInvariant(LlvmValue v, Loop loop, List<LlvmInstruction> bound) {
+		Cfg.Block b = defBlocks.get(v.toString());
+		if (v instanceof LlvmIntegerLiteral || b == null || !loop.body.contains(b))
+			return true;
+		LlvmInstruction def = defs.get(v.toString());
+		if (b != loop.header)
+			return false;
+		if (def instanceof LlvmLoad) {
+			int field = fieldIndex(((LlvmLoad) def).address);
+			if (field < 0 || !isFieldStable(field, loop.body))
+				return false;
+		} else if (!(def instanceof LlvmPlus || def instanceof LlvmMinus
+				|| def instanceof LlvmTimes || def instanceof LlvmGetElementPointer))
+			return false;
+		for (LlvmValue op : def.getOperands())
+			if (!isInvariant(op, loop, bound))
+				return false;
+		if (!bound.contains(def))
+			bound.add(def);
+		return true;
+	}
+
+	// Key of an array whose length can be read before 'loop', or null
+	private String loopArrayKey(LlvmValue array, Loop loop) {
+		Cfg.Block b = defBlocks.get(array.toString());
+		if (b == null || !loop.body.contains(b))
+			return array.toString();
+		int field = fieldOf(array);
+		if (field >= 0 && isFieldStable(field, loop.body))
+			return "%this." + field;
+		return null;
+	}
+
+	// Loads the length of 'array' at the end of 'b', reloading the array
+	// from its field first if the loop is where it is loaded
+	private LlvmValue loadLength(Cfg.Block b, LlvmValue array) {
+		if (fieldOf(array) >= 0) {
+			LlvmLoad load = (LlvmLoad) defs.get(array.toString());
+			LlvmInstruction gep = defs.get(load.address.toString());
+			Map<String, LlvmValue> fresh = new HashMap<String, LlvmValue>();
+			fresh.put(load.address.toString(), new LlvmRegister(
+					load.address.type));
+			fresh.put(array.toString(), new LlvmRegister(array.type));
+			b.body.add(gep.copy(fresh));
+			b.body.add(load.copy(fresh));
+			array = fresh.get(array.toString());
+		}
+		LlvmRegister address = new LlvmRegister(new LlvmPointer(
+				LlvmPrimitiveType.I32));
+		b.body.add(new LlvmGetElementPointer(address, array, ArrayLayout
+				.lengthOffsets()));
+		LlvmRegister length = new LlvmRegister(LlvmPrimitiveType.I32);
+		b.body.add(new LlvmLoad(length, address));
+		return length;
+	}
+
+	private static LlvmValue compare(Cfg.Block b, int conditionCode,
+			LlvmValue x, LlvmValue y) {
+		LlvmRegister r = new LlvmRegister(LlvmPrimitiveType.I1);
+		b.body.add(new LlvmIcmp(r, conditionCode, LlvmPrimitiveType.I32, x, y));
+		return r;
+	}
+
+	/*
+	 * The exit is now reached from both headers: what the loop computed
+	 * and is read after it comes through a phi. Only the header dominates
+	 * the exit, so only its values can be read there.
+	 */
+	private void mergeAtExit(Loop loop, Set<Cfg.Block> region,
+			Map<String, LlvmValue> subst, Cfg.Block fast) {
+		Set<String> inside = new HashSet<String>();
+		for (Cfg.Block b : region)
+			for (LlvmInstruction instr : b.body)
+				if (instr.getResult() != null)
+					inside.add(instr.getResult().toString());
+
+		Map<String, LlvmValue> merged = new HashMap<String, LlvmValue>();
+		List<LlvmPhi> phis = new ArrayList<LlvmPhi>();
+		for (Cfg.Block b : cfg.blocks) {
+			if (region.contains(b))
+				continue;
+			for (LlvmInstruction instr : b.body)
+				for (LlvmValue op : instr.getOperands()) {
+					String name = op.toString();
+					if (!inside.contains(name) || merged.containsKey(name))
+						continue;
+					LlvmPhi phi = new LlvmPhi(new LlvmRegister(op.type), op.type);
+					phi.addIncoming(op, loop.header.getLabelValue());
+					phi.addIncoming(subst.get(name), fast.getLabelValue());
+					merged.put(name, phi.lhs);
+					phis.add(phi);
+				}
+		}
+		for (Cfg.Block b : cfg.blocks)
+			if (!region.contains(b))
+				for (LlvmInstruction instr : b.body)
+					instr.replaceOperands(merged);
+		loop.exit.body.addAll(0, phis);
+	}
+
+	private static LlvmLabelValue freshLabel(String name) {
+		int end = name.length();
+		while (end > 0 && Character.isDigit(name.charAt(end - 1)))
+			end--;
+		return new LlvmLabelValue(name.substring(0, end)
+				+ LlvmContext.current().newLabelNumber());
+	}
+
+	private static boolean isLiteral(LlvmValue v, int value) {
+		return v instanceof LlvmIntegerLiteral
+				&& ((LlvmIntegerLiteral) v).value == value;
+	}
+}
@@ -0,0 +1,349 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmBasicBlock;
+import llvmast.LlvmBranch;
+import llvmast.LlvmCloseDefinition;
+import llvmast.LlvmDefine;
+import llvmast.LlvmFunction;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmLabel;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmPhi;
+import llvmast.LlvmRet;
+import llvmast.LlvmValue;
+
+/*
+ * Control flow graph of one lowered function. Splits the flat instruction
+ * list emitted by Codegen at its labels into basic blocks and links them
+ * through their branches. Every block starts with a label (Codegen always emits "entry").
+ */
+class Cfg {
+	LlvmInstruction header; // define ... {
+	LlvmInstruction footer; // }
+	List<Block> blocks;
+	Map<String, Block> byLabel;
+
+	static class Block extends LlvmBasicBlock {
+		List<Block> succs = new ArrayList<Block>();
+		List<Block> preds = new ArrayList<Block>(); // one entry per edge
+		Block idom;
+		List<Block> domChildren = new ArrayList<Block>();
+		int rpo = -1;
+
+		Block(LlvmLabel label) {
+			super(label);
+		}
+	}
+
+	Cfg(List<LlvmInstruction> function) {
+		blocks = new ArrayList<Block>();
+		byLabel = new HashMap<String, Block>();
+
+		Block current = null;
+		for (LlvmInstruction instr : function) {
+			if (instr instanceof LlvmDefine) {
+				header = instr;
+			} else if (instr instanceof LlvmCloseDefinition) {
+				footer = instr;
+			} else if (instr instanceof LlvmLabel) {
+				current = new Block((LlvmLabel) instr);
+				blocks.add(current);
+				byLabel.put(current.getName(), current);
+			} else {
+				current.body.add(instr);
+			}
+		}
+		link();
+	}
+
+	// (Re)computes succs/preds from the branches
+	void link() {
+		for (Block b : blocks) {
+			b.succs.clear();
+			b.preds.clear();
+		}
+		for (Block b : blocks) {
+			LlvmInstruction term = b.getTerminator();
+			if (term instanceof LlvmBranch) {
+				LlvmBranch br = (LlvmBranch) term;
+				addEdge(b, byLabel.get(br.brTrue.value));
+				if (br.cond != null)
+					addEdge(b, byLabel.get(br.brFalse.value));
+			}
+		}
+	}
+
+	private void addEdge(Block from, Block to) {
+		from.succs.add(to);
+		to.preds.add(from);
+	}
+
+	// Adds 'b' at position 'index' of the layout; call link() afterwards
+	void insert(int index, Block b) {
+		blocks.add(index, b);
+		byLabel.put(b.getName(), b);
+	}
+
+	/*
+	 * Moves body[k..] of blocks[index] into a new block 'label' placed right
+	 * after it; the phis of the successors now name the new block. The old
+	 * block is left without a terminator. Call link() afterwards.
+	 */
+	Block split(int index, int k, LlvmLabelValue label) {
+		Block b = blocks.get(index);
+		Block rest = new Block(new LlvmLabel(label));
+		List<LlvmInstruction> moved = b.body.subList(k, b.body.size());
+		rest.body.addAll(moved);
+		moved.clear();
+		insert(index + 1, rest);
+
+		LlvmInstruction term = rest.getTerminator();
+		if (term instanceof LlvmBranch) {
+			LlvmBranch br = (LlvmBranch) term;
+			renameIncoming(byLabel.get(br.brTrue.value), b, rest);
+			if (br.cond != null)
+				renameIncoming(byLabel.get(br.brFalse.value), b, rest);
+		}
+		return rest;
+	}
+
+	// The phis of 'succ' now get the value they had for 'from' from 'to'
+	static void renameIncoming(Block succ, Block from, Block to) {
+		for (LlvmInstruction instr : succ.body) {
+			if (!(instr instanceof LlvmPhi))
+				break;
+			List<LlvmLabelValue> labels = ((LlvmPhi) instr).labels;
+			for (int j = 0; j < labels.size(); j++)
+				if (labels.get(j).value.equals(from.getName()))
+					labels.set(j, to.getLabelValue());
+		}
+	}
+
+	/*
+	 * What 'p' returns through the block it jumps to, if that block holds
+	 * only phis and a ret (Codegen joins an if's results so); else null.
+	 */
+	LlvmValue returnedFrom(Block p) {
+		LlvmInstruction br = p.getTerminator();
+		if (!(br instanceof LlvmBranch) || ((LlvmBranch) br).cond != null)
+			return null;
+		Block r = byLabel.get(((LlvmBranch) br).brTrue.value);
+		LlvmInstruction ret = r.getTerminator();
+		if (r == p || !(ret instanceof LlvmRet) || ((LlvmRet) ret).v == null)
+			return null;
+		if (!onlyPhis(r))
+			return null;
+		LlvmValue v = ((LlvmRet) ret).v;
+		for (int i = 0; i < r.body.size() - 1; i++) {
+			LlvmPhi phi = (LlvmPhi) r.body.get(i);
+			if (!phi.lhs.toString().equals(v.toString()))
+				continue;
+			for (int j = 0; j < phi.labels.size(); j++)
+				if (phi.labels.get(j).value.equals(p.getName()))
+					v = phi.values.get(j);
+		}
+		return v;
+	}
+
+	/*
+	 * Replaces the jump of 'p' by the ret of returnedFrom(p). Call link()
+	 * afterwards; once every predecessor has its own ret, the block jumped
+	 * to is left unreachable, with phis of no values: removeUnreachable()
+	 * drops it.
+	 */
+	void copyReturn(Block p) {
+		LlvmValue v = returnedFrom(p);
+		Block r = byLabel.get(((LlvmBranch) p.getTerminator()).brTrue.value);
+		for (int i = 0; i < r.body.size() - 1; i++) {
+			LlvmPhi phi = (LlvmPhi) r.body.get(i);
+			for (int j = phi.labels.size() - 1; j >= 0; j--)
+				if (phi.labels.get(j).value.equals(p.getName())) {
+					phi.labels.remove(j);
+					phi.values.remove(j);
+				}
+		}
+		p.body.set(p.body.size() - 1, new LlvmRet(v));
+	}
+
+	// Whether 'b' is phis and then its terminator
+	static boolean onlyPhis(Block b) {
+		for (int i = 0; i < b.body.size() - 1; i++)
+			if (!(b.body.get(i) instanceof LlvmPhi))
+				return false;
+		return true;
+	}
+
+	// See LlvmFunction.linkUses
+	void linkUses() {
+		LlvmFunction.linkUses((LlvmDefine) header, blocks);
+	}
+
+	Block getEntry() {
+		return blocks.get(0);
+	}
+
+	List<LlvmInstruction> toInstructions() {
+		List<LlvmInstruction> instrs = new ArrayList<LlvmInstruction>();
+		if (header != null)
+			instrs.add(header);
+		for (Block b : blocks) {
+			instrs.add(b.label);
+			instrs.addAll(b.body);
+		}
+		if (footer != null)
+			instrs.add(footer);
+		return instrs;
+	}
+
+	// Drops blocks that cannot be reached from the entry block
+	boolean removeUnreachable() {
+		Set<Block> seen = new HashSet<Block>(reversePostOrder());
+		if (seen.size() == blocks.size())
+			return false;
+		List<Block> kept = new ArrayList<Block>();
+		for (Block b : blocks) {
+			if (seen.contains(b))
+				kept.add(b);
+			else
+				byLabel.remove(b.getName());
+		}
+		blocks = kept;
+		link();
+		return true;
+	}
+
+	// Drops phi entries for edges that no longer exist
+	void prunePhis() {
+		for (Block b : blocks) {
+			Set<String> preds = new HashSet<String>();
+			for (Block p : b.preds)
+				preds.add(p.getName());
+			for (LlvmInstruction instr : b.body) {
+				if (!(instr instanceof LlvmPhi))
+					break;
+				LlvmPhi phi = (LlvmPhi) instr;
+				for (int i = phi.labels.size() - 1; i >= 0; i--) {
+					if (!preds.contains(phi.labels.get(i).value)) {
+						phi.labels.remove(i);
+						phi.values.remove(i);
+					}
+				}
+			}
+		}
+	}
+
+	List<Block> reversePostOrder() {
+		List<Block> post = new ArrayList<Block>();
+		Set<Block> visited = new HashSet<Block>();
+		// iterative DFS: deep if/else chains must not blow the Java stack
+		List<Block> stack = new ArrayList<Block>();
+		List<Integer> next = new ArrayList<Integer>();
+		stack.add(getEntry());
+		next.add(0);
+		visited.add(getEntry());
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			Block b = stack.get(top);
+			int i = next.get(top);
+			if (i < b.succs.size()) {
+				next.set(top, i + 1);
+				Block s = b.succs.get(i);
+				if (visited.add(s)) {
+					stack.add(s);
+					next.add(0);
+				}
+			} else {
+				stack.remove(top);
+				next.remove(top);
+				post.add(b);
+			}
+		}
+		List<Block> rpo = new ArrayList<Block>();
+		for (int i = post.size() - 1; i >= 0; i--) {
+			post.get(i).rpo = rpo.size();
+			rpo.add(post.get(i));
+		}
+		return rpo;
+	}
+
+	// Cooper, Harvey & Kennedy, "A Simple, Fast Dominance Algorithm"
+	void computeDominators() {
+		List<Block> rpo = reversePostOrder();
+		for (Block b : blocks) {
+			b.idom = null;
+			b.domChildren.clear();
+		}
+		Block entry = getEntry();
+		entry.idom = entry;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Block b : rpo) {
+				if (b == entry)
+					continue;
+				Block newIdom = null;
+				for (Block p : b.preds) {
+					if (p.idom == null)
+						continue;
+					newIdom = newIdom == null ? p : intersect(p, newIdom);
+				}
+				if (newIdom != b.idom) {
+					b.idom = newIdom;
+					changed = true;
+				}
+			}
+		}
+		for (Block b : rpo)
+			if (b != entry)
+				b.idom.domChildren.add(b);
+	}
+
+	private static Block intersect(Block a, Block b) {
+		while (a != b) {
+			while (a.rpo > b.rpo)
+				a = a.idom;
+			while (b.rpo > a.rpo)
+				b = b.idom;
+		}
+		return a;
+	}
+
+	boolean dominates(Block a, Block b) {
+		while (true) {
+			if (a == b)
+				return true;
+			if (b.idom == b || b.idom == null)
+				return false;
+			b = b.idom;
+		}
+	}
+
+	// Requires computeDominators()
+	Map<Block, Set<Block>> dominanceFrontiers() {
+		Map<Block, Set<Block>> df = new HashMap<Block, Set<Block>>();
+		for (Block b : blocks)
+			df.put(b, new LinkedHashSet<Block>());
+		for (Block b : blocks) {
+			if (b.idom == null || b.preds.size() < 2)
+				continue;
+			for (Block p : b.preds) {
+				Block runner = p;
+				while (runner != null && runner != b.idom) {
+					df.get(runner).add(b);
+					if (runner == runner.idom)
+						break;
+					runner = runner.idom;
+				}
+			}
+		}
+		return df;
+	}
+}
@@ -0,0 +1,177 @@
+package llvm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import syntaxtree.Absyn;
+import syntaxtree.ClassDecl;
+import syntaxtree.MainClass;
+
+/*
+ * On-disk store of the code generated for each class, for incremental
+ * builds: when a recompile changes one class out of many, the others are
+ * spliced in as the text they had before, without being lowered again.
+ *
+ * A unit is the main class or one class declaration; its entry holds the
+ * rendered definitions of its methods (type and vtable declarations come
+ * from the symbol table, which is always rebuilt). The key is a SHA-256 of
+ *
+ *   - the settings that change the output (-O level, inlining, layout)
+ *   - the unit's own source (SourceFingerprint)
+ *   - for every class the unit depends on, its layout and vtable or, at
+ *     -O2, its whole source: inlining and escape analysis read the bodies
+ *     of other classes' methods
+ *
+ * A class depends on the classes it refers to, on their subclasses (an
+ * override below the static type decides whether a call is direct) and,
+ * transitively, on what those depend on.
+ */
+class ClassCache {
+	// Change when Codegen starts emitting something else for the same input
+	private static final String VERSION = "7";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File directory;
+
+	// Rendered text of a unit and the number of instructions in it
+	static class Entry {
+		final String text;
+		final int count;
+
+		Entry(String text, int count) {
+			this.text = text;
+			this.count = count;
+		}
+	}
+
+	ClassCache(File directory) {
+		this.directory = directory;
+	}
+
+	/*
+	 * For each unit, the units it depends on (itself included), in source
+	 * order. Unit 0 is the main class, the others follow the class list.
+	 */
+	static List<Set<Integer>> dependencies(List<Absyn> units,
+			List<SourceFingerprint> sources, SymTab symTab) {
+		Map<String, Integer> unitOf = new HashMap<String, Integer>();
+		for (int u = 0; u < units.size(); u++)
+			unitOf.put(nameOf(units.get(u)), u);
+
+		List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+		for (int u = 0; u < units.size(); u++) {
+			Set<Integer> closure = new TreeSet<Integer>();
+			List<String> work = new ArrayList<String>();
+			work.add(nameOf(units.get(u)));
+			while (!work.isEmpty()) {
+				String name = work.remove(work.size() - 1);
+				Integer d = unitOf.get(name);
+				if (d == null || !closure.add(d))
+					continue;
+				work.addAll(sources.get(d).getReferences());
+				for (ClassNode sub : symTab.hierarchy.getSubclasses(symTab.classes
+						.get(name)))
+					work.add(sub.getName());
+			}
+			dependencies.add(closure);
+		}
+		return dependencies;
+	}
+
+	// 'wholeSources': whether the bodies of the dependencies matter (-O2)
+	static String key(int unit, List<SourceFingerprint> sources,
+			List<Set<Integer>> dependencies, List<Absyn> units, SymTab symTab,
+			String settings, boolean wholeSources) {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+		update(sha, VERSION);
+		update(sha, settings);
+		update(sha, sources.get(unit).getText());
+		for (int d : dependencies.get(unit)) {
+			if (wholeSources) {
+				update(sha, sources.get(d).getText());
+			} else {
+				ClassNode c = symTab.classes.get(nameOf(units.get(d)));
+				update(sha, c.getClassDeclaration().toString());
+				update(sha, c.getVtableDeclaration().toString());
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha.digest())
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+
+	// Length first, so that no two sequences of strings hash alike
+	private static void update(MessageDigest sha, String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		sha.update((bytes.length + ":").getBytes(UTF8));
+		sha.update(bytes);
+	}
+
+	private static String nameOf(Absyn unit) {
+		if (unit instanceof MainClass)
+			return ((MainClass) unit).className.s;
+		return ((ClassDecl) unit).name.s;
+	}
+
+	/*
+	 * The entry stored under 'key', or null. A store that cannot be read
+	 * is a miss: the unit is just compiled again.
+	 */
+	Entry get(String key) {
+		Path file = new File(directory, key + ".ll").toPath();
+		try {
+			String content = new String(Files.readAllBytes(file), UTF8);
+			int newline = content.indexOf('\n');
+			return new Entry(content.substring(newline + 1),
+					Integer.parseInt(content.substring(0, newline)));
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// truncated or foreign file
+			return null;
+		}
+	}
+
+	/*
+	 * Stores 'entry' under 'key'. It is written to a temporary file and
+	 * renamed, so a compilation running at the same time sees the whole
+	 * entry or none. Failures leave the cache as it was.
+	 */
+	void put(String key, Entry entry) {
+		Path tmp = null;
+		try {
+			Files.createDirectories(directory.toPath());
+			tmp = Files.createTempFile(directory.toPath(), key, ".tmp");
+			Files.write(tmp, (entry.count + "\n" + entry.text).getBytes(UTF8));
+			Files.move(tmp, new File(directory, key + ".ll").toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		} catch (IOException e) {
+			// not cached: the next build compiles the unit again
+		} finally {
+			if (tmp != null)
+				tmp.toFile().delete();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Class hierarchy analysis (CHA). MiniJava is a closed world: every class is
+ * in the program, so a call whose method is not overridden anywhere below
+ * the receiver's static type has a single possible target and can be made
+ * a direct call instead of going through the vtable.
+ */
+class ClassHierarchy {
+	private Map<String, List<ClassNode>> subclasses;
+
+	ClassHierarchy(Collection<ClassNode> classes) {
+		subclasses = new HashMap<String, List<ClassNode>>();
+		for (ClassNode c : classes)
+			subclasses.put(c.getName(), new ArrayList<ClassNode>());
+		for (ClassNode c : classes)
+			if (c.superClassName != null)
+				subclasses.get(c.superClassName).add(c);
+	}
+
+	List<ClassNode> getSubclasses(ClassNode c) {
+		return subclasses.get(c.getName());
+	}
+
+	/*
+	 * The only method body a call of 'method' on a receiver statically typed
+	 * 'type' can reach, or null when some subclass overrides it.
+	 */
+	MethodNode resolve(ClassNode type, String method) {
+		if (isOverriddenBelow(type, method))
+			return null;
+		return type.lookupMethod(method);
+	}
+
+	private boolean isOverriddenBelow(ClassNode type, String method) {
+		for (ClassNode sub : getSubclasses(type))
+			if (sub.methods.containsKey(method)
+					|| isOverriddenBelow(sub, method))
+				return true;
+		return false;
+	}
+}
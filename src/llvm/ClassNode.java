@@ -0,0 +1,205 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.DataLayout;
+import llvmast.LlvmArray;
+import llvmast.LlvmClassType;
+import llvmast.LlvmConstantDeclaration;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmNamedValue;
+import llvmast.LlvmPointer;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmStructure;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+class ClassNode extends LlvmType {
+	private String name;
+	public List<LlvmValue> varList;
+	private List<LlvmValue> fields; // varList na ordem do layout
+	private List<LlvmValue> fieldTable; // campos herdados + fields
+	private Map<String, Slot> fieldSlots; // nome do campo -> slot (0 e a vtable)
+	public Map<String, LlvmValue> vars;
+	public List<MethodNode> methodList;
+	public Map<String, MethodNode> methods;
+	public String superClassName;
+	public ClassNode superClass;
+	private List<MethodNode> vtable;
+
+	// Tipo do primeiro campo de todo objeto: ponteiro para a vtable
+	public static final LlvmType VTABLE_POINTER = new LlvmPointer(
+			new LlvmPointer(LlvmPrimitiveType.I8));
+
+	public ClassNode(String nameClass, List<LlvmValue> varList) {
+		this.name = nameClass;
+		this.varList = varList;
+		this.vars = new HashMap<String, LlvmValue>();
+		this.fields = new ArrayList<LlvmValue>();
+
+		if (varList != null) {
+			for (LlvmValue val : varList) {
+				vars.put(val.toString(), val);
+			}
+			fields.addAll(varList);
+		}
+
+		this.methodList = new LinkedList<MethodNode>();
+		this.methods = new HashMap<String, MethodNode>();
+	}
+
+	public boolean hasVariable(String varName) {
+		return vars.containsKey(varName);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public LlvmClassType getClassType() {
+		return new LlvmClassType(this.name);
+	}
+
+	public LlvmPointer getClassPointer() {
+		return new LlvmPointer(new LlvmClassType(this.name));
+	}
+
+	public LlvmNamedValue getClassReference() {
+		return new LlvmNamedValue("%this", new LlvmPointer(getClassType()));
+	}
+
+	/*
+	 * Flat layout: the vtable pointer, then the fields of every class of
+	 * the chain from the root down. A superclass' struct is a prefix of its
+	 * subclasses' (same fields, same offsets), so upcasts stay bitcasts.
+	 */
+	public LlvmStructure getStructure() {
+		List<LlvmType> typeList = new LinkedList<LlvmType>();
+		typeList.add(VTABLE_POINTER);
+		for (LlvmValue field : getFieldTable())
+			typeList.add(field.type);
+		return new LlvmStructure(typeList);
+	}
+
+	// Inherited fields first, in their own class' layout order
+	public List<LlvmValue> getFieldTable() {
+		if (fieldTable == null) {
+			fieldTable = new ArrayList<LlvmValue>();
+			fieldSlots = new HashMap<String, Slot>();
+			if (superClass != null)
+				fieldTable.addAll(superClass.getFieldTable());
+			fieldTable.addAll(fields);
+			// Later (more derived) declarations win: a redeclared field
+			// hides the inherited one
+			for (int i = 0; i < fieldTable.size(); i++) {
+				LlvmValue field = fieldTable.get(i);
+				fieldSlots.put(field.toString().substring(1),
+						Slot.field(i + 1, field));
+			}
+		}
+		return fieldTable;
+	}
+
+	// Own and inherited fields by source name (no %)
+	Map<String, Slot> getFieldSlots() {
+		getFieldTable();
+		return fieldSlots;
+	}
+
+	/*
+	 * Most aligned fields first (pointers, then i32, then i1): each field
+	 * then starts right where the previous one ends and only the tail of
+	 * the object may need padding. The sort is stable, so fields with the
+	 * same alignment keep their declaration order.
+	 */
+	public void orderFields(final DataLayout layout) {
+		Collections.sort(fields, new Comparator<LlvmValue>() {
+			public int compare(LlvmValue a, LlvmValue b) {
+				return layout.alignOf(b.type) - layout.alignOf(a.type);
+			}
+		});
+	}
+
+	public LlvmInstruction getClassDeclaration() {
+		// TODO Auto-generated method stub
+		return new LlvmInstruction() {
+			public String toString() {
+				return getClassType() + " = type " + getStructure();
+			}
+		};
+	}
+
+	public void addMethod(MethodNode methodNode) {
+		methodNode.owner = this;
+		methodList.add(methodNode);
+		methods.put(methodNode.name, methodNode);
+	}
+
+	// Own or inherited method
+	public MethodNode lookupMethod(String methodName) {
+		for (ClassNode c = this; c != null; c = c.superClass)
+			if (c.methods.containsKey(methodName))
+				return c.methods.get(methodName);
+		return null;
+	}
+
+	// Inherited slots keep their index; overrides replace them in place
+	public List<MethodNode> getVtable() {
+		if (vtable == null) {
+			vtable = new ArrayList<MethodNode>();
+			if (superClass != null)
+				vtable.addAll(superClass.getVtable());
+			for (MethodNode m : methodList) {
+				int slot = indexOf(vtable, m.name);
+				if (slot < 0)
+					vtable.add(m);
+				else
+					vtable.set(slot, m);
+			}
+		}
+		return vtable;
+	}
+
+	public int getVtableIndex(String methodName) {
+		return indexOf(getVtable(), methodName);
+	}
+
+	private static int indexOf(List<MethodNode> vtable, String methodName) {
+		for (int i = 0; i < vtable.size(); i++)
+			if (vtable.get(i).name.equals(methodName))
+				return i;
+		return -1;
+	}
+
+	public LlvmNamedValue getVtableReference() {
+		return new LlvmNamedValue("@.vtable." + name, new LlvmPointer(
+				new LlvmArray(getVtable().size(), new LlvmPointer(
+						LlvmPrimitiveType.I8))));
+	}
+
+	public LlvmInstruction getVtableDeclaration() {
+		List<MethodNode> slots = getVtable();
+		LlvmType slotType = new LlvmPointer(LlvmPrimitiveType.I8);
+		String init = "[";
+		for (int i = 0; i < slots.size(); i++) {
+			MethodNode m = slots.get(i);
+			init += slotType + " bitcast ("
+					+ new LlvmPointer(m.getFunctionType(m.owner)) + " "
+					+ m.getFunctionName(m.owner) + " to " + slotType + ")";
+			if (i + 1 < slots.size())
+				init += ", ";
+		}
+		init += "]";
+		if (slots.isEmpty())
+			init = "zeroinitializer";
+		return new LlvmConstantDeclaration(getVtableReference().name,
+				"constant " + new LlvmArray(slots.size(), slotType) + " "
+						+ init);
+	}
+}
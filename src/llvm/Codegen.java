@@ -35,23 +35,36 @@ como guia no desenvolvimento deste projeto.
  ****************************************************/
 package llvm;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import llvmast.LlvmAlloca;
-import llvmast.LlvmAnd;
-import llvmast.LlvmArray;
+import llvmast.LlvmBitcast;
 import llvmast.LlvmBool;
 import llvmast.LlvmBranch;
 import llvmast.LlvmCall;
 import llvmast.LlvmClassType;
 import llvmast.LlvmCloseDefinition;
 import llvmast.LlvmConstantDeclaration;
+import llvmast.LlvmContext;
 import llvmast.LlvmDefine;
+import llvmast.LlvmEmitter;
 import llvmast.LlvmExternalDeclaration;
+import llvmast.LlvmFunction;
 import llvmast.LlvmGetElementPointer;
 import llvmast.LlvmIcmp;
 import llvmast.LlvmInstruction;
@@ -61,19 +74,23 @@ import llvmast.LlvmLabelValue;
 import llvmast.LlvmLoad;
 import llvmast.LlvmMalloc;
 import llvmast.LlvmMinus;
+import llvmast.LlvmModule;
 import llvmast.LlvmNamedValue;
+import llvmast.LlvmNull;
+import llvmast.LlvmPhi;
 import llvmast.LlvmPlus;
 import llvmast.LlvmPointer;
 import llvmast.LlvmPrimitiveType;
 import llvmast.LlvmRegister;
 import llvmast.LlvmRet;
 import llvmast.LlvmStore;
-import llvmast.LlvmStructure;
 import llvmast.LlvmTimes;
 import llvmast.LlvmType;
+import llvmast.LlvmUnreachable;
 import llvmast.LlvmValue;
 import llvmast.LlvmXor;
 import semant.Env;
+import syntaxtree.Absyn;
 import syntaxtree.And;
 import syntaxtree.ArrayAssign;
 import syntaxtree.ArrayLength;
@@ -117,100 +134,508 @@ import syntaxtree.While;
 public class Codegen extends VisitorAdapter {
 	private List<LlvmInstruction> assembler;
 	private Codegen codeGenerator;
+	private LlvmEmitter emitter;
+	static final String PRINT_INT = "@print_int";
+	static final String SIZE_TRAP = "@arraySizeFailed";
+
+	private boolean parallel = true;
+	private boolean reorderFields = true;
+	private int inlineThreshold = Integer.getInteger("minijava.inline", 20);
+	private int optLevel = Integer.getInteger("minijava.opt", PassManager.O2);
+	private List<FunctionTask> functions; // in source order
+	private List<Absyn> units; // main class, then the class declarations
+	private File cacheDirectory = cacheProperty();
+	private ClassCache cache;
+	private Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
 
 	private SymTab symTab;
 	private ClassNode classEnv; // Aponta para a classe atualmente em uso em
 								// symTab
 	private MethodNode methodEnv; // Aponta para a metodo atualmente em uso em
 									// symTab
+	private NameResolver names; // Slots dos nomes do metodo atual
 
 	public Codegen() {
-		assembler = new LinkedList<LlvmInstruction>();
+		assembler = new ArrayList<LlvmInstruction>();
 		symTab = new SymTab();
 	}
 
-	public LlvmRegister getAttribute(LlvmNamedValue value) {
-
-		String name = value.name;
-		LlvmValue element;
-
-		// Global Variable
-		if (classEnv == null) {
+	/*
+	 * With 'parallel' set (the default), the functions of a program are
+	 * lowered as independent fork-join tasks. The output is the same either
+	 * way; turn it off when the caller already runs one compilation per core
+	 * (e.g. main.Batch).
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
 
-			// } else if(methodEnv != null) { // This is a given already
-		} else {
+	// Lays the fields of each class out by decreasing alignment, so that
+	// objects carry as little padding as possible (default: on)
+	public void setFieldReordering(boolean reorderFields) {
+		this.reorderFields = reorderFields;
+	}
 
-			// Is a formal
-			if (methodEnv.hasFormal(name)) {
-				element = methodEnv.formals.get(name);
+	// Largest callee (in instructions) copied into its callers; 0 turns
+	// inlining off. Default: the property minijava.inline, or 20.
+	public void setInlineThreshold(int inlineThreshold) {
+		this.inlineThreshold = inlineThreshold;
+	}
 
-				// Is a variable
-			} else if (methodEnv.hasLocalVariable(name)) {
-				element = methodEnv.vars.get(name);
+	// 0, 1 or 2, as -O0..-O2 (see PassManager). Default: the property
+	// minijava.opt, or 2.
+	public void setOptimizationLevel(int optLevel) {
+		this.optLevel = optLevel;
+	}
 
-				// Is an attribute in class
-			} else {
+	/*
+	 * Directory of the incremental build cache (see ClassCache), or null
+	 * for none. Default: the property minijava.cache, if set.
+	 */
+	public void setCacheDirectory(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
 
-				LlvmRegister R = new LlvmRegister(value.type);
-				assembler.add(new LlvmGetElementPointer(R, classEnv
-						.getClassReference(), classEnv.getOffsetTo("%"
-						+ value.name)));
-				return new LlvmRegister(R.name, new LlvmPointer(R.type));
-			}
-		}
+	private static File cacheProperty() {
+		String dir = System.getProperty("minijava.cache");
+		return dir == null ? null : new File(dir);
+	}
 
-		return null;
+	/*
+	 * What the optimizations did in the last translation, summed over all
+	 * functions (e.g. how many bounds checks were eliminated). Also printed
+	 * to stderr when the property minijava.stats is true.
+	 */
+	public Map<String, Integer> getStatistics() {
+		return statistics;
 	}
 
 	// Método de entrada do Codegen
 	public String translate(Program p, Env env) {
+		StringBuilder r = new StringBuilder();
+		try {
+			translate(p, env, r);
+		} catch (IOException e) {
+			// StringBuilder never throws
+			throw new IllegalStateException(e);
+		}
+		return r.toString();
+	}
+
+	public void translate(Program p, Env env, WritableByteChannel channel)
+			throws IOException {
+		Writer out = new BufferedWriter(Channels.newWriter(channel, "UTF-8"),
+				1 << 16);
+		translate(p, env, out);
+		out.flush();
+	}
+
+	// Streams the module to 'out', one function at a time. Safe to call
+	// from several threads at once: each call numbers its own registers.
+	public void translate(Program p, Env env, Appendable out)
+			throws IOException {
+		LlvmContext previous = LlvmContext.bind(new LlvmContext());
+		try {
+			translateModule(p, out);
+		} finally {
+			LlvmContext.bind(previous);
+		}
+		statistics = codeGenerator.statistics;
+		if (Boolean.getBoolean("minijava.stats"))
+			for (Map.Entry<String, Integer> e : statistics.entrySet())
+				System.err.println(e.getKey() + ": " + e.getValue());
+	}
+
+	private void translateModule(Program p, Appendable out) throws IOException {
 		codeGenerator = new Codegen();
+		codeGenerator.emitter = new LlvmEmitter(out);
+		codeGenerator.parallel = parallel;
+		codeGenerator.inlineThreshold = inlineThreshold;
+		codeGenerator.optLevel = optLevel;
+		if (cacheDirectory != null)
+			codeGenerator.cache = new ClassCache(cacheDirectory);
+		codeGenerator.symTab.reorderFields = reorderFields;
 
 		// Preenchendo a Tabela de Símbolos
 		// Quem quiser usar 'env', apenas comente essa linha
 		codeGenerator.symTab.FillTabSymbol(p);
 
-		// Formato da String para o System.out.printlnijava "%d\n"
-		codeGenerator.assembler.add(new LlvmConstantDeclaration(
-				"@.formatting.string",
-				"private constant [4 x i8] c\"%d\\0A\\00\""));
-
 		// NOTA: sempre que X.accept(Y), então Y.visit(X);
 		// NOTA: Logo, o comando abaixo irá chamar codeGenerator.visit(Program),
 		// linha 75
-		p.accept(codeGenerator);
-
-		// Link do printf
-		List<LlvmType> pts = new LinkedList<LlvmType>();
-		pts.add(new LlvmPointer(LlvmPrimitiveType.I8));
-		pts.add(LlvmPrimitiveType.DOTDOTDOT);
-		codeGenerator.assembler.add(new LlvmExternalDeclaration("@printf",
-				LlvmPrimitiveType.I32, pts));
+		try {
+			p.accept(codeGenerator);
+		} catch (EmitterException e) {
+			throw e.getCause();
+		}
+
+		// Saida do System.out.println (runtime/runtime.c)
+		List<LlvmType> printpts = new LinkedList<LlvmType>();
+		printpts.add(LlvmPrimitiveType.I32);
+		codeGenerator.assembler.add(new LlvmExternalDeclaration(PRINT_INT,
+				LlvmPrimitiveType.VOID, printpts));
 		List<LlvmType> mallocpts = new LinkedList<LlvmType>();
 		mallocpts.add(LlvmPrimitiveType.I32);
 		codeGenerator.assembler.add(new LlvmExternalDeclaration("@malloc",
 				new LlvmPointer(LlvmPrimitiveType.I8), mallocpts));
+		// Trap de indice fora do vetor (runtime/runtime.c)
+		List<LlvmType> trappts = new LinkedList<LlvmType>();
+		trappts.add(LlvmPrimitiveType.I32);
+		trappts.add(LlvmPrimitiveType.I32);
+		trappts.add(LlvmPrimitiveType.I32);
+		codeGenerator.assembler.add(new LlvmExternalDeclaration(
+				"@boundCheckFailed", LlvmPrimitiveType.VOID, trappts));
+		// Trap de tamanho de vetor negativo ou grande demais
+		List<LlvmType> sizetrappts = new LinkedList<LlvmType>();
+		sizetrappts.add(LlvmPrimitiveType.I32);
+		sizetrappts.add(LlvmPrimitiveType.I32);
+		codeGenerator.assembler.add(new LlvmExternalDeclaration(SIZE_TRAP,
+				LlvmPrimitiveType.VOID, sizetrappts));
+		// Arena de objetos (runtime/runtime.c)
+		codeGenerator.assembler.add(new LlvmConstantDeclaration(
+				ArenaAllocation.NEXT, "external global i8*"));
+		codeGenerator.assembler.add(new LlvmConstantDeclaration(
+				ArenaAllocation.FREE, "external global i32"));
+		List<LlvmType> refillpts = new LinkedList<LlvmType>();
+		refillpts.add(LlvmPrimitiveType.I32);
+		codeGenerator.assembler.add(new LlvmExternalDeclaration(
+				ArenaAllocation.REFILL, new LlvmPointer(LlvmPrimitiveType.I8),
+				refillpts));
+
+		codeGenerator.emitter.emitAll(codeGenerator.assembler);
+		codeGenerator.assembler.clear();
+		codeGenerator.emitter.flush();
+	}
+
+	// Writes out everything lowered so far. Called after each function, so
+	// 'assembler' never holds more than one function body.
+	private void drain() {
+		if (emitter == null)
+			return;
+		try {
+			emitter.emitAll(assembler);
+		} catch (IOException e) {
+			throw new EmitterException(e);
+		}
+		assembler.clear();
+	}
+
+	// Optimizes the function just lowered (the only thing left in
+	// 'assembler') and writes it out
+	private void finishFunction() {
+		optimize(PassManager.function(optLevel));
+		drain();
+	}
+
+	// What is left once every function went through finishFunction: the
+	// optimizations that depend on the other functions of the program
+	private void finishProgram(EscapeAnalysis escapes) {
+		optimize(PassManager.program(optLevel, escapes));
+	}
 
-		String r = new String();
-		for (LlvmInstruction instr : codeGenerator.assembler)
-			r += instr + "\n";
-		return r;
+	private void optimize(PassManager passes) {
+		assembler = passes.run(assembler);
+		for (Map.Entry<String, Integer> e : passes.getStatistics().entrySet())
+			count(e.getKey(), e.getValue());
 	}
 
+	private void count(String key, int n) {
+		Integer previous = statistics.get(key);
+		statistics.put(key, previous == null ? n : previous + n);
+	}
+
+	// Carries an IOException out of the visit methods, which cannot throw it
+	private static class EmitterException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		EmitterException(IOException cause) {
+			super(cause);
+		}
+
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	/*
+	 * Every function (main and each method) is lowered and optimized on its
+	 * own, with its own register and label numbering, so they can be
+	 * generated in any order and concatenated afterwards in source order.
+	 * At -O2, between lowering and rendering, the program-wide analyses look
+	 * at all the functions at once. Below, each function is rendered as soon
+	 * as it is lowered and its instructions are dropped, so only the
+	 * functions being worked on are held in memory.
+	 */
 	public LlvmValue visit(Program n) {
-		n.mainClass.accept(this);
+		drain();
+		collectFunctions(n);
 
+		// Vtables are built here, before any task reads them
+		List<LlvmInstruction> declarations = new ArrayList<LlvmInstruction>();
+		for (ClassNode c : symTab.classes.values())
+			declarations.add(c.getClassDeclaration());
 		for (ClassNode c : symTab.classes.values())
-			assembler.add(c.getClassDeclaration());
+			declarations.add(c.getVtableDeclaration());
+
+		ClassCache.Entry[] cached = new ClassCache.Entry[units.size()];
+		String[] keys = new String[units.size()];
+		List<FunctionTask> lowered = lookUp(keys, cached);
+
+		boolean forked = parallel && lowered.size() > 1;
+		if (optLevel >= PassManager.O2) {
+			lowerAll(lowered, forked);
+			EscapeAnalysis escapes = wholeProgram(lowered);
+			for (FunctionTask f : lowered)
+				f.escapes = escapes;
+		}
+		if (forked)
+			for (FunctionTask f : lowered)
+				if (cached[f.unit] == null)
+					pool().execute(f);
+
+		int i = 0;
+		for (int u = 0; u < units.size(); u++) {
+			StringBuilder text = new StringBuilder();
+			int instructions = 0;
+			if (cached[u] != null) {
+				text.append(cached[u].text);
+				instructions = cached[u].count;
+				count("cached classes", 1);
+			}
+			for (; i < functions.size() && functions.get(i).unit == u; i++) {
+				FunctionTask f = functions.get(i);
+				functions.set(i, null);
+				if (cached[u] != null)
+					continue;
+				text.append(forked ? f.join() : f.invoke());
+				instructions += f.getCount();
+				for (Map.Entry<String, Integer> e : f.getStatistics()
+						.entrySet())
+					count(e.getKey(), e.getValue());
+			}
+			if (cached[u] == null && cache != null) {
+				cache.put(keys[u], new ClassCache.Entry(text.toString(),
+						instructions));
+				count("compiled classes", 1);
+			}
+			try {
+				emitter.emitRendered(text, instructions);
+			} catch (IOException e) {
+				throw new EmitterException(e);
+			}
+			if (u == 0) {
+				assembler.addAll(declarations);
+				drain();
+			}
+		}
+		return null;
+	}
 
+	/*
+	 * Fills in the cache key of each unit (the main class, then each class)
+	 * and the entries found for them, and returns the functions to lower:
+	 * those of the units not found and, at -O2, of the units these depend
+	 * on, which inlining and escape analysis read. Without a cache, every
+	 * function.
+	 */
+	private List<FunctionTask> lookUp(String[] keys, ClassCache.Entry[] cached) {
+		if (cache == null)
+			return functions;
+		List<SourceFingerprint> sources = new ArrayList<SourceFingerprint>();
+		for (Absyn unit : units)
+			sources.add(new SourceFingerprint(unit));
+		List<Set<Integer>> dependencies = ClassCache.dependencies(units,
+				sources, symTab);
+		String settings = "O" + optLevel + " inline " + inlineThreshold
+				+ " reorder " + symTab.reorderFields;
+		boolean wholeSources = optLevel >= PassManager.O2;
+
+		Set<Integer> needed = new HashSet<Integer>();
+		for (int u = 0; u < units.size(); u++) {
+			keys[u] = ClassCache.key(u, sources, dependencies, units, symTab,
+					settings, wholeSources);
+			cached[u] = cache.get(keys[u]);
+			if (cached[u] == null) {
+				needed.add(u);
+				if (wholeSources)
+					needed.addAll(dependencies.get(u));
+			}
+		}
+		List<FunctionTask> lowered = new ArrayList<FunctionTask>();
+		for (FunctionTask f : functions)
+			if (needed.contains(f.unit))
+				lowered.add(f);
+		return lowered;
+	}
+
+	private void collectFunctions(Program n) {
+		functions = new ArrayList<FunctionTask>();
+		units = new ArrayList<Absyn>();
+		units.add(n.mainClass);
+		addFunction(null, n.mainClass);
 		for (util.List<ClassDecl> c = n.classList; c != null; c = c.tail)
 			c.head.accept(this);
+	}
 
-		return null;
+	// Queues 'function' (MainClass or MethodDecl) in the current unit
+	private void addFunction(ClassNode classEnv, Absyn function) {
+		functions.add(new FunctionTask(symTab, classEnv, function, optLevel,
+				units.size() - 1));
 	}
 
-	public LlvmValue visit(MainClass n) {
+	// Lowers and optimizes every function of 'p' without rendering any text,
+	// so that lowering and emission can be measured apart (bench/)
+	static List<List<LlvmInstruction>> lower(Program p, SymTab symTab) {
+		Codegen codegen = new Codegen();
+		codegen.symTab = symTab;
+		codegen.collectFunctions(p);
+		lowerAll(codegen.functions, false);
+		EscapeAnalysis escapes = codegen.wholeProgram(codegen.functions);
+		List<List<LlvmInstruction>> code = new ArrayList<List<LlvmInstruction>>();
+		for (FunctionTask f : codegen.functions)
+			code.add(f.finish(escapes));
+		return code;
+	}
+
+	private static void lowerAll(List<FunctionTask> functions, boolean forked) {
+		if (!forked) {
+			for (FunctionTask f : functions)
+				f.lower();
+			return;
+		}
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (final FunctionTask f : functions)
+			tasks.add(pool().submit(new Runnable() {
+				public void run() {
+					f.lower();
+				}
+			}));
+		for (ForkJoinTask<?> t : tasks)
+			t.join();
+	}
+
+	/*
+	 * The program-wide part of -O2: the lowered functions are gathered into
+	 * a module and inlined into each other (bottom-up over the call graph),
+	 * then handed back to their tasks. Returns what escapes from each
+	 * function; null below -O2, where there is nothing to do.
+	 */
+	private EscapeAnalysis wholeProgram(List<FunctionTask> functions) {
+		if (optLevel < PassManager.O2)
+			return null;
+		LlvmModule module = new LlvmModule();
+		List<LlvmContext> contexts = new ArrayList<LlvmContext>();
+		for (FunctionTask f : functions) {
+			module.add(new LlvmFunction(f.getCode()));
+			contexts.add(f.context);
+		}
+		Inliner inliner = new Inliner(inlineThreshold);
+		inliner.run(module, contexts);
+		count("inlined calls", inliner.getInlinedCount());
+		for (int i = 0; i < functions.size(); i++)
+			functions.get(i).worker.assembler = module.functions.get(i)
+					.toInstructions();
+		return new EscapeAnalysis(module);
+	}
+
+	private static ForkJoinPool pool;
+
+	private static synchronized ForkJoinPool pool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	/*
+	 * Lowers one function into a private buffer and, once the whole program
+	 * is lowered (at -O2; below, right away), finishes and renders it. The
+	 * instructions are dropped once rendered. Each task has its own Codegen
+	 * (sharing the read-only symbol table) and its own LlvmContext, so %tmp
+	 * and label numbers restart in every function.
+	 */
+	private static class FunctionTask extends RecursiveTask<String> {
+		private static final long serialVersionUID = 1L;
+
+		private final SymTab symTab;
+		private final ClassNode classEnv;
+		private final Absyn function; // MainClass ou MethodDecl
+		private final int optLevel;
+		private final int unit; // index in Codegen.units
+		private Codegen worker;
+		private LlvmContext context;
+		private EscapeAnalysis escapes; // set before the task is run
+		private int count;
+		private Map<String, Integer> statistics;
+
+		FunctionTask(SymTab symTab, ClassNode classEnv, Absyn function,
+				int optLevel, int unit) {
+			this.symTab = symTab;
+			this.classEnv = classEnv;
+			this.function = function;
+			this.optLevel = optLevel;
+			this.unit = unit;
+		}
+
+		protected String compute() {
+			if (worker == null)
+				lower(); // no program-wide phase
+			StringBuilder text = new StringBuilder();
+			LlvmEmitter out = new LlvmEmitter(text);
+			try {
+				out.emitAll(finish(escapes));
+			} catch (IOException e) {
+				// StringBuilder never throws
+				throw new IllegalStateException(e);
+			}
+			count = out.getCount();
+			worker = null;
+			return text.toString();
+		}
+
+		// Lowering and the optimizations local to the function. Without an
+		// emitter the worker keeps the optimized function.
+		void lower() {
+			worker = new Codegen();
+			worker.symTab = symTab;
+			worker.classEnv = classEnv;
+			worker.optLevel = optLevel;
+			context = new LlvmContext();
+
+			LlvmContext previous = LlvmContext.bind(context);
+			try {
+				function.accept(worker);
+			} finally {
+				LlvmContext.bind(previous);
+			}
+		}
+
+		List<LlvmInstruction> getCode() {
+			return worker.assembler;
+		}
+
+		// Numbering goes on where lower() stopped
+		List<LlvmInstruction> finish(EscapeAnalysis escapes) {
+			LlvmContext previous = LlvmContext.bind(context);
+			try {
+				worker.finishProgram(escapes);
+			} finally {
+				LlvmContext.bind(previous);
+			}
+			statistics = worker.statistics;
+			return worker.assembler;
+		}
 
+		// Instructions in the rendered function
+		int getCount() {
+			return count;
+		}
+
+		Map<String, Integer> getStatistics() {
+			return statistics;
+		}
+	}
+
+	public LlvmValue visit(MainClass n) {
 		// definicao do main
 		assembler.add(new LlvmDefine("@main", LlvmPrimitiveType.I32,
 				new LinkedList<LlvmValue>()));
@@ -231,12 +656,16 @@ public class Codegen extends VisitorAdapter {
 		assembler.add(new LlvmLoad(R2, R1));
 		assembler.add(new LlvmRet(R2));
 		assembler.add(new LlvmCloseDefinition());
+		finishFunction();
 		return null;
 	}
 
 	public LlvmValue visit(Plus n) {
 		LlvmValue v1 = n.lhs.accept(this);
 		LlvmValue v2 = n.rhs.accept(this);
+		LlvmValue folded = ConstantFolder.plus(v1, v2);
+		if (folded != null)
+			return folded;
 		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I32);
 		assembler.add(new LlvmPlus(lhs, LlvmPrimitiveType.I32, v1, v2));
 		return lhs;
@@ -246,28 +675,11 @@ public class Codegen extends VisitorAdapter {
 
 		LlvmValue v = n.exp.accept(this);
 
-		// getelementptr:
-		LlvmRegister lhs = new LlvmRegister(new LlvmPointer(
-				LlvmPrimitiveType.I8));
-		LlvmRegister src = new LlvmNamedValue("@.formatting.string",
-				new LlvmPointer(new LlvmArray(4, LlvmPrimitiveType.I8)));
-		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-		offsets.add(new LlvmIntegerLiteral(0));
-		offsets.add(new LlvmIntegerLiteral(0));
-		List<LlvmType> pts = new LinkedList<LlvmType>();
-		pts.add(new LlvmPointer(LlvmPrimitiveType.I8));
+		// print_int (runtime/runtime.c): escreve no buffer de saida
 		List<LlvmValue> args = new LinkedList<LlvmValue>();
-		args.add(lhs);
 		args.add(v);
-		assembler.add(new LlvmGetElementPointer(lhs, src, offsets));
-
-		pts = new LinkedList<LlvmType>();
-		pts.add(new LlvmPointer(LlvmPrimitiveType.I8));
-		pts.add(LlvmPrimitiveType.DOTDOTDOT);
-
-		// printf:
-		assembler.add(new LlvmCall(new LlvmRegister(LlvmPrimitiveType.I32),
-				LlvmPrimitiveType.I32, pts, "@printf", args));
+		assembler.add(new LlvmCall(null, LlvmPrimitiveType.VOID, PRINT_INT,
+				args));
 		return null;
 	}
 
@@ -276,44 +688,42 @@ public class Codegen extends VisitorAdapter {
 	};
 
 	// Todos os visit's que devem ser implementados
+	// As classes so enfileiram seus metodos; ver visit(Program)
 	public LlvmValue visit(ClassDeclSimple n) {
 
 		classEnv = symTab.classes.get(n.name.s);
 
 		// Method Declarations
+		units.add(n);
 		for (util.List<MethodDecl> methodList = n.methodList; methodList != null; methodList = methodList.tail) {
-			methodList.head.accept(this);
+			addFunction(classEnv, methodList.head);
 		}
 		return null;
 	}
 
-	// TODO
 	public LlvmValue visit(ClassDeclExtends n) {
 		classEnv = symTab.classes.get(n.name.s);
-		LlvmValue v = n.superClass.accept(this);
 
 		// Method Declarations
+		units.add(n);
 		for (util.List<MethodDecl> methodList = n.methodList; methodList != null; methodList = methodList.tail) {
-			methodList.head.accept(this);
+			addFunction(classEnv, methodList.head);
 		}
 		return null;
 
 	}
 
 	public LlvmValue visit(VarDecl n) {
-		LlvmValue value = n.type.accept(this);
-		LlvmNamedValue v = new LlvmNamedValue("%" + n.name.s, value.type);
-		if (methodEnv != null) {
-			assembler.add(new LlvmAlloca(v, value.type,
-					new LinkedList<LlvmValue>()));
-		}
-		// Alloca se pertence a uma declaracao de metodo
-		return v;
+		Slot local = names.get(n.name);
+		assembler.add(new LlvmAlloca(local.address, local.type,
+				new LinkedList<LlvmValue>()));
+		return local.address;
 	}
 
 	public LlvmValue visit(MethodDecl n) {
 
 		methodEnv = classEnv.methods.get(n.name.s);
+		names = new NameResolver(classEnv, methodEnv, n);
 
 		// define
 		assembler.add(methodEnv.getFunctionDefinition(classEnv));
@@ -322,14 +732,11 @@ public class Codegen extends VisitorAdapter {
 		assembler.add(new LlvmLabel(new LlvmLabelValue("entry")));
 
 		// alloc formals
-		for (LlvmValue val : methodEnv.formalList) {
-			if (!(val.toString().equals("%this"))) {
-				LlvmRegister R1 = new LlvmRegister(val.toString() + "_tmp",
-						new LlvmPointer(val.type));
-				assembler.add(new LlvmAlloca(R1, val.type,
-						new LinkedList<LlvmValue>()));
-				assembler.add(new LlvmStore(val, R1));
-			}
+		for (Slot formal : names.getFormals()) {
+			assembler.add(new LlvmAlloca(formal.address, formal.type,
+					new LinkedList<LlvmValue>()));
+			assembler.add(new LlvmStore(methodEnv.formalList.get(formal.index),
+					formal.address));
 		}
 
 		// alloc vars
@@ -343,11 +750,14 @@ public class Codegen extends VisitorAdapter {
 		}
 
 		// ret
-		LlvmValue returnValue = n.returnExp.accept(this);
+		LlvmValue returnValue = coerce(n.returnExp.accept(this),
+				methodEnv.returnType);
 		assembler.add(new LlvmRet(returnValue));
 		assembler.add(new LlvmCloseDefinition());
+		finishFunction();
 
 		methodEnv = null;
+		names = null;
 		return null;
 	}
 
@@ -356,8 +766,7 @@ public class Codegen extends VisitorAdapter {
 	}
 
 	public LlvmValue visit(IntArrayType n) {
-		return new LlvmNamedValue("int[]", new LlvmPointer(
-				LlvmPrimitiveType.I32));
+		return new LlvmNamedValue("int[]", ArrayLayout.TYPE);
 	}
 
 	public LlvmValue visit(BooleanType n) {
@@ -382,14 +791,21 @@ public class Codegen extends VisitorAdapter {
 	}
 
 	public LlvmValue visit(If n) {
-		int line = n.line;
-		LlvmValue cmp = n.condition.accept(this);
-		LlvmLabelValue trueLabel = new LlvmLabelValue("iftrue" + line);
-		LlvmLabelValue elseLabel = new LlvmLabelValue("ifelse" + line);
-		LlvmLabelValue endLabel = new LlvmLabelValue("ifend" + line);
+		LlvmLabelValue trueLabel = newLabel("iftrue");
+		LlvmLabelValue elseLabel = newLabel("ifelse");
+		LlvmLabelValue endLabel = newLabel("ifend");
+
+		// Constant condition: only the taken clause is lowered
+		LlvmBool known = condition(n.condition, trueLabel, elseLabel);
+		if (known != null) {
+			if (ConstantFolder.boolOf(known))
+				n.thenClause.accept(this);
+			else if (n.elseClause != null)
+				n.elseClause.accept(this);
+			return known;
+		}
 
 		// If
-		assembler.add(new LlvmBranch(cmp, trueLabel, elseLabel));
 		assembler.add(new LlvmLabel(trueLabel));
 		n.thenClause.accept(this);
 		assembler.add(new LlvmBranch(endLabel));
@@ -403,21 +819,27 @@ public class Codegen extends VisitorAdapter {
 		// End
 		assembler.add(new LlvmLabel(endLabel));
 
-		return cmp;
+		return null;
 	}
 
 	public LlvmValue visit(While n) {
-		int line = n.line;
-
-		LlvmLabelValue beginLabel = new LlvmLabelValue("whileBegin" + line);
-		LlvmLabelValue doLabel = new LlvmLabelValue("whileDo" + line);
-		LlvmLabelValue endLabel = new LlvmLabelValue("whileEnd" + line);
+		LlvmLabelValue beginLabel = newLabel("whileBegin");
+		LlvmLabelValue doLabel = newLabel("whileDo");
+		LlvmLabelValue endLabel = newLabel("whileEnd");
 
 		assembler.add(new LlvmBranch(beginLabel));
 		assembler.add(new LlvmLabel(beginLabel));
 
-		LlvmValue cmp = n.condition.accept(this);
-		assembler.add(new LlvmBranch(cmp, doLabel, endLabel));
+		LlvmBool known = condition(n.condition, doLabel, endLabel);
+
+		// while(false) never runs; while(true) needs no test
+		if (known != null && !ConstantFolder.boolOf(known)) {
+			assembler.add(new LlvmBranch(endLabel));
+			assembler.add(new LlvmLabel(endLabel));
+			return known;
+		}
+		if (known != null)
+			assembler.add(new LlvmBranch(doLabel));
 
 		assembler.add(new LlvmLabel(doLabel));
 		n.body.accept(this);
@@ -425,131 +847,117 @@ public class Codegen extends VisitorAdapter {
 
 		assembler.add(new LlvmLabel(endLabel));
 
-		return cmp;
+		return null;
+	}
+
+	/*
+	 * Jumping code: lowers 'cond' as branches to 'ifTrue'/'ifFalse' without
+	 * materializing the boolean. And short-circuits to 'ifFalse', Not swaps
+	 * the targets and comparisons feed the branch directly.
+	 *
+	 * Returns the outcome if it is known at compile time, in which case
+	 * nothing was emitted and the caller must branch itself; null otherwise.
+	 */
+	private LlvmBool condition(Exp cond, LlvmLabelValue ifTrue,
+			LlvmLabelValue ifFalse) {
+		if (cond instanceof And) {
+			And and = (And) cond;
+			LlvmLabelValue rhsLabel = newLabel("andrhs");
+			LlvmBool lhs = condition(and.lhs, rhsLabel, ifFalse);
+			if (lhs != null && !ConstantFolder.boolOf(lhs))
+				return lhs;
+			if (lhs == null)
+				assembler.add(new LlvmLabel(rhsLabel));
+			LlvmBool rhs = condition(and.rhs, ifTrue, ifFalse);
+			if (lhs == null && rhs != null) {
+				assembler.add(new LlvmBranch(ConstantFolder.boolOf(rhs) ? ifTrue
+						: ifFalse));
+				return null;
+			}
+			return rhs;
+		}
+
+		if (cond instanceof Not) {
+			LlvmBool known = condition(((Not) cond).exp, ifFalse, ifTrue);
+			return known == null ? null : (LlvmBool) ConstantFolder.not(known);
+		}
+
+		LlvmValue v = cond.accept(this);
+		if (ConstantFolder.isBool(v))
+			return (LlvmBool) v;
+		assembler.add(new LlvmBranch(v, ifTrue, ifFalse));
+		return null;
+	}
+
+	private LlvmLabelValue newLabel(String prefix) {
+		return new LlvmLabelValue(prefix
+				+ LlvmContext.current().newLabelNumber());
 	}
 
 	// Possible to refactor
 	public LlvmValue visit(Assign n) {
 		LlvmValue val = n.exp.accept(this);
-		LlvmValue var = n.var.accept(this);
-
-		LlvmRegister R;
 
 		// TODO globals
-		if (classEnv == null) {
-			R = null;
-		} else {
-
-			String varName = "%" + n.var.s;
-			LlvmValue element;
-			LlvmType elementType;
-			if (methodEnv.hasFormal(varName)) {
-				element = methodEnv.formals.get(varName);
-				elementType = element.type;
-				varName = varName + "_tmp";
-
-				R = new LlvmRegister(varName, new LlvmPointer(elementType));
-				assembler.add(new LlvmStore(val, R));
-
-			} else if (methodEnv.hasLocalVariable(varName)) {
-				element = methodEnv.vars.get(varName);
-				elementType = element.type;
-
-				R = new LlvmRegister(varName, new LlvmPointer(elementType));
-				assembler.add(new LlvmStore(val, R));
-
-			} else if (classEnv.hasVariable(varName)) {
-
-				element = classEnv.vars.get(varName);
-				elementType = element.type;
-
-				R = new LlvmRegister(val.type);
-				assembler.add(new LlvmGetElementPointer(R, classEnv
-						.getClassReference(), classEnv.getOffsetTo("%"
-						+ n.var.s)));
-				R = new LlvmRegister(R.name, new LlvmPointer(R.type));
-				assembler.add(new LlvmStore(val, R));
-			} else {
-				element = symTab.classes.get(classEnv.superClassName).vars
-						.get(varName);
-				elementType = element.type;
-
-				List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-				offsets.add(new LlvmIntegerLiteral(0));
-				offsets.add(new LlvmIntegerLiteral(0));
-
-				LlvmRegister classObject = new LlvmRegister(symTab.classes.get(
-						classEnv.superClassName).getClassPointer());
-				assembler.add(new LlvmGetElementPointer(classObject, classEnv
-						.getClassReference(), offsets));
-
-				LlvmRegister obj = new LlvmRegister(elementType);
-				assembler.add(new LlvmGetElementPointer(obj, classObject,
-						symTab.classes.get(classEnv.superClassName)
-								.getOffsetTo("%" + n.var.s)));
-
-				R = new LlvmRegister(obj.name, new LlvmPointer(element.type));
-				assembler.add(new LlvmStore(val, R));
-			}
-		}
+		if (classEnv == null)
+			return null;
 
-		return R;
+		Slot slot = names.get(n.var);
+		LlvmValue address = address(slot);
+		assembler.add(new LlvmStore(coerce(val, slot.type), address));
+		return address;
 	}
 
 	// TODO
 	public LlvmValue visit(ArrayAssign n) {
-		LlvmValue var = n.var.accept(this);
-		LlvmValue oldIndex = n.index.accept(this);
+		LlvmValue index = n.index.accept(this);
 		LlvmValue value = n.value.accept(this);
-		LlvmRegister index = new LlvmRegister(LlvmPrimitiveType.I32);
-		assembler.add(new LlvmPlus(index, LlvmPrimitiveType.I32, oldIndex,
-				new LlvmIntegerLiteral(1)));
 
-		LlvmValue variableAddress;
-
-		if (classEnv == null) {
+		if (classEnv == null)
 			return null;
-		} else {
-
-			if (methodEnv.hasFormal("%" + var.toString())) {
-				variableAddress = methodEnv.vars.get("%" + n.var.s);
-			} else if (methodEnv.hasLocalVariable("%" + var.toString())) {
-				variableAddress = methodEnv.vars.get("%" + n.var.s);
-			} else {
-				LlvmRegister R = new LlvmRegister(value.type);
-				assembler.add(new LlvmGetElementPointer(R, classEnv
-						.getClassReference(), classEnv.getOffsetTo("%"
-						+ n.var.s)));
-				variableAddress = new LlvmRegister(R.name, new LlvmPointer(
-						R.type));
-			}
-		}
-		LlvmRegister variable = new LlvmRegister(new LlvmPointer(
-				LlvmPrimitiveType.I32));
-		assembler.add(new LlvmLoad(variable, new LlvmNamedValue(variableAddress
-				.toString(), new LlvmPointer(new LlvmPointer(
-				LlvmPrimitiveType.I32)))));
+
+		LlvmRegister variable = new LlvmRegister(ArrayLayout.TYPE);
+		assembler.add(new LlvmLoad(variable, address(names.get(n.var))));
+		boundsCheck(variable, index, n.line);
 		LlvmRegister lhs = new LlvmRegister(new LlvmPointer(
 				LlvmPrimitiveType.I32));
-		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-		offsets.add(index);
-		assembler.add(new LlvmGetElementPointer(lhs, variable, offsets));
+		assembler.add(new LlvmGetElementPointer(lhs, variable, ArrayLayout
+				.elementOffsets(index)));
 		assembler.add(new LlvmStore(value, lhs));
 		return null;
 	}
 
+	// && in a value context (e.g. b = x && y) short-circuits as well
 	public LlvmValue visit(And n) {
-		LlvmValue v1 = n.lhs.accept(this);
-		LlvmValue v2 = n.rhs.accept(this);
-		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I1);
-		assembler.add(new LlvmAnd(lhs, LlvmPrimitiveType.I1, v1, v2));
-		return lhs;
+		LlvmLabelValue trueLabel = newLabel("andtrue");
+		LlvmLabelValue falseLabel = newLabel("andfalse");
+		LlvmLabelValue endLabel = newLabel("andend");
+
+		LlvmBool known = condition(n, trueLabel, falseLabel);
+		if (known != null)
+			return known;
+
+		assembler.add(new LlvmLabel(trueLabel));
+		assembler.add(new LlvmBranch(endLabel));
+		assembler.add(new LlvmLabel(falseLabel));
+		assembler.add(new LlvmBranch(endLabel));
+		assembler.add(new LlvmLabel(endLabel));
+
+		LlvmPhi phi = new LlvmPhi(new LlvmRegister(LlvmPrimitiveType.I1),
+				LlvmPrimitiveType.I1);
+		phi.addIncoming(new LlvmBool(LlvmBool.TRUE), trueLabel);
+		phi.addIncoming(new LlvmBool(LlvmBool.FALSE), falseLabel);
+		assembler.add(phi);
+		return phi.lhs;
 	}
 
 	public LlvmValue visit(LessThan n) {
 		LlvmValue v1 = n.lhs.accept(this);
 		LlvmValue v2 = n.rhs.accept(this);
-		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I32);
+		LlvmValue folded = ConstantFolder.compare(LlvmIcmp.SLT, v1, v2);
+		if (folded != null)
+			return folded;
+		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I1);
 		assembler.add(new LlvmIcmp(lhs, LlvmIcmp.SLT, LlvmPrimitiveType.I32,
 				v1, v2));
 		return lhs;
@@ -558,7 +966,10 @@ public class Codegen extends VisitorAdapter {
 	public LlvmValue visit(Equal n) {
 		LlvmValue v1 = n.lhs.accept(this);
 		LlvmValue v2 = n.rhs.accept(this);
-		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I32);
+		LlvmValue folded = ConstantFolder.compare(LlvmIcmp.EQ, v1, v2);
+		if (folded != null)
+			return folded;
+		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I1);
 		assembler.add(new LlvmIcmp(lhs, LlvmIcmp.EQ, LlvmPrimitiveType.I32, v1,
 				v2));
 		return lhs;
@@ -567,6 +978,9 @@ public class Codegen extends VisitorAdapter {
 	public LlvmValue visit(Minus n) {
 		LlvmValue v1 = n.lhs.accept(this);
 		LlvmValue v2 = n.rhs.accept(this);
+		LlvmValue folded = ConstantFolder.minus(v1, v2);
+		if (folded != null)
+			return folded;
 		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I32);
 		assembler.add(new LlvmMinus(lhs, LlvmPrimitiveType.I32, v1, v2));
 		return lhs;
@@ -575,6 +989,9 @@ public class Codegen extends VisitorAdapter {
 	public LlvmValue visit(Times n) {
 		LlvmValue v1 = n.lhs.accept(this);
 		LlvmValue v2 = n.rhs.accept(this);
+		LlvmValue folded = ConstantFolder.times(v1, v2);
+		if (folded != null)
+			return folded;
 		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I32);
 		assembler.add(new LlvmTimes(lhs, LlvmPrimitiveType.I32, v1, v2));
 		return lhs;
@@ -583,68 +1000,159 @@ public class Codegen extends VisitorAdapter {
 	public LlvmValue visit(ArrayLookup n) {
 		LlvmValue array = n.array.accept(this);
 		LlvmValue index = n.index.accept(this);
+		boundsCheck(array, index, n.line);
 
 		LlvmRegister lhs = new LlvmRegister(new LlvmPointer(
 				LlvmPrimitiveType.I32));
-		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-
-		LlvmRegister newIndex = new LlvmRegister(LlvmPrimitiveType.I32);
-		assembler.add(new LlvmPlus(newIndex, LlvmPrimitiveType.I32, index,
-				new LlvmIntegerLiteral(1)));
-
-		offsets.add(newIndex); // Calcula offset
-
-		assembler.add(new LlvmGetElementPointer(lhs, array, offsets));
+		assembler.add(new LlvmGetElementPointer(lhs, array, ArrayLayout
+				.elementOffsets(index)));
 		LlvmRegister value = new LlvmRegister(LlvmPrimitiveType.I32);
 		assembler.add(new LlvmLoad(value, lhs));
 		return value;
 	}
 
 	public LlvmValue visit(ArrayLength n) {
-		LlvmValue array = n.array.accept(this);
+		return arrayLength(n.array.accept(this));
+	}
 
-		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-		offsets.add(new LlvmIntegerLiteral(0));
+	// The length is the header of the array (ArrayLayout)
+	private LlvmRegister arrayLength(LlvmValue array) {
 		LlvmRegister sizeAddress = new LlvmRegister(new LlvmPointer(
 				LlvmPrimitiveType.I32));
-		assembler.add(new LlvmGetElementPointer(sizeAddress, array, offsets));
+		assembler.add(new LlvmGetElementPointer(sizeAddress, array,
+				ArrayLayout.lengthOffsets()));
 		LlvmRegister size = new LlvmRegister(LlvmPrimitiveType.I32);
 		assembler.add(new LlvmLoad(size, sizeAddress));
-
 		return size;
 	}
 
+	/*
+	 * Calls the runtime's trap unless 0 <= index < length. One unsigned
+	 * compare covers both bounds, since a negative index is a huge unsigned
+	 * one. Code after the check goes on in a new "boundsok" block; this is
+	 * the shape BoundsCheckElimination looks for.
+	 */
+	private void boundsCheck(LlvmValue array, LlvmValue index, int line) {
+		LlvmRegister length = arrayLength(array);
+		LlvmRegister inBounds = new LlvmRegister(LlvmPrimitiveType.I1);
+		assembler.add(new LlvmIcmp(inBounds, LlvmIcmp.ULT,
+				LlvmPrimitiveType.I32, index, length));
+
+		LlvmLabelValue okLabel = newLabel("boundsok");
+		LlvmLabelValue trapLabel = newLabel("boundstrap");
+		assembler.add(new LlvmBranch(inBounds, okLabel, trapLabel));
+
+		assembler.add(new LlvmLabel(trapLabel));
+		List<LlvmValue> args = new LinkedList<LlvmValue>();
+		args.add(new LlvmIntegerLiteral(line));
+		args.add(index);
+		args.add(length);
+		assembler.add(new LlvmCall(null, LlvmPrimitiveType.VOID,
+				BoundsCheckElimination.TRAP, args));
+		assembler.add(new LlvmUnreachable());
+
+		assembler.add(new LlvmLabel(okLabel));
+	}
+
+	/*
+	 * Calls the runtime's trap unless 0 <= size <= ArrayLayout.MAX_LENGTH,
+	 * with one unsigned compare as in boundsCheck. A negative size would
+	 * be stored as the length and let every index through; a huge one
+	 * would wrap around in malloc's byte count.
+	 */
+	private void sizeCheck(LlvmValue size, int line) {
+		LlvmRegister fits = new LlvmRegister(LlvmPrimitiveType.I1);
+		assembler.add(new LlvmIcmp(fits, LlvmIcmp.ULE, LlvmPrimitiveType.I32,
+				size, new LlvmIntegerLiteral(ArrayLayout.MAX_LENGTH)));
+
+		LlvmLabelValue okLabel = newLabel("sizeok");
+		LlvmLabelValue trapLabel = newLabel("sizetrap");
+		assembler.add(new LlvmBranch(fits, okLabel, trapLabel));
+
+		assembler.add(new LlvmLabel(trapLabel));
+		List<LlvmValue> args = new LinkedList<LlvmValue>();
+		args.add(new LlvmIntegerLiteral(line));
+		args.add(size);
+		assembler.add(new LlvmCall(null, LlvmPrimitiveType.VOID, SIZE_TRAP,
+				args));
+		assembler.add(new LlvmUnreachable());
+
+		assembler.add(new LlvmLabel(okLabel));
+	}
+
 	public LlvmValue visit(Call n) {
 		LlvmValue object = n.object.accept(this);
 		LlvmValue returnType = n.type.accept(this);
 		LlvmValue method = n.method.accept(this);
-		String functionName;
-
-		if (object != null && object.type instanceof LlvmPointer) {
-			LlvmPointer classPointer = (LlvmPointer) object.type;
-			LlvmClassType classType = (LlvmClassType) classPointer.content;
-			ClassNode classNode = symTab.classes.get(classType.name);
-			MethodNode methodNode = classNode.methods.get(method.toString());
-			functionName = methodNode.getFunctionName(classNode);
-		} else {
-			functionName = method.toString();
-		}
 
-		List<LlvmValue> actuals = new LinkedList<LlvmValue>();
-
-		if (object != null && object.type instanceof LlvmPointer) {
-			actuals.add(object);
-		}
+		LlvmPointer classPointer = (LlvmPointer) object.type;
+		LlvmClassType classType = (LlvmClassType) classPointer.content;
+		ClassNode classNode = symTab.classes.get(classType.name);
+		MethodNode methodNode = classNode.lookupMethod(method.toString());
 
+		// Formals without 'this'
+		List<LlvmValue> actuals = new LinkedList<LlvmValue>();
+		int i = 1;
 		for (util.List<Exp> actualsList = n.actuals; actualsList != null; actualsList = actualsList.tail) {
-			actuals.add(actualsList.head.accept(this));
+			actuals.add(coerce(actualsList.head.accept(this),
+					methodNode.formalList.get(i++).type));
 		}
+
 		LlvmRegister lhs = new LlvmRegister(returnType.type);
-		assembler
-				.add(new LlvmCall(lhs, returnType.type, functionName, actuals));
+
+		// Monomorphic (no override below the static type): direct call
+		MethodNode target = symTab.hierarchy.resolve(classNode,
+				method.toString());
+		count(target != null ? "direct calls" : "virtual calls", 1);
+		if (target != null) {
+			actuals.add(0, coerce(object, target.owner.getClassPointer()));
+			assembler.add(new LlvmCall(lhs, returnType.type, target
+					.getFunctionName(target.owner), actuals));
+			return lhs;
+		}
+
+		// Virtual call: this->vtable[slot]
+		object = coerce(object, methodNode.owner.getClassPointer());
+		actuals.add(0, object);
+		LlvmType slotType = new LlvmPointer(LlvmPrimitiveType.I8);
+
+		LlvmRegister vtableAddress = new LlvmRegister(new LlvmPointer(
+				new LlvmPointer(slotType)));
+		assembler.add(new LlvmBitcast(vtableAddress, object,
+				vtableAddress.type));
+		LlvmRegister vtable = new LlvmRegister(new LlvmPointer(slotType));
+		assembler.add(new LlvmLoad(vtable, vtableAddress));
+
+		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+		offsets.add(new LlvmIntegerLiteral(classNode.getVtableIndex(method
+				.toString())));
+		LlvmRegister slot = new LlvmRegister(new LlvmPointer(slotType));
+		assembler.add(new LlvmGetElementPointer(slot, vtable, offsets));
+		LlvmRegister rawFunction = new LlvmRegister(slotType);
+		assembler.add(new LlvmLoad(rawFunction, slot));
+
+		LlvmRegister function = new LlvmRegister(new LlvmPointer(
+				methodNode.getFunctionType(methodNode.owner)));
+		assembler.add(new LlvmBitcast(function, rawFunction, function.type));
+
+		assembler.add(new LlvmCall(lhs, returnType.type, function, actuals));
 		return lhs;
 	}
 
+	/*
+	 * Subclass objects start with their superclass part, so using one where
+	 * the superclass is expected is just a pointer bitcast.
+	 */
+	private LlvmValue coerce(LlvmValue value, LlvmType type) {
+		if (!(value.type instanceof LlvmPointer)
+				|| !(type instanceof LlvmPointer) || value instanceof LlvmNull
+				|| value.type.toString().equals(type.toString()))
+			return value;
+		LlvmRegister R = new LlvmRegister(type);
+		assembler.add(new LlvmBitcast(R, value, type));
+		return R;
+	}
+
 	public LlvmValue visit(True n) {
 		return new LlvmBool(LlvmBool.TRUE);
 	}
@@ -653,69 +1161,28 @@ public class Codegen extends VisitorAdapter {
 		return new LlvmBool(LlvmBool.FALSE);
 	}
 
-	// TODO
 	public LlvmValue visit(IdentifierExp n) {
-		LlvmRegister reg = new LlvmRegister(n.type.accept(this).type);
-
-		if (classEnv == null) {
-
-		} else { // Implies classEnv != null
-
-			if (methodEnv.hasLocalVariable("%" + n.name.s)) {
-				LlvmValue local = methodEnv.vars.get("%" + n.name.s);
-				assembler.add(new LlvmLoad(reg, new LlvmNamedValue(local
-						.toString(), new LlvmPointer(reg.type))));
-				return reg;
-
-			} else if (methodEnv.hasFormal("%" + n.name.s)) {
-				LlvmValue local = methodEnv.formals.get("%" + n.name.s);
-				assembler.add(new LlvmLoad(reg, new LlvmNamedValue(local
-						.toString() + "_tmp", new LlvmPointer(reg.type))));
-				return reg;
-
-			} else if (classEnv.hasVariable("%" + n.name.s)) {
-
-				// Get address of the class variable
-				LlvmRegister classVar = new LlvmRegister(LlvmPrimitiveType.I32);
-				assembler.add(new LlvmGetElementPointer(classVar, classEnv
-						.getClassReference(), classEnv.getOffsetTo("%"
-						+ n.name.s)));
-
-				assembler.add(new LlvmLoad(reg, new LlvmNamedValue(
-						classVar.name, new LlvmPointer(reg.type))));
-				return reg;
-
-				// Super class
-			} else {
-				// Get address of the class variable
-				LlvmRegister classObjectAddress = new LlvmRegister(
-						symTab.classes.get(classEnv.superClassName)
-								.getClassPointer());
-
-				List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-				offsets.add(new LlvmIntegerLiteral(0));
-				offsets.add(new LlvmIntegerLiteral(0));
-
-				assembler.add(new LlvmGetElementPointer(classObjectAddress,
-						classEnv.getClassReference(), offsets));
-
-				LlvmRegister objectAddress = new LlvmRegister(new LlvmPointer(
-						reg.type));
-
-				assembler.add(new LlvmGetElementPointer(objectAddress,
-						classObjectAddress, symTab.classes.get(
-								classEnv.superClassName).getOffsetTo(
-								"%" + n.name.s)));
-
-				assembler.add(new LlvmLoad(reg, new LlvmNamedValue(
-						objectAddress.name, new LlvmPointer(reg.type))));
-				return reg;
-			}
-		}
+		// TODO globals
+		if (classEnv == null)
+			return new LlvmRegister(n.type.accept(this).type);
 
+		Slot slot = names.get(n.name);
+		LlvmRegister reg = new LlvmRegister(slot.type);
+		assembler.add(new LlvmLoad(reg, address(slot)));
 		return reg;
 	}
 
+	// Where the value of 'slot' is kept: its alloca or a field of 'this'
+	private LlvmValue address(Slot slot) {
+		if (slot.kind != Slot.FIELD)
+			return slot.address;
+		// The layout is flat, so a field is always a single GEP
+		LlvmRegister R = new LlvmRegister(new LlvmPointer(slot.type));
+		assembler.add(new LlvmGetElementPointer(R,
+				classEnv.getClassReference(), slot.getOffsets()));
+		return R;
+	}
+
 	public LlvmValue visit(This n) {
 		return new LlvmNamedValue("%this", new LlvmPointer(new LlvmClassType(
 				classEnv.getName())));
@@ -727,17 +1194,20 @@ public class Codegen extends VisitorAdapter {
 	 */
 	public LlvmValue visit(NewArray n) {
 		LlvmValue size = n.size.accept(this);
+		sizeCheck(size, n.line);
 		LlvmRegister newSize = new LlvmRegister(LlvmPrimitiveType.I32);
 
 		assembler.add(new LlvmPlus(newSize, LlvmPrimitiveType.I32, size,
 				new LlvmIntegerLiteral(1)));
 
-		LlvmValue valueType = n.type.accept(this);
-		LlvmRegister R = new LlvmRegister(
-				new LlvmPointer(LlvmPrimitiveType.I32));
-		List<LlvmValue> numbers = new LinkedList<LlvmValue>();
+		// One word for the length, then the elements
+		LlvmRegister R = new LlvmRegister(ArrayLayout.TYPE);
 		assembler.add(new LlvmMalloc(R, LlvmPrimitiveType.I32, newSize));
-		assembler.add(new LlvmStore(size, R));
+		LlvmRegister sizeAddress = new LlvmRegister(new LlvmPointer(
+				LlvmPrimitiveType.I32));
+		assembler.add(new LlvmGetElementPointer(sizeAddress, R, ArrayLayout
+				.lengthOffsets()));
+		assembler.add(new LlvmStore(size, sizeAddress));
 
 		return R;
 	}
@@ -748,12 +1218,28 @@ public class Codegen extends VisitorAdapter {
 
 		LlvmRegister lhs = new LlvmRegister(classSymbol.getClassPointer());
 		assembler.add(new LlvmMalloc(lhs, classSymbol.getStructure(),
-				classSymbol.getClassType().toString()));
+				classSymbol.getClassType().toString(), symTab.layout
+						.sizeOf(classSymbol.getClassType())));
+
+		// The vtable pointer is the first word of every object
+		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+		offsets.add(new LlvmIntegerLiteral(0));
+		offsets.add(new LlvmIntegerLiteral(0));
+		LlvmRegister vtable = new LlvmRegister(ClassNode.VTABLE_POINTER);
+		assembler.add(new LlvmGetElementPointer(vtable, classSymbol
+				.getVtableReference(), offsets));
+		LlvmRegister vtableAddress = new LlvmRegister(new LlvmPointer(
+				ClassNode.VTABLE_POINTER));
+		assembler.add(new LlvmBitcast(vtableAddress, lhs, vtableAddress.type));
+		assembler.add(new LlvmStore(vtable, vtableAddress));
 		return lhs;
 	}
 
 	public LlvmValue visit(Not n) {
 		LlvmValue v = n.exp.accept(this);
+		LlvmValue folded = ConstantFolder.not(v);
+		if (folded != null)
+			return folded;
 		LlvmBool b = new LlvmBool(LlvmBool.TRUE);
 		LlvmRegister lhs = new LlvmRegister(LlvmPrimitiveType.I1);
 		assembler.add(new LlvmXor(lhs, LlvmPrimitiveType.I1, v, b));
@@ -764,288 +1250,3 @@ public class Codegen extends VisitorAdapter {
 		return new LlvmNamedValue(n.s, LlvmPrimitiveType.I32);
 	}
 }
-
-/**********************************************************************************/
-/*
- * === Tabela de Símbolos ====
- */
-/**********************************************************************************/
-
-class SymTab extends VisitorAdapter {
-	public Map<String, ClassNode> classes;
-	private ClassNode classEnv; // aponta para a classe em uso
-
-	public LlvmValue FillTabSymbol(Program n) {
-		n.accept(this);
-		return null;
-	}
-
-	public LlvmValue visit(Program n) {
-		n.mainClass.accept(this);
-
-		for (util.List<ClassDecl> c = n.classList; c != null; c = c.tail)
-			c.head.accept(this);
-
-		return null;
-	}
-
-	public LlvmValue visit(MainClass n) {
-		classes = new HashMap<String, ClassNode>();
-		classes.put(n.className.s, new ClassNode(n.className.s,
-				new LlvmStructure(new LinkedList<LlvmType>()), null));
-		return null;
-	}
-
-	public LlvmValue visit(ClassDeclSimple n) {
-
-		// Constroi TypeList com os tipos das variáveis da Classe (vai formar a
-		// Struct da classe)
-		// Constroi VarList com as Variáveis da Classe
-		List<LlvmValue> vars = new ArrayList<LlvmValue>();
-		List<LlvmType> types = new ArrayList<LlvmType>();
-		for (util.List<VarDecl> varList = n.varList; varList != null; varList = varList.tail) {
-			LlvmValue var = varList.head.accept(this);
-			vars.add(var);
-			types.add(var.type);
-		}
-		classEnv = new ClassNode(n.name.s, new LlvmStructure(types), vars);
-
-		classes.put(n.name.s, classEnv);
-
-		// Percorre n.methodList visitando cada método
-		// Method Declarations
-		for (util.List<MethodDecl> methodList = n.methodList; methodList != null; methodList = methodList.tail) {
-			methodList.head.accept(this);
-		}
-		return null;
-	}
-
-	public LlvmValue visit(ClassDeclExtends n) {
-		// Constroi TypeList com os tipos das variáveis da Classe (vai formar a
-		// Struct da classe)
-		// Constroi VarList com as Variáveis da Classe
-		List<LlvmValue> vars = new ArrayList<LlvmValue>();
-		List<LlvmType> types = new ArrayList<LlvmType>();
-
-		for (util.List<VarDecl> varList = n.varList; varList != null; varList = varList.tail) {
-			LlvmValue var = varList.head.accept(this);
-			vars.add(var);
-			types.add(var.type);
-		}
-		classEnv = new ClassNode(n.name.s, new LlvmStructure(types), vars);
-
-		classEnv.superClassName = n.superClass.s;
-
-		classes.put(n.name.s, classEnv);
-
-		// Percorre n.methodList visitando cada método
-		// Method Declarations
-		for (util.List<MethodDecl> methodList = n.methodList; methodList != null; methodList = methodList.tail) {
-			methodList.head.accept(this);
-		}
-		return null;
-	}
-
-	public LlvmValue visit(VarDecl n) {
-		LlvmValue value = n.type.accept(this);
-		LlvmNamedValue v = new LlvmNamedValue("%" + n.name.s, value.type);
-		// Alloca se pertence a uma declaracao de metodo
-		return v;
-	}
-
-	public LlvmValue visit(MethodDecl n) {
-
-		LlvmType returnType = n.returnType.accept(this).type;
-		List<LlvmValue> args = new LinkedList<LlvmValue>();
-		args.add(classEnv.getClassReference());
-
-		for (util.List<Formal> formals = n.formals; formals != null; formals = formals.tail) {
-			LlvmValue formal = formals.head.accept(this);
-			args.add(formal);
-		}
-
-		List<LlvmValue> vars = new LinkedList<LlvmValue>();
-		for (util.List<VarDecl> locals = n.locals; locals != null; locals = locals.tail) {
-			LlvmValue local = locals.head.accept(this);
-			vars.add(local);
-		}
-
-		classEnv.addMethod(new MethodNode(n.name.s, args, vars, returnType));
-
-		return null;
-	}
-
-	public LlvmValue visit(Formal n) {
-		return new LlvmNamedValue("%" + n.name.s, n.type.accept(this).type);
-	}
-
-	public LlvmValue visit(IntArrayType n) {
-		// return new LlvmNamedValue("int[]", new LlvmArray(0,
-		// LlvmPrimitiveType.I32));
-		return new LlvmNamedValue("int[]", new LlvmPointer(
-				LlvmPrimitiveType.I32));
-	}
-
-	public LlvmValue visit(BooleanType n) {
-		return new LlvmNamedValue("boolean", LlvmPrimitiveType.I1);
-	}
-
-	public LlvmValue visit(IntegerType n) {
-		return new LlvmNamedValue("int", LlvmPrimitiveType.I32);
-	}
-
-	// TODO
-	public LlvmValue visit(IdentifierType n) {
-		return new LlvmNamedValue(n.name, new LlvmPointer(new LlvmClassType(
-				n.name)));
-	}
-}
-
-class ClassNode extends LlvmType {
-	private String name;
-	private LlvmStructure structure;
-	public List<LlvmValue> varList;
-	public Map<String, LlvmValue> vars;
-	public List<MethodNode> methodList;
-	public Map<String, MethodNode> methods;
-	public String superClassName;
-
-	public ClassNode(String nameClass, LlvmStructure structure,
-			List<LlvmValue> varList) {
-		this.name = nameClass;
-		this.structure = structure;
-		this.varList = varList;
-		this.vars = new HashMap<String, LlvmValue>();
-
-		if (varList != null) {
-			for (LlvmValue val : varList) {
-				vars.put(val.toString(), val);
-			}
-		}
-
-		this.methodList = new LinkedList<MethodNode>();
-		this.methods = new HashMap<String, MethodNode>();
-	}
-
-	public boolean hasVariable(String varName) {
-		return vars.containsKey(varName);
-	}
-
-	public String getName() {
-		return name;
-	}
-
-	public LlvmClassType getClassType() {
-		return new LlvmClassType(this.name);
-	}
-
-	public LlvmPointer getClassPointer() {
-		return new LlvmPointer(new LlvmClassType(this.name));
-	}
-
-	public LlvmNamedValue getClassReference() {
-		return new LlvmNamedValue("%this", new LlvmPointer(getClassType()));
-	}
-
-	public LlvmStructure getStructure() {
-		// TODO Auto-generated method stub
-		if (superClassName != null) {
-			List<LlvmType> typeList = new LinkedList<LlvmType>();
-			typeList.add(new LlvmClassType(superClassName));
-			typeList.addAll(structure.typeList);
-			LlvmStructure structure = new LlvmStructure(typeList);
-			return structure;
-		}
-		return structure;
-	}
-
-	public LlvmInstruction getClassDeclaration() {
-		// TODO Auto-generated method stub
-		return new LlvmInstruction() {
-			public String toString() {
-				return getClassType() + " = type " + getStructure();
-			}
-		};
-	}
-
-	public void addMethod(MethodNode methodNode) {
-		methodList.add(methodNode);
-		methods.put(methodNode.name, methodNode);
-	}
-
-	public List<LlvmValue> getOffsetTo(String varName) {
-		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
-		int count = 0;
-		// Considering only i32 size elements
-		for (LlvmValue val : this.varList) {
-
-			if (val.toString().equals(varName))
-				break;
-
-			if (val.type instanceof ClassNode) {
-				count += ((ClassNode) val.type).getClassI32Size();
-			} else
-				count++;
-		}
-
-		offsets.add(new LlvmIntegerLiteral(0));
-		offsets.add(new LlvmIntegerLiteral(count));
-		return offsets;
-	}
-
-	public int getClassI32Size() {
-		int size = 0;
-		for (LlvmValue val : this.varList) {
-
-			if (val.type instanceof ClassNode) {
-				((ClassNode) val.type).getClassI32Size();
-			} else {
-				size++;
-			}
-		}
-		return size;
-	}
-}
-
-class MethodNode extends LlvmType {
-	String name;
-	List<LlvmValue> formalList;
-	List<LlvmValue> varList;
-	Map<String, LlvmValue> formals;
-	Map<String, LlvmValue> vars;
-	LlvmType returnType;
-
-	public MethodNode(String name, List<LlvmValue> formalList,
-			List<LlvmValue> varList, LlvmType returnType) {
-		this.name = name;
-		this.formalList = formalList;
-		this.varList = varList;
-		this.vars = new HashMap<String, LlvmValue>();
-		for (LlvmValue var : varList) {
-			this.vars.put(var.toString(), var);
-		}
-
-		this.formals = new HashMap<String, LlvmValue>();
-		for (LlvmValue formal : formalList) {
-			this.formals.put(formal.toString(), formal);
-		}
-
-		this.returnType = returnType;
-	}
-
-	public boolean hasFormal(String formalName) {
-		return this.formals.containsKey(formalName);
-	}
-
-	public LlvmInstruction getFunctionDefinition(ClassNode classEnv) {
-		return new LlvmDefine(getFunctionName(classEnv), returnType, formalList);
-	}
-
-	public String getFunctionName(ClassNode classEnv) {
-		return "@__" + this.name + "_" + classEnv.getName();
-	}
-
-	public Boolean hasLocalVariable(String varName) {
-		return this.vars.containsKey(varName);
-	}
-}
\ No newline at end of file
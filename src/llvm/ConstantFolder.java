@@ -0,0 +1,148 @@
+package llvm;
+
+import llvmast.LlvmAnd;
+import llvmast.LlvmBool;
+import llvmast.LlvmIcmp;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmMinus;
+import llvmast.LlvmPlus;
+import llvmast.LlvmTimes;
+import llvmast.LlvmValue;
+import llvmast.LlvmXor;
+
+/*
+ * Evaluates operations on LlvmIntegerLiteral/LlvmBool operands at compile
+ * time. Integer arithmetic wraps around exactly like Java's int.
+ *
+ * Every method returns null when the operation cannot be folded.
+ */
+final class ConstantFolder {
+	private ConstantFolder() {
+	}
+
+	static boolean isConstant(LlvmValue v) {
+		return v instanceof LlvmIntegerLiteral || v instanceof LlvmBool;
+	}
+
+	static LlvmValue plus(LlvmValue a, LlvmValue b) {
+		if (isInt(a) && isInt(b))
+			return new LlvmIntegerLiteral(intOf(a) + intOf(b));
+		if (isInt(b, 0))
+			return a;
+		if (isInt(a, 0))
+			return b;
+		return null;
+	}
+
+	static LlvmValue minus(LlvmValue a, LlvmValue b) {
+		if (isInt(a) && isInt(b))
+			return new LlvmIntegerLiteral(intOf(a) - intOf(b));
+		if (isInt(b, 0))
+			return a;
+		return null;
+	}
+
+	static LlvmValue times(LlvmValue a, LlvmValue b) {
+		if (isInt(a) && isInt(b))
+			return new LlvmIntegerLiteral(intOf(a) * intOf(b));
+		if (isInt(a, 0) || isInt(b, 0))
+			return new LlvmIntegerLiteral(0);
+		if (isInt(b, 1))
+			return a;
+		if (isInt(a, 1))
+			return b;
+		return null;
+	}
+
+	// Both operands are already evaluated, so 'x && false' is false
+	static LlvmValue and(LlvmValue a, LlvmValue b) {
+		if (isBool(a) && isBool(b))
+			return bool(boolOf(a) && boolOf(b));
+		if (isBool(a))
+			return boolOf(a) ? b : a;
+		if (isBool(b))
+			return boolOf(b) ? a : b;
+		return null;
+	}
+
+	static LlvmValue not(LlvmValue a) {
+		if (isBool(a))
+			return bool(!boolOf(a));
+		return null;
+	}
+
+	static LlvmValue compare(int conditionCode, LlvmValue a, LlvmValue b) {
+		if (!isInt(a) || !isInt(b))
+			return null;
+		int x = intOf(a), y = intOf(b);
+		switch (conditionCode) {
+		case LlvmIcmp.EQ:
+			return bool(x == y);
+		case LlvmIcmp.NE:
+			return bool(x != y);
+		case LlvmIcmp.SLT:
+			return bool(x < y);
+		case LlvmIcmp.SLE:
+			return bool(x <= y);
+		case LlvmIcmp.SGT:
+			return bool(x > y);
+		case LlvmIcmp.SGE:
+			return bool(x >= y);
+		case LlvmIcmp.ULT:
+			return bool((x ^ Integer.MIN_VALUE) < (y ^ Integer.MIN_VALUE));
+		case LlvmIcmp.ULE:
+			return bool((x ^ Integer.MIN_VALUE) <= (y ^ Integer.MIN_VALUE));
+		default:
+			return null;
+		}
+	}
+
+	// Value of a side-effect free instruction, if it is known
+	static LlvmValue fold(LlvmInstruction instr) {
+		if (instr instanceof LlvmPlus)
+			return plus(((LlvmPlus) instr).op1, ((LlvmPlus) instr).op2);
+		if (instr instanceof LlvmMinus)
+			return minus(((LlvmMinus) instr).op1, ((LlvmMinus) instr).op2);
+		if (instr instanceof LlvmTimes)
+			return times(((LlvmTimes) instr).op1, ((LlvmTimes) instr).op2);
+		if (instr instanceof LlvmAnd)
+			return and(((LlvmAnd) instr).op1, ((LlvmAnd) instr).op2);
+		if (instr instanceof LlvmXor) {
+			// Codegen only emits 'xor x, true' (Not)
+			LlvmXor xor = (LlvmXor) instr;
+			if (isBool(xor.op1) && isBool(xor.op2))
+				return bool(boolOf(xor.op1) != boolOf(xor.op2));
+			return null;
+		}
+		if (instr instanceof LlvmIcmp) {
+			LlvmIcmp icmp = (LlvmIcmp) instr;
+			return compare(icmp.conditionCode, icmp.op1, icmp.op2);
+		}
+		return null;
+	}
+
+	static boolean isBool(LlvmValue v) {
+		return v instanceof LlvmBool;
+	}
+
+	static boolean boolOf(LlvmValue v) {
+		return ((LlvmBool) v).val == LlvmBool.TRUE;
+	}
+
+	static LlvmBool bool(boolean b) {
+		return new LlvmBool(b ? LlvmBool.TRUE : LlvmBool.FALSE);
+	}
+
+	private static boolean isInt(LlvmValue v) {
+		return v instanceof LlvmIntegerLiteral;
+	}
+
+	private static boolean isInt(LlvmValue v, int value) {
+		return isInt(v) && intOf(v) == value;
+	}
+
+	private static int intOf(LlvmValue v) {
+		return ((LlvmIntegerLiteral) v).value;
+	}
+}
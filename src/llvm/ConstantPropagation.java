@@ -0,0 +1,103 @@
+package llvm;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmBranch;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmPhi;
+import llvmast.LlvmValue;
+
+/*
+ * Folds instructions whose operands became constants after Mem2Reg (so a
+ * constant stored once into a local reaches all of its uses), removes
+ * trivial phis and turns branches on constant conditions into
+ * unconditional ones, dropping the blocks that become unreachable.
+ */
+class ConstantPropagation implements FunctionPass {
+	private Cfg cfg;
+	private int folded;
+
+	public String getName() {
+		return "constprop";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("folded instructions", folded);
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		cfg = new Cfg(function);
+
+		boolean changed = true;
+		while (changed) {
+			changed = foldInstructions();
+			if (foldBranches())
+				changed = true;
+		}
+		return cfg.toInstructions();
+	}
+
+	private boolean foldInstructions() {
+		boolean changed = false;
+		cfg.linkUses();
+		for (Cfg.Block b : cfg.reversePostOrder()) {
+			for (Iterator<LlvmInstruction> it = b.body.iterator(); it.hasNext();) {
+				LlvmInstruction instr = it.next();
+				LlvmValue value;
+				if (instr instanceof LlvmPhi)
+					value = foldPhi((LlvmPhi) instr);
+				else
+					value = ConstantFolder.fold(instr);
+
+				if (value != null) {
+					// uses later in this walk see the constant already
+					instr.getResult().replaceAllUsesWith(value);
+					it.remove();
+					folded++;
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	// phi [v, a], [v, b], [self, c] is just v
+	private LlvmValue foldPhi(LlvmPhi phi) {
+		LlvmValue unique = null;
+		String self = phi.lhs.toString();
+		for (LlvmValue v : phi.values) {
+			if (v.toString().equals(self))
+				continue;
+			if (unique != null && !unique.toString().equals(v.toString()))
+				return null;
+			unique = v;
+		}
+		return unique;
+	}
+
+	private boolean foldBranches() {
+		boolean changed = false;
+		for (Cfg.Block b : cfg.blocks) {
+			LlvmInstruction term = b.getTerminator();
+			if (!(term instanceof LlvmBranch))
+				continue;
+			LlvmBranch br = (LlvmBranch) term;
+			if (br.cond == null || !ConstantFolder.isBool(br.cond))
+				continue;
+			LlvmLabelValue target = ConstantFolder.boolOf(br.cond) ? br.brTrue
+					: br.brFalse;
+			b.body.set(b.body.size() - 1, new LlvmBranch(target));
+			changed = true;
+		}
+		if (changed) {
+			cfg.link();
+			cfg.removeUnreachable();
+			cfg.prunePhis();
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,182 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmBranch;
+import llvmast.LlvmCall;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmPhi;
+import llvmast.LlvmValue;
+
+/*
+ * Cleans up what Codegen and the other passes leave behind:
+ *
+ *   - blocks no path from entry reaches (while(false), code after a
+ *     constant branch)
+ *   - blocks that only jump on, such as the ifelse block of an if without
+ *     else: their predecessors branch straight to the target
+ *   - chains A -> B where A ends in "br label %B" and B has no other
+ *     predecessor: B is appended to A (the split points of inlining and
+ *     of the bounds checks end up like that)
+ *   - instructions without side effects whose result nobody uses, such as
+ *     the address Codegen computes for the variable of an Assign
+ *
+ * Dead instructions are found by marking from what has to stay (stores,
+ * calls, branches, rets) through the operands, so unused phi cycles go
+ * too.
+ */
+class DeadCodeElimination implements FunctionPass {
+	private int unreachable;
+	private int merged;
+	private int dead;
+
+	public String getName() {
+		return "dce";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+		statistics.put("unreachable blocks", unreachable);
+		statistics.put("merged blocks", merged);
+		statistics.put("dead instructions", dead);
+		return statistics;
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		Cfg cfg = new Cfg(function);
+		int before = cfg.blocks.size();
+		if (cfg.removeUnreachable()) {
+			unreachable += before - cfg.blocks.size();
+			cfg.prunePhis();
+		}
+		boolean changed = true;
+		while (changed)
+			changed = forwardEmpty(cfg) | mergeChains(cfg);
+		sweep(cfg);
+		return cfg.toInstructions();
+	}
+
+	// Removes blocks holding nothing but "br label %X"
+	private boolean forwardEmpty(Cfg cfg) {
+		boolean changed = false;
+		for (int i = 1; i < cfg.blocks.size(); i++) {
+			Cfg.Block b = cfg.blocks.get(i);
+			if (b.body.size() != 1 || b.succs.size() != 1)
+				continue;
+			LlvmBranch br = (LlvmBranch) b.getTerminator();
+			Cfg.Block target = b.succs.get(0);
+			if (target == b || !canForward(b, target))
+				continue;
+			for (Cfg.Block p : b.preds) {
+				LlvmBranch pb = (LlvmBranch) p.getTerminator();
+				if (pb.brTrue.value.equals(b.getName()))
+					pb.brTrue = br.brTrue;
+				if (pb.brFalse != null && pb.brFalse.value.equals(b.getName()))
+					pb.brFalse = br.brTrue;
+			}
+			if (!b.preds.isEmpty())
+				Cfg.renameIncoming(target, b, b.preds.get(0));
+			cfg.blocks.remove(i--);
+			cfg.byLabel.remove(b.getName());
+			cfg.link();
+			merged++;
+			changed = true;
+		}
+		return changed;
+	}
+
+	// A phi in 'target' has one value for 'b': only a single predecessor
+	// that does not reach 'target' already can take that value over
+	private static boolean canForward(Cfg.Block b, Cfg.Block target) {
+		if (target.body.isEmpty() || !(target.body.get(0) instanceof LlvmPhi))
+			return true;
+		return b.preds.size() == 1 && !target.preds.contains(b.preds.get(0));
+	}
+
+	// Appends B to A when A -> B is the only edge into B
+	private boolean mergeChains(Cfg cfg) {
+		boolean changed = false;
+		for (int i = 0; i < cfg.blocks.size(); i++) {
+			Cfg.Block a = cfg.blocks.get(i);
+			LlvmInstruction term = a.getTerminator();
+			if (!(term instanceof LlvmBranch) || ((LlvmBranch) term).cond != null)
+				continue;
+			Cfg.Block b = a.succs.get(0);
+			if (b == a || b == cfg.getEntry() || b.preds.size() != 1)
+				continue;
+
+			// with one predecessor every phi of B has one value
+			Map<String, LlvmValue> subst = new HashMap<String, LlvmValue>();
+			Iterator<LlvmInstruction> it = b.body.iterator();
+			while (it.hasNext()) {
+				LlvmInstruction instr = it.next();
+				if (!(instr instanceof LlvmPhi))
+					break;
+				subst.put(instr.getResult().toString(), ((LlvmPhi) instr).values
+						.get(0));
+				it.remove();
+			}
+			if (!subst.isEmpty())
+				for (Cfg.Block other : cfg.blocks)
+					for (LlvmInstruction instr : other.body)
+						instr.replaceOperands(subst);
+
+			for (Cfg.Block s : b.succs)
+				Cfg.renameIncoming(s, b, a);
+			a.body.remove(a.body.size() - 1);
+			a.body.addAll(b.body);
+			cfg.blocks.remove(b);
+			cfg.byLabel.remove(b.getName());
+			cfg.link();
+			merged++;
+			changed = true;
+			// a may now end in a branch to another candidate
+			i--;
+		}
+		return changed;
+	}
+
+	private void sweep(Cfg cfg) {
+		Map<String, LlvmInstruction> defs = new HashMap<String, LlvmInstruction>();
+		List<LlvmInstruction> work = new ArrayList<LlvmInstruction>();
+		for (Cfg.Block b : cfg.blocks) {
+			for (LlvmInstruction instr : b.body) {
+				if (instr.getResult() != null)
+					defs.put(instr.getResult().toString(), instr);
+				if (!removable(instr))
+					work.add(instr);
+			}
+		}
+		Set<LlvmInstruction> live = new HashSet<LlvmInstruction>(work);
+		while (!work.isEmpty()) {
+			LlvmInstruction instr = work.remove(work.size() - 1);
+			for (LlvmValue op : instr.getOperands()) {
+				LlvmInstruction def = defs.get(op.toString());
+				if (def != null && live.add(def))
+					work.add(def);
+			}
+		}
+		for (Cfg.Block b : cfg.blocks) {
+			Iterator<LlvmInstruction> it = b.body.iterator();
+			while (it.hasNext()) {
+				if (!live.contains(it.next())) {
+					it.remove();
+					dead++;
+				}
+			}
+		}
+	}
+
+	// Instructions that only compute their result (allocation included:
+	// nothing is ever freed, so an unused object is just not made)
+	private static boolean removable(LlvmInstruction instr) {
+		return instr.getResult() != null && !(instr instanceof LlvmCall);
+	}
+}
@@ -0,0 +1,119 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmBitcast;
+import llvmast.LlvmCall;
+import llvmast.LlvmDefine;
+import llvmast.LlvmFunction;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmModule;
+import llvmast.LlvmPhi;
+import llvmast.LlvmRet;
+import llvmast.LlvmStore;
+import llvmast.LlvmValue;
+
+/*
+ * Which objects may outlive the function that holds them. An object
+ * escapes when a pointer to it (the object itself, a bitcast of it, the
+ * address of one of its fields or a phi of those) is
+ *
+ *   - stored anywhere: in a field of another object or a local that
+ *     mem2reg left in memory
+ *   - returned
+ *   - passed to a call that lets that parameter escape, or to a call with
+ *     an unknown target (virtual calls through the vtable)
+ *
+ * The last rule needs the callee: every function of the program gets a
+ * summary of the parameters (this included) it lets escape. Summaries
+ * start empty and grow until none changes, so mutually recursive methods
+ * end up with the smallest summaries that cover every path.
+ */
+class EscapeAnalysis {
+	// function -> for each parameter, whether it escapes
+	private final Map<String, boolean[]> summaries = new HashMap<String, boolean[]>();
+
+	EscapeAnalysis(LlvmModule module) {
+		List<List<LlvmInstruction>> functions = new ArrayList<List<LlvmInstruction>>();
+		for (LlvmFunction f : module.functions) {
+			functions.add(f.toInstructions());
+			summaries.put(f.getName(), new boolean[f.define.args.size()]);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (List<LlvmInstruction> f : functions) {
+				LlvmDefine define = (LlvmDefine) f.get(0);
+				boolean[] escaping = summaries.get(define.name);
+				for (int i = 0; i < escaping.length; i++) {
+					if (!escaping[i]
+							&& escapes(f, define.args.get(i).toString())) {
+						escaping[i] = true;
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	// Whether the object in register 'root' of 'function' may escape it
+	boolean escapes(List<LlvmInstruction> function, String root) {
+		Set<String> aliases = aliases(function, root);
+		for (LlvmInstruction instr : function) {
+			if (instr instanceof LlvmStore) {
+				if (aliases.contains(((LlvmStore) instr).content.toString()))
+					return true;
+			} else if (instr instanceof LlvmRet) {
+				LlvmValue v = ((LlvmRet) instr).v;
+				if (v != null && aliases.contains(v.toString()))
+					return true;
+			} else if (instr instanceof LlvmCall) {
+				if (escapesInto((LlvmCall) instr, aliases))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean escapesInto(LlvmCall call, Set<String> aliases) {
+		boolean[] escaping = call.fnValue == null ? summaries
+				.get(call.fnName) : null;
+		for (int i = 0; i < call.args.size(); i++)
+			if (aliases.contains(call.args.get(i).toString())
+					&& (escaping == null || escaping[i]))
+				return true;
+		return false;
+	}
+
+	// 'root' and every register that points into the same object
+	static Set<String> aliases(List<LlvmInstruction> function, String root) {
+		Set<String> aliases = new HashSet<String>();
+		aliases.add(root);
+		// phis may come before the values they merge: repeat until stable
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (LlvmInstruction instr : function) {
+				LlvmValue source = null;
+				if (instr instanceof LlvmBitcast)
+					source = ((LlvmBitcast) instr).source;
+				else if (instr instanceof LlvmGetElementPointer)
+					source = ((LlvmGetElementPointer) instr).source;
+				boolean derived = source != null
+						&& aliases.contains(source.toString());
+				if (instr instanceof LlvmPhi)
+					for (LlvmValue v : ((LlvmPhi) instr).values)
+						derived |= aliases.contains(v.toString());
+				if (derived && aliases.add(instr.getResult().toString()))
+					changed = true;
+			}
+		}
+		return aliases;
+	}
+}
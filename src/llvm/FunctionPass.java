@@ -0,0 +1,21 @@
+package llvm;
+
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmInstruction;
+
+/*
+ * A transformation of one function, run by PassManager. A pass object is
+ * used for a single function: its statistics are what it did there.
+ */
+interface FunctionPass {
+	// Short name, for the timings
+	String getName();
+
+	// Returns the rewritten function (possibly 'function' itself)
+	List<LlvmInstruction> run(List<LlvmInstruction> function);
+
+	// Counters of the last run, e.g. "promoted allocas" -> 3
+	Map<String, Integer> getStatistics();
+}
@@ -0,0 +1,201 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmCall;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmLoad;
+import llvmast.LlvmPlus;
+import llvmast.LlvmStore;
+import llvmast.LlvmTimes;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * Removes computations that repeat one that already happened: Codegen
+ * emits the address and the load again for every use of a field or of
+ * an element, as for number[j] in the bounds check and then in the
+ * access of BubbleSort.
+ *
+ * The blocks are walked down the dominator tree. A pure instruction
+ * (AddressKinds.isPure) with the same operator and operands as one in a
+ * dominating block is replaced by that one; the operands of later
+ * instructions then name the survivor, so equal expressions built on
+ * equal ones are found too. a + b and b + a are the same.
+ *
+ * A load is replaced by an earlier load of the same address, or by the
+ * value an earlier store put there, if no store or call in between may
+ * have changed it (by the kinds of AddressKinds). Memory is only followed
+ * along the tree into a block whose only predecessor is its parent: at a
+ * join, paths the walk did not see may have stored.
+ */
+class GlobalValueNumbering implements FunctionPass {
+	private AddressKinds kinds;
+	private int expressions, loads;
+
+	// The value at an address, and what kind of memory it is
+	private static class Known {
+		final int kind;
+		final String field; // FIELD: AddressKinds.fieldKey
+		final LlvmValue value;
+
+		Known(int kind, String field, LlvmValue value) {
+			this.kind = kind;
+			this.field = field;
+			this.value = value;
+		}
+	}
+
+	// A block of the walk, with the memory known from its parent on
+	private static class Visit {
+		final Cfg.Block block;
+		final Map<String, Known> memory;
+		final List<String> added = new ArrayList<String>();
+		boolean entered;
+
+		Visit(Cfg.Block block, Map<String, Known> memory) {
+			this.block = block;
+			this.memory = memory;
+		}
+	}
+
+	public String getName() {
+		return "gvn";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+		statistics.put("redundant expressions", expressions);
+		statistics.put("redundant loads", loads);
+		return statistics;
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		Cfg cfg = new Cfg(function);
+		cfg.computeDominators();
+		cfg.linkUses();
+		Map<String, LlvmInstruction> defs = new HashMap<String, LlvmInstruction>();
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				if (instr.getResult() != null)
+					defs.put(instr.getResult().toString(), instr);
+		kinds = new AddressKinds(defs);
+
+		int before = expressions + loads;
+		// expression -> the value that computes it, for the blocks on the
+		// path from the entry to the current one
+		Map<String, LlvmValue> available = new HashMap<String, LlvmValue>();
+		// iterative: deep if/else chains make deep dominator trees
+		List<Visit> stack = new ArrayList<Visit>();
+		stack.add(new Visit(cfg.getEntry(), new HashMap<String, Known>()));
+		while (!stack.isEmpty()) {
+			Visit v = stack.get(stack.size() - 1);
+			if (v.entered) {
+				stack.remove(stack.size() - 1);
+				for (String key : v.added)
+					available.remove(key);
+				continue;
+			}
+			v.entered = true;
+			number(v, available);
+			for (Cfg.Block c : v.block.domChildren)
+				stack.add(new Visit(c, c.preds.size() == 1 ? new HashMap<String, Known>(
+						v.memory) : new HashMap<String, Known>()));
+		}
+		return expressions + loads == before ? function : cfg.toInstructions();
+	}
+
+	private void number(Visit v, Map<String, LlvmValue> available) {
+		Map<String, Known> memory = v.memory;
+		for (Iterator<LlvmInstruction> it = v.block.body.iterator(); it.hasNext();) {
+			LlvmInstruction instr = it.next();
+			if (AddressKinds.isPure(instr)) {
+				String key = key(instr);
+				LlvmValue known = available.get(key);
+				if (known != null) {
+					instr.getResult().replaceAllUsesWith(known);
+					it.remove();
+					expressions++;
+				} else {
+					available.put(key, instr.getResult());
+					v.added.add(key);
+				}
+			} else if (instr instanceof LlvmLoad) {
+				LlvmLoad load = (LlvmLoad) instr;
+				int kind = kinds.kindOf(load.address);
+				if (kind == AddressKinds.UNKNOWN)
+					continue;
+				Known known = memory.get(load.address.toString());
+				if (known != null) {
+					load.lhs.replaceAllUsesWith(known.value);
+					it.remove();
+					loads++;
+				} else {
+					memory.put(load.address.toString(), known(kind,
+							load.address, load.lhs));
+				}
+			} else if (instr instanceof LlvmStore) {
+				LlvmStore store = (LlvmStore) instr;
+				int kind = kinds.kindOf(store.address);
+				clobber(memory, kind, store.address);
+				if (kind != AddressKinds.UNKNOWN)
+					memory.put(store.address.toString(), known(kind,
+							store.address, store.content));
+			} else if (instr instanceof LlvmCall
+					&& AddressKinds.mayStore((LlvmCall) instr)) {
+				clobber(memory, AddressKinds.UNKNOWN, null);
+			}
+		}
+	}
+
+	private Known known(int kind, LlvmValue address, LlvmValue value) {
+		return new Known(kind, kind == AddressKinds.FIELD ? kinds
+				.fieldKey(address) : null, value);
+	}
+
+	// Forgets what a store to 'address' (null: any address) may overwrite
+	private void clobber(Map<String, Known> memory, int kind, LlvmValue address) {
+		if (AddressKinds.isImmutable(kind))
+			return; // a new array or object being set up
+		String field = kind == AddressKinds.FIELD ? kinds.fieldKey(address)
+				: null;
+		for (Iterator<Known> it = memory.values().iterator(); it.hasNext();) {
+			Known k = it.next();
+			if (AddressKinds.isImmutable(k.kind))
+				continue;
+			if (kind == AddressKinds.UNKNOWN || kind == k.kind
+					&& (field == null || field.equals(k.field)))
+				it.remove();
+		}
+	}
+
+	// The instruction without its result
+	private static String key(LlvmInstruction instr) {
+		if (instr instanceof LlvmPlus) {
+			LlvmPlus add = (LlvmPlus) instr;
+			return commutative("add", add.type, add.op1, add.op2);
+		}
+		if (instr instanceof LlvmTimes) {
+			LlvmTimes mul = (LlvmTimes) instr;
+			return commutative("mul", mul.type, mul.op1, mul.op2);
+		}
+		String text = instr.toString();
+		return text.substring(text.indexOf(" = ") + 3);
+	}
+
+	private static String commutative(String op, LlvmType type, LlvmValue a,
+			LlvmValue b) {
+		String x = a.toString(), y = b.toString();
+		if (x.compareTo(y) > 0) {
+			String t = x;
+			x = y;
+			y = t;
+		}
+		return op + " " + type + " " + x + ", " + y;
+	}
+}
@@ -0,0 +1,297 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmBranch;
+import llvmast.LlvmCall;
+import llvmast.LlvmContext;
+import llvmast.LlvmDefine;
+import llvmast.LlvmFunction;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmLabel;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmModule;
+import llvmast.LlvmPhi;
+import llvmast.LlvmRegister;
+import llvmast.LlvmRet;
+import llvmast.LlvmValue;
+
+/*
+ * Replaces direct calls to small functions by a copy of their body.
+ *
+ * Functions are visited bottom-up over the call graph (the strongly
+ * connected components of Tarjan's algorithm come out callees first), so
+ * a callee is already in its final, inlined form when it is copied into
+ * its callers. A function is inlined when it has at most 'threshold'
+ * instructions and is not recursive; calls inside one cycle stay calls.
+ *
+ * The copy gets fresh registers and labels in the caller's numbering
+ * (LlvmContext): named registers such as the %x_tmp copies of the
+ * formals are renamed like any other, and the formals themselves
+ * (%this, %x) become the actual arguments. Allocas of the callee move to
+ * the caller's entry block, so a call inside a loop does not grow the
+ * stack on every iteration. Each ret becomes a branch to the code after
+ * the call, where a phi merges the returned values.
+ */
+class Inliner {
+	// Callers are not grown past this many instructions
+	private static final int MAX_CALLER_SIZE = 4000;
+
+	private final int threshold;
+	private int inlined;
+
+	private Map<String, List<LlvmInstruction>> bodies;
+	private Map<String, Integer> sizes;
+	private Set<String> recursive;
+
+	Inliner(int threshold) {
+		this.threshold = threshold;
+	}
+
+	int getInlinedCount() {
+		return inlined;
+	}
+
+	/*
+	 * Inlines into every function of 'module', replacing those that
+	 * change. contexts.get(i) numbers function i.
+	 */
+	void run(LlvmModule module, List<LlvmContext> contexts) {
+		bodies = new LinkedHashMap<String, List<LlvmInstruction>>();
+		Map<String, LlvmContext> contextOf = new HashMap<String, LlvmContext>();
+		for (int i = 0; i < module.functions.size(); i++) {
+			LlvmFunction f = module.functions.get(i);
+			bodies.put(f.getName(), f.toInstructions());
+			contextOf.put(f.getName(), contexts.get(i));
+		}
+		sizes = new HashMap<String, Integer>();
+		recursive = new HashSet<String>();
+
+		if (threshold <= 0)
+			return;
+		Set<String> changed = new HashSet<String>();
+		for (List<String> scc : new CallGraph().bottomUp()) {
+			for (String name : scc) {
+				LlvmContext previous = LlvmContext.bind(contextOf.get(name));
+				try {
+					List<LlvmInstruction> body = bodies.get(name);
+					List<LlvmInstruction> inlined = inlineInto(body);
+					if (inlined != body) {
+						bodies.put(name, inlined);
+						changed.add(name);
+					}
+				} finally {
+					LlvmContext.bind(previous);
+				}
+			}
+		}
+		for (int i = 0; i < module.functions.size(); i++) {
+			String name = module.functions.get(i).getName();
+			if (changed.contains(name))
+				module.functions.set(i, new LlvmFunction(bodies.get(name)));
+		}
+	}
+
+	private List<LlvmInstruction> inlineInto(List<LlvmInstruction> function) {
+		Cfg cfg = new Cfg(function);
+		int size = LlvmFunction.sizeOf(function);
+		List<LlvmInstruction> hoisted = new ArrayList<LlvmInstruction>();
+		boolean changed = false;
+
+		for (int i = 0; i < cfg.blocks.size(); i++) {
+			Cfg.Block b = cfg.blocks.get(i);
+			for (int k = 0; k < b.body.size(); k++) {
+				LlvmInstruction instr = b.body.get(k);
+				if (!(instr instanceof LlvmCall))
+					continue;
+				LlvmCall call = (LlvmCall) instr;
+				List<LlvmInstruction> callee = inlinable(call);
+				if (callee == null
+						|| size + sizes.get(call.fnName) > MAX_CALLER_SIZE)
+					continue;
+				List<Cfg.Block> copy = copyBody(callee, call, hoisted);
+				if (copy == null)
+					continue;
+				// the copied blocks were inlined into already: skip them
+				i = inline(cfg, i, k, call, copy);
+				size += sizes.get(call.fnName);
+				inlined++;
+				changed = true;
+				break;
+			}
+		}
+		if (!changed)
+			return function;
+		cfg.getEntry().body.addAll(0, hoisted);
+		cfg.link();
+		return cfg.toInstructions();
+	}
+
+	// The body of the function 'call' calls, if it is worth inlining
+	private List<LlvmInstruction> inlinable(LlvmCall call) {
+		if (call.fnValue != null || recursive.contains(call.fnName))
+			return null;
+		List<LlvmInstruction> callee = bodies.get(call.fnName);
+		if (callee == null || call.fnName.equals("@main"))
+			return null;
+		Integer size = sizes.get(call.fnName);
+		if (size == null) {
+			size = LlvmFunction.sizeOf(callee);
+			sizes.put(call.fnName, size);
+		}
+		return size <= threshold ? callee : null;
+	}
+
+	/*
+	 * Splits block i at the call (body[k]) and puts 'copy' between the two
+	 * halves. Returns the index of the last copied block.
+	 */
+	private int inline(Cfg cfg, int i, int k, LlvmCall call,
+			List<Cfg.Block> copy) {
+		Cfg.Block b = cfg.blocks.get(i);
+		Cfg.Block after = cfg.split(i, k + 1, freshLabel("inlineret"));
+		b.body.remove(k);
+		b.body.add(new LlvmBranch(copy.get(0).getLabelValue()));
+
+		List<LlvmValue> values = new ArrayList<LlvmValue>();
+		List<LlvmLabelValue> labels = new ArrayList<LlvmLabelValue>();
+		for (Cfg.Block c : copy) {
+			LlvmInstruction term = c.getTerminator();
+			if (term instanceof LlvmRet) {
+				c.body.set(c.body.size() - 1, new LlvmBranch(after
+						.getLabelValue()));
+				values.add(((LlvmRet) term).v);
+				labels.add(c.getLabelValue());
+			}
+		}
+		if (call.lhs != null && !values.isEmpty()) {
+			if (values.size() == 1) {
+				Map<String, LlvmValue> result = new HashMap<String, LlvmValue>();
+				result.put(call.lhs.toString(), values.get(0));
+				for (Cfg.Block other : cfg.blocks)
+					for (LlvmInstruction instr : other.body)
+						instr.replaceOperands(result);
+			} else {
+				after.body.add(0, new LlvmPhi(call.lhs, call.type, values,
+						labels));
+			}
+		}
+
+		for (int j = 0; j < copy.size(); j++)
+			cfg.insert(i + 1 + j, copy.get(j));
+		return i + copy.size();
+	}
+
+	// The callee's blocks, renamed for the caller; null if some
+	// instruction cannot be copied
+	private static List<Cfg.Block> copyBody(List<LlvmInstruction> callee,
+			LlvmCall call, List<LlvmInstruction> hoisted) {
+		Cfg body = new Cfg(callee);
+		LlvmDefine define = (LlvmDefine) body.header;
+		Map<String, LlvmValue> subst = new HashMap<String, LlvmValue>();
+		for (int i = 0; i < define.args.size(); i++)
+			subst.put(define.args.get(i).toString(), call.args.get(i));
+		for (Cfg.Block b : body.blocks) {
+			subst.put(b.getName(), freshLabel(b.getName()));
+			for (LlvmInstruction instr : b.body)
+				if (instr.getResult() != null)
+					subst.put(instr.getResult().toString(), new LlvmRegister(
+							instr.getResult().type));
+		}
+
+		List<Cfg.Block> copy = new ArrayList<Cfg.Block>();
+		List<LlvmInstruction> allocas = new ArrayList<LlvmInstruction>();
+		for (Cfg.Block b : body.blocks) {
+			Cfg.Block c = new Cfg.Block(new LlvmLabel(
+					(LlvmLabelValue) subst.get(b.getName())));
+			for (LlvmInstruction instr : b.body) {
+				LlvmInstruction copied = instr.copy(subst);
+				if (copied == null)
+					return null;
+				if (copied instanceof LlvmAlloca)
+					allocas.add(copied);
+				else
+					c.body.add(copied);
+			}
+			copy.add(c);
+		}
+		hoisted.addAll(allocas);
+		return copy;
+	}
+
+	// Same name without its number, numbered in the current function
+	private static LlvmLabelValue freshLabel(String name) {
+		int end = name.length();
+		while (end > 0 && Character.isDigit(name.charAt(end - 1)))
+			end--;
+		return new LlvmLabelValue(name.substring(0, end)
+				+ LlvmContext.current().newLabelNumber());
+	}
+
+	/*
+	 * Direct calls between the functions of the program, grouped into
+	 * strongly connected components (Tarjan), callees first.
+	 */
+	private class CallGraph {
+		private final Map<String, Integer> index = new HashMap<String, Integer>();
+		private final Map<String, Integer> low = new HashMap<String, Integer>();
+		private final List<String> stack = new ArrayList<String>();
+		private final Set<String> onStack = new HashSet<String>();
+		private final List<List<String>> order = new ArrayList<List<String>>();
+
+		List<List<String>> bottomUp() {
+			for (String f : bodies.keySet())
+				if (!index.containsKey(f))
+					visit(f);
+			return order;
+		}
+
+		private List<String> callees(String f) {
+			List<String> callees = new ArrayList<String>();
+			for (LlvmInstruction instr : bodies.get(f))
+				if (instr instanceof LlvmCall
+						&& ((LlvmCall) instr).fnValue == null
+						&& bodies.containsKey(((LlvmCall) instr).fnName))
+					callees.add(((LlvmCall) instr).fnName);
+			return callees;
+		}
+
+		// Recursive, but only as deep as the longest chain of calls in the
+		// program text
+		private void visit(String f) {
+			index.put(f, index.size());
+			low.put(f, index.get(f));
+			stack.add(f);
+			onStack.add(f);
+			for (String g : callees(f)) {
+				if (g.equals(f))
+					recursive.add(f);
+				if (!index.containsKey(g)) {
+					visit(g);
+					low.put(f, Math.min(low.get(f), low.get(g)));
+				} else if (onStack.contains(g)) {
+					low.put(f, Math.min(low.get(f), index.get(g)));
+				}
+			}
+			if (low.get(f).equals(index.get(f))) {
+				List<String> scc = new ArrayList<String>();
+				String g;
+				do {
+					g = stack.remove(stack.size() - 1);
+					onStack.remove(g);
+					scc.add(g);
+				} while (!g.equals(f));
+				if (scc.size() > 1)
+					recursive.addAll(scc);
+				order.add(scc);
+			}
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmBitcast;
+import llvmast.LlvmBranch;
+import llvmast.LlvmCall;
+import llvmast.LlvmContext;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmLabel;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmLoad;
+import llvmast.LlvmMalloc;
+import llvmast.LlvmPhi;
+import llvmast.LlvmRegister;
+import llvmast.LlvmStore;
+import llvmast.LlvmValue;
+
+/*
+ * Moves the computations a loop repeats with the same result on every
+ * iteration to a preheader, a block run once before the loop: arithmetic,
+ * addresses and, mostly, loads such as this.size or a.length in
+ * "while (i < a.length)".
+ *
+ * Whether a load gives the same value every time depends on the stores
+ * and calls of the loop, by the kind of its address (AddressKinds): the
+ * loads of lengths and vtables never change, a field load is invariant
+ * if the loop stores to no field like it and calls nothing that may, an
+ * element load if the loop stores to no element at all.
+ *
+ * A hoisted load runs even when the loop runs zero times, so it must not
+ * fault: it has to be in the header (which runs whenever the loop is
+ * reached) or load a field of this or of an object allocated here.
+ * Elements are only hoisted from the header, since the bounds checks
+ * precede them.
+ */
+class LoopInvariantCodeMotion implements FunctionPass {
+	private Cfg cfg;
+	private Map<String, LlvmInstruction> defs;
+	private Map<String, Cfg.Block> defBlocks;
+	private AddressKinds kinds;
+	private int hoisted, loads;
+
+	private static class Loop {
+		Cfg.Block header;
+		Set<Cfg.Block> body = new HashSet<Cfg.Block>();
+	}
+
+	// What the stores and calls of a loop may change
+	private static class Clobbers {
+		Set<String> fields = new HashSet<String>();
+		boolean elements;
+		boolean all; // fields and elements
+	}
+
+	public String getName() {
+		return "licm";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+		statistics.put("hoisted instructions", hoisted);
+		statistics.put("hoisted loads", loads);
+		return statistics;
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		cfg = new Cfg(function);
+		boolean changed = false;
+		boolean again = true;
+		// the preheader of an inner loop is part of the outer one: find the
+		// loops again after each change
+		while (again) {
+			again = false;
+			analyze();
+			for (Loop loop : loops()) {
+				if (hoist(loop)) {
+					again = changed = true;
+					break;
+				}
+			}
+		}
+		return changed ? cfg.toInstructions() : function;
+	}
+
+	private void analyze() {
+		cfg.computeDominators();
+		defs = new HashMap<String, LlvmInstruction>();
+		defBlocks = new HashMap<String, Cfg.Block>();
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				if (instr.getResult() != null) {
+					defs.put(instr.getResult().toString(), instr);
+					defBlocks.put(instr.getResult().toString(), b);
+				}
+		kinds = new AddressKinds(defs);
+	}
+
+	// Natural loops, innermost first
+	private List<Loop> loops() {
+		List<Loop> loops = new ArrayList<Loop>();
+		for (Cfg.Block h : cfg.blocks) {
+			if (h == cfg.getEntry())
+				continue; // no way in from outside
+			Loop loop = new Loop();
+			loop.header = h;
+			loop.body.add(h);
+			List<Cfg.Block> work = new ArrayList<Cfg.Block>();
+			for (Cfg.Block p : h.preds)
+				if (p.idom != null && cfg.dominates(h, p) && loop.body.add(p))
+					work.add(p);
+			if (work.isEmpty() && !h.preds.contains(h))
+				continue;
+			while (!work.isEmpty())
+				for (Cfg.Block p : work.remove(work.size() - 1).preds)
+					if (loop.body.add(p))
+						work.add(p);
+			loops.add(loop);
+		}
+		Collections.sort(loops, new Comparator<Loop>() {
+			public int compare(Loop a, Loop b) {
+				return a.body.size() - b.body.size();
+			}
+		});
+		return loops;
+	}
+
+	// Returns true if something moved out of 'loop'
+	private boolean hoist(Loop loop) {
+		Clobbers clobbers = clobbers(loop);
+		List<Cfg.Block> blocks = new ArrayList<Cfg.Block>(loop.body);
+		Collections.sort(blocks, new Comparator<Cfg.Block>() {
+			public int compare(Cfg.Block a, Cfg.Block b) {
+				return a.rpo - b.rpo;
+			}
+		});
+
+		// In an order where operands come first
+		Set<LlvmInstruction> invariant = new LinkedHashSet<LlvmInstruction>();
+		boolean found = true;
+		while (found) {
+			found = false;
+			for (Cfg.Block b : blocks)
+				for (LlvmInstruction instr : b.body)
+					if (!invariant.contains(instr)
+							&& isInvariant(instr, b, loop, invariant, clobbers)) {
+						invariant.add(instr);
+						found = true;
+					}
+		}
+		if (invariant.isEmpty())
+			return false;
+
+		Cfg.Block preheader = preheader(loop);
+		List<LlvmInstruction> body = preheader.body;
+		for (LlvmInstruction instr : invariant) {
+			defBlocks.get(instr.getResult().toString()).body.remove(instr);
+			body.add(body.size() - 1, instr);
+			hoisted++;
+			if (instr instanceof LlvmLoad)
+				loads++;
+		}
+		return true;
+	}
+
+	private Clobbers clobbers(Loop loop) {
+		Clobbers clobbers = new Clobbers();
+		for (Cfg.Block b : loop.body)
+			for (LlvmInstruction instr : b.body) {
+				if (instr instanceof LlvmStore) {
+					LlvmValue address = ((LlvmStore) instr).address;
+					int kind = kinds.kindOf(address);
+					if (kind == AddressKinds.FIELD)
+						clobbers.fields.add(kinds.fieldKey(address));
+					else if (kind == AddressKinds.ELEMENT)
+						clobbers.elements = true;
+					else if (!AddressKinds.isImmutable(kind))
+						clobbers.all = true;
+					// else a new array or object being set up
+				} else if (instr instanceof LlvmCall
+						&& AddressKinds.mayStore((LlvmCall) instr)) {
+					clobbers.all = true;
+				}
+			}
+		return clobbers;
+	}
+
+	private boolean isInvariant(LlvmInstruction instr, Cfg.Block b, Loop loop,
+			Set<LlvmInstruction> invariant, Clobbers clobbers) {
+		if (!(instr instanceof LlvmLoad || AddressKinds.isPure(instr)))
+			return false;
+		for (LlvmValue op : instr.getOperands()) {
+			Cfg.Block d = defBlocks.get(op.toString());
+			if (d != null && loop.body.contains(d)
+					&& !invariant.contains(defs.get(op.toString())))
+				return false;
+		}
+		if (!(instr instanceof LlvmLoad))
+			return true;
+
+		LlvmValue address = ((LlvmLoad) instr).address;
+		switch (kinds.kindOf(address)) {
+		case AddressKinds.FIELD:
+			if (clobbers.all
+					|| clobbers.fields.contains(kinds.fieldKey(address)))
+				return false;
+			return b == loop.header || isDereferenceable(address);
+		case AddressKinds.ELEMENT:
+			return !clobbers.all && !clobbers.elements && b == loop.header;
+		case AddressKinds.LENGTH:
+		case AddressKinds.VTABLE:
+			return b == loop.header || isDereferenceable(address);
+		default:
+			return false;
+		}
+	}
+
+	// Whether 'address' is in this or in an object allocated in this
+	// function (never null); vtable slots are in a constant vtable
+	private boolean isDereferenceable(LlvmValue address) {
+		LlvmValue base = address;
+		while (true) {
+			LlvmInstruction def = defs.get(base.toString());
+			if (def instanceof LlvmGetElementPointer)
+				base = ((LlvmGetElementPointer) def).source;
+			else if (def instanceof LlvmBitcast)
+				base = ((LlvmBitcast) def).source;
+			else if (def instanceof LlvmLoad && kinds.kindOf(((LlvmLoad) def)
+					.address) == AddressKinds.VTABLE)
+				base = ((LlvmLoad) def).address;
+			else
+				return base.toString().equals("%this")
+						|| def instanceof LlvmAlloca || def instanceof LlvmMalloc;
+		}
+	}
+
+	/*
+	 * The block that enters 'loop' from outside: the only predecessor from
+	 * outside if it branches nowhere else, otherwise a new block between
+	 * the predecessors from outside and the header. The header's phis then
+	 * take their values from outside through phis in the new block.
+	 */
+	private Cfg.Block preheader(Loop loop) {
+		Cfg.Block h = loop.header;
+		Set<Cfg.Block> outside = new LinkedHashSet<Cfg.Block>();
+		for (Cfg.Block p : h.preds)
+			if (!loop.body.contains(p))
+				outside.add(p);
+		if (outside.size() == 1) {
+			Cfg.Block p = outside.iterator().next();
+			if (p.succs.size() == 1)
+				return p;
+		}
+
+		Cfg.Block pre = new Cfg.Block(new LlvmLabel(freshLabel("preheader")));
+		Set<String> names = new HashSet<String>();
+		for (Cfg.Block p : outside)
+			names.add(p.getName());
+		for (LlvmInstruction instr : h.body) {
+			if (!(instr instanceof LlvmPhi))
+				break;
+			LlvmPhi phi = (LlvmPhi) instr;
+			LlvmPhi merged = new LlvmPhi(new LlvmRegister(phi.type), phi.type);
+			for (int i = phi.labels.size() - 1; i >= 0; i--) {
+				if (names.contains(phi.labels.get(i).value)) {
+					merged.values.add(0, phi.values.remove(i));
+					merged.labels.add(0, phi.labels.remove(i));
+				}
+			}
+			if (merged.values.size() == 1) {
+				phi.addIncoming(merged.values.get(0), pre.getLabelValue());
+			} else {
+				pre.body.add(merged);
+				phi.addIncoming(merged.lhs, pre.getLabelValue());
+			}
+		}
+		pre.body.add(new LlvmBranch(h.getLabelValue()));
+
+		for (Cfg.Block p : outside) {
+			LlvmBranch br = (LlvmBranch) p.getTerminator();
+			if (br.brTrue.value.equals(h.getName()))
+				br.brTrue = pre.getLabelValue();
+			if (br.brFalse != null && br.brFalse.value.equals(h.getName()))
+				br.brFalse = pre.getLabelValue();
+		}
+		cfg.insert(cfg.blocks.indexOf(h), pre);
+		cfg.link();
+		return pre;
+	}
+
+	private static LlvmLabelValue freshLabel(String name) {
+		return new LlvmLabelValue(name + LlvmContext.current().newLabelNumber());
+	}
+}
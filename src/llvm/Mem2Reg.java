@@ -0,0 +1,253 @@
+package llvm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmBool;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmLoad;
+import llvmast.LlvmNull;
+import llvmast.LlvmPhi;
+import llvmast.LlvmPointer;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmRegister;
+import llvmast.LlvmStore;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * Promotes scalar allocas (locals and the %x_tmp copies of formals) to SSA
+ * registers, inserting phi nodes at the join points of If/While.
+ *
+ * An alloca is promoted when its address is only ever used as the address
+ * of a load or a store. Loads are replaced by the reaching definition and
+ * the stores and the alloca itself are dropped (Cytron et al.).
+ */
+class Mem2Reg implements FunctionPass {
+	private Cfg cfg;
+	private Map<String, LlvmAlloca> allocas;
+	private Map<LlvmPhi, String> phiVars;
+	private Map<String, Deque<LlvmValue>> stacks;
+	private Map<String, LlvmValue> subst;
+	private int promoted;
+
+	public String getName() {
+		return "mem2reg";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("promoted allocas", promoted);
+	}
+
+	// Returns the rewritten function
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		cfg = new Cfg(function);
+		cfg.removeUnreachable();
+		allocas = findPromotable();
+		promoted = allocas.size();
+		if (allocas.isEmpty())
+			return cfg.toInstructions();
+
+		cfg.computeDominators();
+		insertPhis();
+		rename();
+		removeDeadPhis();
+		return cfg.toInstructions();
+	}
+
+	private Map<String, LlvmAlloca> findPromotable() {
+		Map<String, LlvmAlloca> candidates = new LinkedHashMap<String, LlvmAlloca>();
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				if (instr instanceof LlvmAlloca
+						&& ((LlvmAlloca) instr).numbers.isEmpty())
+					candidates.put(instr.getResult().toString(),
+							(LlvmAlloca) instr);
+
+		// Any use other than "address of a load/store" makes it escape
+		for (Cfg.Block b : cfg.blocks) {
+			for (LlvmInstruction instr : b.body) {
+				if (instr instanceof LlvmLoad)
+					continue;
+				if (instr instanceof LlvmStore) {
+					candidates.remove(((LlvmStore) instr).content.toString());
+					continue;
+				}
+				for (LlvmValue op : instr.getOperands())
+					if (op instanceof LlvmRegister)
+						candidates.remove(op.toString());
+			}
+		}
+		return candidates;
+	}
+
+	private void insertPhis() {
+		Map<Cfg.Block, Set<Cfg.Block>> df = cfg.dominanceFrontiers();
+		phiVars = new HashMap<LlvmPhi, String>();
+
+		for (Map.Entry<String, LlvmAlloca> var : allocas.entrySet()) {
+			String name = var.getKey();
+			LlvmType type = var.getValue().type;
+
+			Deque<Cfg.Block> work = new ArrayDeque<Cfg.Block>();
+			Set<Cfg.Block> defs = new HashSet<Cfg.Block>();
+			for (Cfg.Block b : cfg.blocks)
+				for (LlvmInstruction instr : b.body)
+					if (instr instanceof LlvmStore
+							&& ((LlvmStore) instr).address.toString().equals(name)
+							&& defs.add(b))
+						work.add(b);
+
+			Set<Cfg.Block> hasPhi = new HashSet<Cfg.Block>();
+			while (!work.isEmpty()) {
+				Cfg.Block b = work.poll();
+				for (Cfg.Block join : df.get(b)) {
+					if (!hasPhi.add(join))
+						continue;
+					LlvmPhi phi = new LlvmPhi(new LlvmRegister(type), type);
+					join.body.add(0, phi);
+					phiVars.put(phi, name);
+					if (defs.add(join))
+						work.add(join);
+				}
+			}
+		}
+	}
+
+	private void rename() {
+		stacks = new HashMap<String, Deque<LlvmValue>>();
+		for (String name : allocas.keySet())
+			stacks.put(name, new ArrayDeque<LlvmValue>());
+		subst = new HashMap<String, LlvmValue>();
+
+		// Walk the dominator tree without recursion; a null entry marks the
+		// point where the definitions of the block on top must be popped
+		Deque<Cfg.Block> work = new ArrayDeque<Cfg.Block>();
+		Deque<List<String>> pushed = new ArrayDeque<List<String>>();
+		work.push(cfg.getEntry());
+		while (!work.isEmpty()) {
+			Cfg.Block b = work.pop();
+			if (b == EXIT) {
+				for (String name : pushed.pop())
+					stacks.get(name).pop();
+				continue;
+			}
+			pushed.push(renameBlock(b));
+			work.push(EXIT);
+			for (Cfg.Block child : b.domChildren)
+				work.push(child);
+		}
+
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				instr.replaceOperands(subst);
+	}
+
+	private static final Cfg.Block EXIT = new Cfg.Block(null);
+
+	private List<String> renameBlock(Cfg.Block b) {
+		List<String> pushed = new ArrayList<String>();
+
+		for (Iterator<LlvmInstruction> it = b.body.iterator(); it.hasNext();) {
+			LlvmInstruction instr = it.next();
+
+			if (instr instanceof LlvmPhi && phiVars.containsKey(instr)) {
+				String name = phiVars.get(instr);
+				stacks.get(name).push(((LlvmPhi) instr).lhs);
+				pushed.add(name);
+
+			} else if (instr instanceof LlvmAlloca
+					&& allocas.containsKey(instr.getResult().toString())) {
+				it.remove();
+
+			} else if (instr instanceof LlvmLoad
+					&& allocas.containsKey(((LlvmLoad) instr).address.toString())) {
+				String name = ((LlvmLoad) instr).address.toString();
+				subst.put(instr.getResult().toString(), current(name));
+				it.remove();
+
+			} else if (instr instanceof LlvmStore
+					&& allocas.containsKey(((LlvmStore) instr).address.toString())) {
+				LlvmStore store = (LlvmStore) instr;
+				String name = store.address.toString();
+				LlvmValue v = store.content;
+				if (v instanceof LlvmRegister && subst.containsKey(v.toString()))
+					v = subst.get(v.toString());
+				stacks.get(name).push(v);
+				pushed.add(name);
+				it.remove();
+			}
+		}
+
+		for (Cfg.Block succ : b.succs) {
+			for (LlvmInstruction instr : succ.body) {
+				if (!(instr instanceof LlvmPhi))
+					break;
+				String name = phiVars.get(instr);
+				if (name != null)
+					((LlvmPhi) instr).addIncoming(current(name),
+							b.getLabelValue());
+			}
+		}
+		return pushed;
+	}
+
+	// Reaching definition; a local read before any assignment reads zero
+	private LlvmValue current(String name) {
+		Deque<LlvmValue> stack = stacks.get(name);
+		if (!stack.isEmpty())
+			return stack.peek();
+		return zero(allocas.get(name).type);
+	}
+
+	static LlvmValue zero(LlvmType type) {
+		if (type instanceof LlvmPointer)
+			return new LlvmNull(type);
+		if (type == LlvmPrimitiveType.I1)
+			return new LlvmBool(LlvmBool.FALSE);
+		return new LlvmIntegerLiteral(0);
+	}
+
+	// Minimal SSA places phis for variables that are dead at the join; drop
+	// every phi that no real instruction (transitively) reads
+	private void removeDeadPhis() {
+		Map<String, LlvmPhi> phis = new HashMap<String, LlvmPhi>();
+		for (LlvmPhi phi : phiVars.keySet())
+			phis.put(phi.lhs.toString(), phi);
+
+		Set<LlvmPhi> live = new HashSet<LlvmPhi>();
+		Deque<LlvmPhi> work = new ArrayDeque<LlvmPhi>();
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				if (!phiVars.containsKey(instr))
+					for (LlvmValue op : instr.getOperands()) {
+						LlvmPhi phi = phis.get(op.toString());
+						if (phi != null && live.add(phi))
+							work.add(phi);
+					}
+		while (!work.isEmpty())
+			for (LlvmValue op : work.poll().getOperands()) {
+				LlvmPhi phi = phis.get(op.toString());
+				if (phi != null && live.add(phi))
+					work.add(phi);
+			}
+
+		for (Cfg.Block b : cfg.blocks)
+			for (Iterator<LlvmInstruction> it = b.body.iterator(); it.hasNext();) {
+				LlvmInstruction instr = it.next();
+				if (phiVars.containsKey(instr) && !live.contains(instr))
+					it.remove();
+			}
+	}
+}
@@ -0,0 +1,64 @@
+package llvm;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmDefine;
+import llvmast.LlvmFunctionType;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+class MethodNode extends LlvmType {
+	String name;
+	List<LlvmValue> formalList;
+	List<LlvmValue> varList;
+	Map<String, LlvmValue> formals;
+	Map<String, LlvmValue> vars;
+	LlvmType returnType;
+	ClassNode owner; // classe que declara o metodo
+
+	public MethodNode(String name, List<LlvmValue> formalList,
+			List<LlvmValue> varList, LlvmType returnType) {
+		this.name = name;
+		this.formalList = formalList;
+		this.varList = varList;
+		this.vars = new HashMap<String, LlvmValue>();
+		for (LlvmValue var : varList) {
+			this.vars.put(var.toString(), var);
+		}
+
+		this.formals = new HashMap<String, LlvmValue>();
+		for (LlvmValue formal : formalList) {
+			this.formals.put(formal.toString(), formal);
+		}
+
+		this.returnType = returnType;
+	}
+
+	public boolean hasFormal(String formalName) {
+		return this.formals.containsKey(formalName);
+	}
+
+	public LlvmInstruction getFunctionDefinition(ClassNode classEnv) {
+		return new LlvmDefine(getFunctionName(classEnv), returnType, formalList);
+	}
+
+	public String getFunctionName(ClassNode classEnv) {
+		return "@__" + this.name + "_" + classEnv.getName();
+	}
+
+	public LlvmFunctionType getFunctionType(ClassNode classEnv) {
+		List<LlvmType> types = new LinkedList<LlvmType>();
+		types.add(classEnv.getClassPointer());
+		for (int i = 1; i < formalList.size(); i++)
+			types.add(formalList.get(i).type);
+		return new LlvmFunctionType(returnType, types);
+	}
+
+	public Boolean hasLocalVariable(String varName) {
+		return this.vars.containsKey(varName);
+	}
+}
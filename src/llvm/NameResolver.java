@@ -0,0 +1,190 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmValue;
+import syntaxtree.And;
+import syntaxtree.ArrayAssign;
+import syntaxtree.ArrayLength;
+import syntaxtree.ArrayLookup;
+import syntaxtree.Assign;
+import syntaxtree.Block;
+import syntaxtree.Call;
+import syntaxtree.Equal;
+import syntaxtree.Exp;
+import syntaxtree.Formal;
+import syntaxtree.Identifier;
+import syntaxtree.IdentifierExp;
+import syntaxtree.If;
+import syntaxtree.LessThan;
+import syntaxtree.MethodDecl;
+import syntaxtree.Minus;
+import syntaxtree.NewArray;
+import syntaxtree.Not;
+import syntaxtree.Plus;
+import syntaxtree.Print;
+import syntaxtree.Statement;
+import syntaxtree.Times;
+import syntaxtree.VarDecl;
+import syntaxtree.VisitorAdapter;
+import syntaxtree.While;
+
+/*
+ * Binds every name of one method body to its Slot before the method is
+ * lowered: the declared locals and formals and the identifiers of
+ * IdentifierExp, Assign and ArrayAssign. Each name is looked up here
+ * once; lowering then goes from the Identifier node straight to its slot.
+ * Locals and formals hide the fields of the class.
+ */
+class NameResolver extends VisitorAdapter {
+	private final Map<String, Slot> scope;
+	private final Map<Identifier, Slot> slots = new IdentityHashMap<Identifier, Slot>();
+	private final List<Slot> formals = new ArrayList<Slot>();
+
+	NameResolver(ClassNode classEnv, MethodNode method, MethodDecl n) {
+		scope = new HashMap<String, Slot>(classEnv.getFieldSlots());
+		int i = 1; // formalList.get(0) is %this
+		for (util.List<Formal> f = n.formals; f != null; f = f.tail, i++) {
+			Slot formal = Slot.formal(i, method.formalList.get(i));
+			formals.add(formal);
+			bind(f.head.name, formal);
+		}
+		i = 0;
+		for (util.List<VarDecl> v = n.locals; v != null; v = v.tail, i++)
+			bind(v.head.name, Slot.local(i, method.varList.get(i)));
+
+		for (util.List<Statement> s = n.body; s != null; s = s.tail)
+			s.head.accept(this);
+		n.returnExp.accept(this);
+	}
+
+	// Slot of a declaration or use of a name
+	Slot get(Identifier name) {
+		return slots.get(name);
+	}
+
+	// Formals but %this, in order
+	List<Slot> getFormals() {
+		return formals;
+	}
+
+	private void bind(Identifier name, Slot slot) {
+		scope.put(name.s, slot);
+		slots.put(name, slot);
+	}
+
+	private void use(Identifier name) {
+		slots.put(name, scope.get(name.s));
+	}
+
+	public LlvmValue visit(Block n) {
+		for (util.List<Statement> s = n.body; s != null; s = s.tail)
+			s.head.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(If n) {
+		n.condition.accept(this);
+		n.thenClause.accept(this);
+		if (n.elseClause != null)
+			n.elseClause.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(While n) {
+		n.condition.accept(this);
+		n.body.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Print n) {
+		n.exp.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Assign n) {
+		use(n.var);
+		n.exp.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(ArrayAssign n) {
+		use(n.var);
+		n.index.accept(this);
+		n.value.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(And n) {
+		n.lhs.accept(this);
+		n.rhs.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(LessThan n) {
+		n.lhs.accept(this);
+		n.rhs.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Equal n) {
+		n.lhs.accept(this);
+		n.rhs.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Plus n) {
+		n.lhs.accept(this);
+		n.rhs.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Minus n) {
+		n.lhs.accept(this);
+		n.rhs.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Times n) {
+		n.lhs.accept(this);
+		n.rhs.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(ArrayLookup n) {
+		n.array.accept(this);
+		n.index.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(ArrayLength n) {
+		n.array.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Call n) {
+		n.object.accept(this);
+		for (util.List<Exp> a = n.actuals; a != null; a = a.tail)
+			a.head.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(NewArray n) {
+		n.size.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Not n) {
+		n.exp.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(IdentifierExp n) {
+		use(n.name);
+		return null;
+	}
+}
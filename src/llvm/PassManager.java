@@ -0,0 +1,112 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmFunction;
+import llvmast.LlvmInstruction;
+
+/*
+ * Runs a pipeline of function passes, timing each one and counting the
+ * instructions it leaves, so that compile time can be weighed against
+ * what a pass buys. Each function goes through two pipelines: 'function'
+ * right after it is lowered, and 'program' once the whole program is
+ * lowered (and inlined), for the passes that look at the other functions.
+ *
+ *   -O0  nothing: the code as Codegen emits it, objects from malloc
+ *   -O1  mem2reg, constant propagation, value numbering, dead code;
+ *        objects from the arena
+ *   -O2  -O1 with tail recursion elimination and bounds check
+ *        elimination, then inlining, stack allocation, scalar
+ *        replacement, loop-invariant code motion and tail calls
+ *        (the default)
+ */
+class PassManager {
+	static final int O0 = 0;
+	static final int O1 = 1;
+	static final int O2 = 2;
+
+	private final String pipeline;
+	private final List<FunctionPass> passes = new ArrayList<FunctionPass>();
+	private final Map<String, Integer> statistics = new LinkedHashMap<String, Integer>();
+
+	PassManager(String pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	// Passes for a function just lowered
+	static PassManager function(int level) {
+		PassManager pm = new PassManager("function");
+		if (level >= O1) {
+			pm.add(new Mem2Reg());
+			pm.add(new ConstantPropagation());
+		}
+		if (level >= O2) {
+			// before inlining, which skips recursive functions
+			pm.add(new TailRecursionElimination());
+			pm.add(new BoundsCheckElimination());
+		}
+		if (level >= O1) {
+			// after bce, which looks for the length loads of the checks
+			pm.add(new GlobalValueNumbering());
+			pm.add(new DeadCodeElimination());
+		}
+		return pm;
+	}
+
+	// Passes for a function once the whole program went through function();
+	// 'escapes' may be null below -O2
+	static PassManager program(int level, EscapeAnalysis escapes) {
+		PassManager pm = new PassManager("program");
+		if (level >= O2) {
+			// the arguments of the inlined calls are often constants
+			pm.add(new ConstantPropagation());
+			pm.add(new StackAllocation(escapes));
+			pm.add(new ScalarReplacement());
+			pm.add(new Mem2Reg());
+			pm.add(new GlobalValueNumbering());
+			pm.add(new LoopInvariantCodeMotion());
+			pm.add(new DeadCodeElimination());
+			pm.add(new TailCallMarking());
+		}
+		if (level >= O1)
+			pm.add(new ArenaAllocation());
+		return pm;
+	}
+
+	void add(FunctionPass pass) {
+		passes.add(pass);
+	}
+
+	List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		if (passes.isEmpty())
+			return function;
+		count(pipeline + " instructions in", LlvmFunction.sizeOf(function));
+		for (FunctionPass pass : passes) {
+			long start = System.nanoTime();
+			function = pass.run(function);
+			long elapsed = System.nanoTime() - start;
+			String key = pipeline + "/" + pass.getName();
+			count(key + " time (us)", (int) (elapsed / 1000));
+			count(key + " instructions out", LlvmFunction.sizeOf(function));
+			for (Map.Entry<String, Integer> e : pass.getStatistics().entrySet())
+				count(e.getKey(), e.getValue());
+		}
+		return function;
+	}
+
+	/*
+	 * What the passes did, summed over the runs: their own counters plus,
+	 * for each pass, its time and the instructions left after it.
+	 */
+	Map<String, Integer> getStatistics() {
+		return statistics;
+	}
+
+	private void count(String key, int n) {
+		Integer previous = statistics.get(key);
+		statistics.put(key, previous == null ? n : previous + n);
+	}
+}
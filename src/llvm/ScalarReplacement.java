@@ -0,0 +1,202 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmBitcast;
+import llvmast.LlvmClassType;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmLoad;
+import llvmast.LlvmPointer;
+import llvmast.LlvmRegister;
+import llvmast.LlvmStore;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * Splits the objects that StackAllocation put on the stack into one
+ * alloca per field, which Mem2Reg then turns into SSA values: no memory
+ * is left for the object at all.
+ *
+ * Only objects whose address never leaves the function qualify, that is,
+ * once the methods called on them were inlined. The object may only be
+ * used through
+ *
+ *   - bitcasts to another class (an inherited method sees a superclass;
+ *     with the flat layout field k is the same in both)
+ *   - getelementptr %obj, i32 0, i32 k (field k)
+ *   - a bitcast to the vtable pointer's address (field 0)
+ *
+ * and the field addresses only as the address of a load or a store.
+ */
+class ScalarReplacement implements FunctionPass {
+	private int replaced;
+
+	public String getName() {
+		return "sroa";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("scalar-replaced objects", replaced);
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		List<LlvmAlloca> candidates = new ArrayList<LlvmAlloca>();
+		for (LlvmInstruction instr : function)
+			if (instr instanceof LlvmAlloca
+					&& ((LlvmAlloca) instr).numbers.isEmpty()
+					&& ((LlvmAlloca) instr).type instanceof LlvmClassType)
+				candidates.add((LlvmAlloca) instr);
+		if (candidates.isEmpty())
+			return function;
+
+		Set<LlvmInstruction> removed = new HashSet<LlvmInstruction>();
+		Map<String, LlvmValue> subst = new HashMap<String, LlvmValue>();
+		List<LlvmInstruction> fieldAllocas = new ArrayList<LlvmInstruction>();
+		for (LlvmAlloca object : candidates) {
+			Map<LlvmInstruction, Integer> fields = split(function, object);
+			if (fields == null)
+				continue;
+			Map<Integer, LlvmRegister> slots = new HashMap<Integer, LlvmRegister>();
+			for (Map.Entry<LlvmInstruction, Integer> e : fields.entrySet()) {
+				LlvmValue address = e.getKey().getResult();
+				LlvmRegister slot = slots.get(e.getValue());
+				if (slot == null) {
+					slot = new LlvmRegister(address.type);
+					slots.put(e.getValue(), slot);
+					fieldAllocas.add(new LlvmAlloca(slot,
+							((LlvmPointer) address.type).content,
+							new LinkedList<LlvmValue>()));
+				}
+				subst.put(address.toString(), slot);
+			}
+			removed.addAll(fields.keySet());
+			removed.addAll(objectViews(function, object));
+			replaced++;
+		}
+		if (replaced == 0)
+			return function;
+
+		List<LlvmInstruction> result = new ArrayList<LlvmInstruction>();
+		for (LlvmInstruction instr : function) {
+			if (removed.contains(instr))
+				continue;
+			instr.replaceOperands(subst);
+			result.add(instr);
+		}
+		// the field slots go right after "define ... {" and "entry:"
+		result.addAll(2, fieldAllocas);
+		return result;
+	}
+
+	// The alloca and its bitcasts to other classes
+	private static Set<LlvmInstruction> objectViews(
+			List<LlvmInstruction> function, LlvmAlloca object) {
+		Set<LlvmInstruction> views = new HashSet<LlvmInstruction>();
+		views.add(object);
+		Set<String> names = new HashSet<String>();
+		names.add(object.lhs.toString());
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (LlvmInstruction instr : function) {
+				if (!(instr instanceof LlvmBitcast) || views.contains(instr))
+					continue;
+				LlvmBitcast cast = (LlvmBitcast) instr;
+				if (names.contains(cast.source.toString())
+						&& isClassPointer(cast.toType)) {
+					views.add(cast);
+					names.add(cast.lhs.toString());
+					changed = true;
+				}
+			}
+		}
+		return views;
+	}
+
+	// Field address instruction -> field index, or null if some use of the
+	// object does not allow splitting it
+	private static Map<LlvmInstruction, Integer> split(
+			List<LlvmInstruction> function, LlvmAlloca object) {
+		Set<String> views = new HashSet<String>();
+		for (LlvmInstruction instr : objectViews(function, object))
+			views.add(instr.getResult().toString());
+
+		Map<LlvmInstruction, Integer> fields = new LinkedHashMap<LlvmInstruction, Integer>();
+		Set<String> addresses = new HashSet<String>();
+		for (LlvmInstruction instr : function) {
+			int field = fieldOf(instr, views);
+			if (field >= 0) {
+				fields.put(instr, field);
+				addresses.add(instr.getResult().toString());
+			}
+		}
+
+		for (LlvmInstruction instr : function) {
+			if (fields.containsKey(instr))
+				continue;
+			if (instr instanceof LlvmBitcast
+					&& views.contains(instr.getResult().toString()))
+				continue;
+			if (instr instanceof LlvmLoad)
+				continue;
+			if (instr instanceof LlvmStore) {
+				String content = ((LlvmStore) instr).content.toString();
+				if (views.contains(content) || addresses.contains(content))
+					return null;
+				continue;
+			}
+			for (LlvmValue op : instr.getOperands())
+				if (views.contains(op.toString())
+						|| addresses.contains(op.toString()))
+					return null;
+		}
+		// a load through a view itself (not a field) reads the whole object
+		for (LlvmInstruction instr : function)
+			if (instr instanceof LlvmLoad
+					&& views.contains(((LlvmLoad) instr).address.toString()))
+				return null;
+		return fields;
+	}
+
+	// Index of the field 'instr' takes the address of, or -1
+	private static int fieldOf(LlvmInstruction instr, Set<String> views) {
+		if (instr instanceof LlvmGetElementPointer) {
+			LlvmGetElementPointer gep = (LlvmGetElementPointer) instr;
+			if (!views.contains(gep.source.toString())
+					|| gep.offsets.size() != 2
+					|| !isLiteral(gep.offsets.get(0), 0)
+					|| !(gep.offsets.get(1) instanceof LlvmIntegerLiteral))
+				return -1;
+			return ((LlvmIntegerLiteral) gep.offsets.get(1)).value;
+		}
+		if (instr instanceof LlvmBitcast) {
+			LlvmBitcast cast = (LlvmBitcast) instr;
+			if (views.contains(cast.source.toString())
+					&& cast.toType instanceof LlvmPointer
+					&& ((LlvmPointer) cast.toType).content == ClassNode.VTABLE_POINTER)
+				return 0;
+		}
+		return -1;
+	}
+
+	private static boolean isClassPointer(LlvmType type) {
+		return type instanceof LlvmPointer
+				&& ((LlvmPointer) type).content instanceof LlvmClassType;
+	}
+
+	private static boolean isLiteral(LlvmValue v, int value) {
+		return v instanceof LlvmIntegerLiteral
+				&& ((LlvmIntegerLiteral) v).value == value;
+	}
+}
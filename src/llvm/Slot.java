@@ -0,0 +1,60 @@
+package llvm;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmNamedValue;
+import llvmast.LlvmPointer;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * Where a name used in a method body lives, as NameResolver binds it:
+ *
+ *   LOCAL   the alloca %x of a local variable
+ *   FORMAL  the alloca %x_tmp holding a copy of the formal %x
+ *   FIELD   field 'index' of the object %this points to
+ *
+ * Lowering reads or writes the slot without looking the name up again.
+ */
+class Slot {
+	static final int LOCAL = 0;
+	static final int FORMAL = 1;
+	static final int FIELD = 2;
+
+	final int kind;
+	final int index; // among the locals / formals (0 is %this) / in the struct
+	final LlvmType type; // declared type
+	final LlvmNamedValue address; // LOCAL, FORMAL: the alloca
+
+	private Slot(int kind, int index, LlvmType type, LlvmNamedValue address) {
+		this.kind = kind;
+		this.index = index;
+		this.type = type;
+		this.address = address;
+	}
+
+	static Slot local(int index, LlvmValue var) {
+		return new Slot(LOCAL, index, var.type, new LlvmNamedValue(
+				var.toString(), new LlvmPointer(var.type)));
+	}
+
+	static Slot formal(int index, LlvmValue formal) {
+		return new Slot(FORMAL, index, formal.type, new LlvmNamedValue(
+				formal.toString() + "_tmp", new LlvmPointer(formal.type)));
+	}
+
+	static Slot field(int index, LlvmValue field) {
+		return new Slot(FIELD, index, field.type, null);
+	}
+
+	// FIELD: getelementptr offsets from %this (a new list every time: an
+	// instruction owns its offsets)
+	List<LlvmValue> getOffsets() {
+		List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+		offsets.add(new LlvmIntegerLiteral(0));
+		offsets.add(new LlvmIntegerLiteral(index));
+		return offsets;
+	}
+}
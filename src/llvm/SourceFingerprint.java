@@ -0,0 +1,333 @@
+package llvm;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import llvmast.LlvmValue;
+import syntaxtree.Absyn;
+import syntaxtree.And;
+import syntaxtree.ArrayAssign;
+import syntaxtree.ArrayLength;
+import syntaxtree.ArrayLookup;
+import syntaxtree.Assign;
+import syntaxtree.Block;
+import syntaxtree.BooleanType;
+import syntaxtree.Call;
+import syntaxtree.ClassDecl;
+import syntaxtree.ClassDeclExtends;
+import syntaxtree.ClassDeclSimple;
+import syntaxtree.Equal;
+import syntaxtree.Exp;
+import syntaxtree.False;
+import syntaxtree.Formal;
+import syntaxtree.Identifier;
+import syntaxtree.IdentifierExp;
+import syntaxtree.IdentifierType;
+import syntaxtree.If;
+import syntaxtree.IntArrayType;
+import syntaxtree.IntegerLiteral;
+import syntaxtree.IntegerType;
+import syntaxtree.LessThan;
+import syntaxtree.MainClass;
+import syntaxtree.MethodDecl;
+import syntaxtree.Minus;
+import syntaxtree.NewArray;
+import syntaxtree.NewObject;
+import syntaxtree.Not;
+import syntaxtree.Plus;
+import syntaxtree.Print;
+import syntaxtree.Statement;
+import syntaxtree.This;
+import syntaxtree.Times;
+import syntaxtree.True;
+import syntaxtree.VarDecl;
+import syntaxtree.VisitorAdapter;
+import syntaxtree.While;
+
+/*
+ * Canonical text of one class (or of the main class): everything Codegen
+ * reads from its AST, and nothing else. The toString() of the syntax tree
+ * leaves the declarations of locals out, so it cannot be used. Line
+ * numbers only appear where the code uses them (the bounds checks).
+ *
+ * Also collects the classes the text refers to: the superclass, declared
+ * types, new C() and the static types of expressions (a receiver typed C
+ * whose name is nowhere in the text, as in a.get().size()).
+ */
+class SourceFingerprint extends VisitorAdapter {
+	private final StringBuilder text = new StringBuilder();
+	private final Set<String> references = new LinkedHashSet<String>();
+
+	SourceFingerprint(Absyn unit) {
+		unit.accept(this);
+	}
+
+	String getText() {
+		return text.toString();
+	}
+
+	// Class names, in order of appearance
+	Set<String> getReferences() {
+		return references;
+	}
+
+	private void exp(Exp e) {
+		e.accept(this);
+		if (e.type instanceof IdentifierType)
+			references.add(((IdentifierType) e.type).name);
+	}
+
+	private void exps(util.List<Exp> list) {
+		for (; list != null; list = list.tail) {
+			exp(list.head);
+			text.append(',');
+		}
+	}
+
+	private void statements(util.List<Statement> list) {
+		for (; list != null; list = list.tail)
+			list.head.accept(this);
+	}
+
+	private void binary(Exp lhs, String op, Exp rhs) {
+		text.append('(');
+		exp(lhs);
+		text.append(op);
+		exp(rhs);
+		text.append(')');
+	}
+
+	private void members(ClassDecl n) {
+		text.append("{\n");
+		for (util.List<VarDecl> v = n.varList; v != null; v = v.tail)
+			v.head.accept(this);
+		for (util.List<MethodDecl> m = n.methodList; m != null; m = m.tail)
+			m.head.accept(this);
+		text.append("}\n");
+	}
+
+	public LlvmValue visit(MainClass n) {
+		text.append("main ").append(n.className.s).append('(')
+				.append(n.mainArgName.s).append(") {\n");
+		n.stm.accept(this);
+		text.append("}\n");
+		return null;
+	}
+
+	public LlvmValue visit(ClassDeclSimple n) {
+		text.append("class ").append(n.name.s);
+		members(n);
+		return null;
+	}
+
+	public LlvmValue visit(ClassDeclExtends n) {
+		text.append("class ").append(n.name.s).append(" extends ")
+				.append(n.superClass.s);
+		references.add(n.superClass.s);
+		members(n);
+		return null;
+	}
+
+	public LlvmValue visit(VarDecl n) {
+		n.type.accept(this);
+		text.append(' ').append(n.name.s).append(";\n");
+		return null;
+	}
+
+	public LlvmValue visit(MethodDecl n) {
+		n.returnType.accept(this);
+		text.append(' ').append(n.name.s).append('(');
+		for (util.List<Formal> f = n.formals; f != null; f = f.tail)
+			f.head.accept(this);
+		text.append(") {\n");
+		for (util.List<VarDecl> v = n.locals; v != null; v = v.tail)
+			v.head.accept(this);
+		statements(n.body);
+		text.append("return ");
+		exp(n.returnExp);
+		text.append(";\n}\n");
+		return null;
+	}
+
+	public LlvmValue visit(Formal n) {
+		n.type.accept(this);
+		text.append(' ').append(n.name.s).append(',');
+		return null;
+	}
+
+	public LlvmValue visit(IntArrayType n) {
+		text.append("int[]");
+		return null;
+	}
+
+	public LlvmValue visit(BooleanType n) {
+		text.append("boolean");
+		return null;
+	}
+
+	public LlvmValue visit(IntegerType n) {
+		text.append("int");
+		return null;
+	}
+
+	public LlvmValue visit(IdentifierType n) {
+		text.append(n.name);
+		references.add(n.name);
+		return null;
+	}
+
+	public LlvmValue visit(Block n) {
+		text.append("{\n");
+		statements(n.body);
+		text.append("}\n");
+		return null;
+	}
+
+	public LlvmValue visit(If n) {
+		text.append("if ");
+		exp(n.condition);
+		text.append('\n');
+		n.thenClause.accept(this);
+		if (n.elseClause != null) {
+			text.append("else\n");
+			n.elseClause.accept(this);
+		}
+		text.append("endif\n");
+		return null;
+	}
+
+	public LlvmValue visit(While n) {
+		text.append("while ");
+		exp(n.condition);
+		text.append('\n');
+		n.body.accept(this);
+		text.append("endwhile\n");
+		return null;
+	}
+
+	public LlvmValue visit(Print n) {
+		text.append("print ");
+		exp(n.exp);
+		text.append(";\n");
+		return null;
+	}
+
+	public LlvmValue visit(Assign n) {
+		text.append(n.var.s).append(" = ");
+		exp(n.exp);
+		text.append(";\n");
+		return null;
+	}
+
+	// The line goes into the bounds check
+	public LlvmValue visit(ArrayAssign n) {
+		text.append(n.var.s).append('[');
+		exp(n.index);
+		text.append("] = ");
+		exp(n.value);
+		text.append("; @").append(n.line).append('\n');
+		return null;
+	}
+
+	public LlvmValue visit(And n) {
+		binary(n.lhs, "&&", n.rhs);
+		return null;
+	}
+
+	public LlvmValue visit(LessThan n) {
+		binary(n.lhs, "<", n.rhs);
+		return null;
+	}
+
+	public LlvmValue visit(Equal n) {
+		binary(n.lhs, "==", n.rhs);
+		return null;
+	}
+
+	public LlvmValue visit(Plus n) {
+		binary(n.lhs, "+", n.rhs);
+		return null;
+	}
+
+	public LlvmValue visit(Minus n) {
+		binary(n.lhs, "-", n.rhs);
+		return null;
+	}
+
+	public LlvmValue visit(Times n) {
+		binary(n.lhs, "*", n.rhs);
+		return null;
+	}
+
+	public LlvmValue visit(ArrayLookup n) {
+		exp(n.array);
+		text.append('[');
+		exp(n.index);
+		text.append(" @").append(n.line).append(']');
+		return null;
+	}
+
+	public LlvmValue visit(ArrayLength n) {
+		exp(n.array);
+		text.append(".length");
+		return null;
+	}
+
+	public LlvmValue visit(Call n) {
+		exp(n.object);
+		text.append('.').append(n.method.s).append('(');
+		exps(n.actuals);
+		text.append(')');
+		return null;
+	}
+
+	public LlvmValue visit(IntegerLiteral n) {
+		text.append(n.value);
+		return null;
+	}
+
+	public LlvmValue visit(True n) {
+		text.append("true");
+		return null;
+	}
+
+	public LlvmValue visit(False n) {
+		text.append("false");
+		return null;
+	}
+
+	public LlvmValue visit(This n) {
+		text.append("this");
+		return null;
+	}
+
+	// The line goes into the size check
+	public LlvmValue visit(NewArray n) {
+		text.append("new int[");
+		exp(n.size);
+		text.append(" @").append(n.line).append(']');
+		return null;
+	}
+
+	public LlvmValue visit(NewObject n) {
+		text.append("new ").append(n.className.s).append("()");
+		references.add(n.className.s);
+		return null;
+	}
+
+	public LlvmValue visit(Not n) {
+		text.append('!');
+		exp(n.exp);
+		return null;
+	}
+
+	public LlvmValue visit(IdentifierExp n) {
+		text.append(n.name.s);
+		return null;
+	}
+
+	public LlvmValue visit(Identifier n) {
+		text.append(n.s);
+		return null;
+	}
+}
@@ -0,0 +1,128 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmGetElementPointer;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmMalloc;
+import llvmast.LlvmPhi;
+import llvmast.LlvmPointer;
+import llvmast.LlvmRegister;
+import llvmast.LlvmStore;
+import llvmast.LlvmStructure;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+
+/*
+ * Puts the objects that do not escape their function (EscapeAnalysis) on
+ * the stack: the LlvmMalloc becomes an alloca at the start of the entry
+ * block, and the allocation site stores zero in every field, as new does.
+ *
+ * One alloca serves every execution of the site. Inside a loop that is
+ * only right if the object of one iteration is dead when the next one is
+ * created, so an object allocated in a loop must not reach a phi.
+ */
+class StackAllocation implements FunctionPass {
+	// Larger objects stay on the heap, to keep frames small
+	private static final int MAX_SIZE = 256;
+
+	private final EscapeAnalysis escapes;
+	private int allocated;
+
+	StackAllocation(EscapeAnalysis escapes) {
+		this.escapes = escapes;
+	}
+
+	public String getName() {
+		return "stackalloc";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("stack allocations", allocated);
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		Cfg cfg = new Cfg(function);
+		List<LlvmInstruction> allocas = new ArrayList<LlvmInstruction>();
+		for (Cfg.Block b : cfg.blocks) {
+			for (int k = 0; k < b.body.size(); k++) {
+				LlvmInstruction instr = b.body.get(k);
+				if (!(instr instanceof LlvmMalloc))
+					continue;
+				LlvmMalloc malloc = (LlvmMalloc) instr;
+				if (malloc.getClassName() == null
+						|| malloc.getSize() > MAX_SIZE
+						|| !fitsStack(function, cfg, b, malloc))
+					continue;
+
+				LlvmType classType = ((LlvmPointer) malloc.lhs.type).content;
+				allocas.add(new LlvmAlloca(malloc.lhs, classType,
+						new LinkedList<LlvmValue>()));
+				List<LlvmInstruction> zero = clear(malloc.lhs,
+						(LlvmStructure) malloc.type);
+				b.body.remove(k);
+				b.body.addAll(k, zero);
+				k += zero.size() - 1;
+				allocated++;
+			}
+		}
+		if (allocated == 0)
+			return function;
+		cfg.getEntry().body.addAll(0, allocas);
+		return cfg.toInstructions();
+	}
+
+	private boolean fitsStack(List<LlvmInstruction> function, Cfg cfg,
+			Cfg.Block site, LlvmMalloc malloc) {
+		String object = malloc.lhs.toString();
+		if (escapes.escapes(function, object))
+			return false;
+		if (!inLoop(site))
+			return true;
+		Set<String> aliases = EscapeAnalysis.aliases(function, object);
+		for (LlvmInstruction instr : function)
+			if (instr instanceof LlvmPhi
+					&& aliases.contains(instr.getResult().toString()))
+				return false;
+		return true;
+	}
+
+	// Whether 'b' can be reached again after leaving it
+	private static boolean inLoop(Cfg.Block b) {
+		Set<Cfg.Block> seen = new HashSet<Cfg.Block>();
+		List<Cfg.Block> work = new ArrayList<Cfg.Block>(b.succs);
+		while (!work.isEmpty()) {
+			Cfg.Block next = work.remove(work.size() - 1);
+			if (next == b)
+				return true;
+			if (seen.add(next))
+				work.addAll(next.succs);
+		}
+		return false;
+	}
+
+	// Stores the default value in every field but the vtable pointer, which
+	// the allocation site sets right after
+	private static List<LlvmInstruction> clear(LlvmValue object,
+			LlvmStructure structure) {
+		List<LlvmInstruction> stores = new ArrayList<LlvmInstruction>();
+		for (int i = 1; i < structure.typeList.size(); i++) {
+			LlvmType type = structure.typeList.get(i);
+			List<LlvmValue> offsets = new LinkedList<LlvmValue>();
+			offsets.add(new LlvmIntegerLiteral(0));
+			offsets.add(new LlvmIntegerLiteral(i));
+			LlvmRegister field = new LlvmRegister(new LlvmPointer(type));
+			stores.add(new LlvmGetElementPointer(field, object, offsets));
+			stores.add(new LlvmStore(Mem2Reg.zero(type), field));
+		}
+		return stores;
+	}
+}
@@ -0,0 +1,180 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.DataLayout;
+import llvmast.LlvmClassType;
+import llvmast.LlvmNamedValue;
+import llvmast.LlvmPointer;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmType;
+import llvmast.LlvmValue;
+import syntaxtree.BooleanType;
+import syntaxtree.ClassDecl;
+import syntaxtree.ClassDeclExtends;
+import syntaxtree.ClassDeclSimple;
+import syntaxtree.Formal;
+import syntaxtree.IdentifierType;
+import syntaxtree.IntArrayType;
+import syntaxtree.IntegerType;
+import syntaxtree.MainClass;
+import syntaxtree.MethodDecl;
+import syntaxtree.Program;
+import syntaxtree.VarDecl;
+import syntaxtree.VisitorAdapter;
+
+/**********************************************************************************/
+/*
+ * === Tabela de Símbolos ====
+ */
+/**********************************************************************************/
+
+class SymTab extends VisitorAdapter {
+	public Map<String, ClassNode> classes;
+	public ClassHierarchy hierarchy;
+	public DataLayout layout;
+	public boolean reorderFields = true;
+	private ClassNode classEnv; // aponta para a classe em uso
+
+	public LlvmValue FillTabSymbol(Program n) {
+		n.accept(this);
+		return null;
+	}
+
+	public LlvmValue visit(Program n) {
+		n.mainClass.accept(this);
+
+		for (util.List<ClassDecl> c = n.classList; c != null; c = c.tail)
+			c.head.accept(this);
+
+		// Liga cada classe a sua superclasse
+		for (ClassNode c : classes.values())
+			if (c.superClassName != null)
+				c.superClass = classes.get(c.superClassName);
+		hierarchy = new ClassHierarchy(classes.values());
+
+		// Tamanhos e offsets reais (com alinhamento) de cada classe
+		layout = new DataLayout();
+		if (reorderFields)
+			for (ClassNode c : classes.values())
+				c.orderFields(layout);
+		// getStructure also fixes each class' field table, before codegen
+		// reads it from several threads
+		for (ClassNode c : classes.values())
+			layout.define(c.getName(), c.getStructure());
+
+		return null;
+	}
+
+	public LlvmValue visit(MainClass n) {
+		// in source order: declarations come out the same in every build
+		classes = new LinkedHashMap<String, ClassNode>();
+		classes.put(n.className.s, new ClassNode(n.className.s, null));
+		return null;
+	}
+
+	public LlvmValue visit(ClassDeclSimple n) {
+
+		// Constroi TypeList com os tipos das variáveis da Classe (vai formar a
+		// Struct da classe)
+		// Constroi VarList com as Variáveis da Classe
+		List<LlvmValue> vars = new ArrayList<LlvmValue>();
+		List<LlvmType> types = new ArrayList<LlvmType>();
+		for (util.List<VarDecl> varList = n.varList; varList != null; varList = varList.tail) {
+			LlvmValue var = varList.head.accept(this);
+			vars.add(var);
+			types.add(var.type);
+		}
+		classEnv = new ClassNode(n.name.s, vars);
+
+		classes.put(n.name.s, classEnv);
+
+		// Percorre n.methodList visitando cada método
+		// Method Declarations
+		for (util.List<MethodDecl> methodList = n.methodList; methodList != null; methodList = methodList.tail) {
+			methodList.head.accept(this);
+		}
+		return null;
+	}
+
+	public LlvmValue visit(ClassDeclExtends n) {
+		// Constroi TypeList com os tipos das variáveis da Classe (vai formar a
+		// Struct da classe)
+		// Constroi VarList com as Variáveis da Classe
+		List<LlvmValue> vars = new ArrayList<LlvmValue>();
+		List<LlvmType> types = new ArrayList<LlvmType>();
+
+		for (util.List<VarDecl> varList = n.varList; varList != null; varList = varList.tail) {
+			LlvmValue var = varList.head.accept(this);
+			vars.add(var);
+			types.add(var.type);
+		}
+		classEnv = new ClassNode(n.name.s, vars);
+
+		classEnv.superClassName = n.superClass.s;
+
+		classes.put(n.name.s, classEnv);
+
+		// Percorre n.methodList visitando cada método
+		// Method Declarations
+		for (util.List<MethodDecl> methodList = n.methodList; methodList != null; methodList = methodList.tail) {
+			methodList.head.accept(this);
+		}
+		return null;
+	}
+
+	public LlvmValue visit(VarDecl n) {
+		LlvmValue value = n.type.accept(this);
+		LlvmNamedValue v = new LlvmNamedValue("%" + n.name.s, value.type);
+		// Alloca se pertence a uma declaracao de metodo
+		return v;
+	}
+
+	public LlvmValue visit(MethodDecl n) {
+
+		LlvmType returnType = n.returnType.accept(this).type;
+		List<LlvmValue> args = new LinkedList<LlvmValue>();
+		args.add(classEnv.getClassReference());
+
+		for (util.List<Formal> formals = n.formals; formals != null; formals = formals.tail) {
+			LlvmValue formal = formals.head.accept(this);
+			args.add(formal);
+		}
+
+		List<LlvmValue> vars = new LinkedList<LlvmValue>();
+		for (util.List<VarDecl> locals = n.locals; locals != null; locals = locals.tail) {
+			LlvmValue local = locals.head.accept(this);
+			vars.add(local);
+		}
+
+		classEnv.addMethod(new MethodNode(n.name.s, args, vars, returnType));
+
+		return null;
+	}
+
+	public LlvmValue visit(Formal n) {
+		return new LlvmNamedValue("%" + n.name.s, n.type.accept(this).type);
+	}
+
+	public LlvmValue visit(IntArrayType n) {
+		return new LlvmNamedValue("int[]", ArrayLayout.TYPE);
+	}
+
+	public LlvmValue visit(BooleanType n) {
+		return new LlvmNamedValue("boolean", LlvmPrimitiveType.I1);
+	}
+
+	public LlvmValue visit(IntegerType n) {
+		return new LlvmNamedValue("int", LlvmPrimitiveType.I32);
+	}
+
+	// TODO
+	public LlvmValue visit(IdentifierType n) {
+		return new LlvmNamedValue(n.name, new LlvmPointer(new LlvmClassType(
+				n.name)));
+	}
+}
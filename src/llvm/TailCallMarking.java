@@ -0,0 +1,91 @@
+package llvm;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmCall;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmRet;
+import llvmast.LlvmValue;
+
+/*
+ * Marks 'tail' the calls whose result the function returns right away,
+ * so that llc may reuse the caller's frame for the callee (a jump instead
+ * of call and ret): mutual recursion, as in even/odd, then stops growing
+ * the stack. A call that jumps to a block holding only phis and the ret,
+ * as Codegen joins the branches of an if, gets a ret of its own first.
+ *
+ * 'tail' promises that the callee reads no alloca of the caller, so
+ * functions with allocas (objects StackAllocation put on the stack) are
+ * left alone. 'musttail' would need the caller and the callee to have the
+ * same parameter types, which two methods seldom have; both use the
+ * default calling convention, which is all 'tail' asks for.
+ */
+class TailCallMarking implements FunctionPass {
+	private int marked;
+
+	public String getName() {
+		return "tailcall";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("tail calls", marked);
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		boolean calls = false;
+		for (LlvmInstruction instr : function) {
+			if (instr instanceof LlvmAlloca)
+				return function;
+			if (instr instanceof LlvmCall && ((LlvmCall) instr).lhs != null)
+				calls = true;
+		}
+		if (!calls)
+			return function;
+
+		Cfg cfg = new Cfg(function);
+		boolean copied = false;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Cfg.Block p : cfg.blocks) {
+				LlvmValue value = cfg.returnedFrom(p);
+				if (value != null
+						&& (Cfg.onlyPhis(p) || callBefore(p, value) != null)) {
+					cfg.copyReturn(p);
+					cfg.link();
+					changed = copied = true;
+				}
+			}
+		}
+		if (copied) {
+			// a join whose every predecessor got its own ret
+			cfg.removeUnreachable();
+			cfg.prunePhis();
+		}
+		for (Cfg.Block b : cfg.blocks) {
+			LlvmInstruction term = b.getTerminator();
+			if (!(term instanceof LlvmRet) || ((LlvmRet) term).v == null)
+				continue;
+			LlvmCall call = callBefore(b, ((LlvmRet) term).v);
+			if (call != null) {
+				call.tail = true;
+				marked++;
+			}
+		}
+		return copied ? cfg.toInstructions() : function;
+	}
+
+	// The call right before the terminator of 'b' if it defines 'value'
+	private static LlvmCall callBefore(Cfg.Block b, LlvmValue value) {
+		if (b.body.size() < 2)
+			return null;
+		LlvmInstruction instr = b.body.get(b.body.size() - 2);
+		if (instr instanceof LlvmCall && ((LlvmCall) instr).lhs != null
+				&& ((LlvmCall) instr).lhs.toString().equals(value.toString()))
+			return (LlvmCall) instr;
+		return null;
+	}
+}
@@ -0,0 +1,263 @@
+package llvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import llvmast.LlvmAlloca;
+import llvmast.LlvmBranch;
+import llvmast.LlvmCall;
+import llvmast.LlvmContext;
+import llvmast.LlvmDefine;
+import llvmast.LlvmInstruction;
+import llvmast.LlvmIntegerLiteral;
+import llvmast.LlvmLabelValue;
+import llvmast.LlvmPhi;
+import llvmast.LlvmPlus;
+import llvmast.LlvmPrimitiveType;
+import llvmast.LlvmRegister;
+import llvmast.LlvmRet;
+import llvmast.LlvmTimes;
+import llvmast.LlvmValue;
+
+/*
+ * Turns the calls of a function to itself whose result is returned right
+ * away into jumps back to its start: the recursion runs as a loop, in
+ * one stack frame. The formals become phis of a new "tailrecurse" block
+ * that the entry block jumps to, and each call
+ *
+ *   %r = call i32 @f(%this, %n1)          %this, %n1 go to the phis
+ *   ret i32 %r                       ->   br label %tailrecurse
+ *
+ * A call whose result is only added to or multiplied by a value computed
+ * before it, as in "return n * this.fac(n - 1)", goes too. An
+ * accumulator %acc (0 or 1 at first) takes the values each such call
+ * would have added or multiplied, and every other ret returns %acc + v or
+ * %acc * v. Integer + and * are associative and commutative, wrapping
+ * around included, so the result is the same. All of them must use the
+ * same operator; calls with the other one stay calls.
+ *
+ * Codegen returns through a phi when the method assigns its result in an
+ * if (Factorial's num_aux), so a ret of a phi is first copied into the
+ * predecessors that end in such a call.
+ *
+ * Functions with allocas are left alone: every level would share them.
+ */
+class TailRecursionElimination implements FunctionPass {
+	private int eliminated;
+
+	// A recursive call in tail position, maybe followed by 'op'
+	private static class Site {
+		Cfg.Block block;
+		LlvmCall call;
+		LlvmInstruction op; // LlvmPlus or LlvmTimes, or null
+		LlvmValue operand; // of op, besides the call's result
+	}
+
+	public String getName() {
+		return "tailrec";
+	}
+
+	public Map<String, Integer> getStatistics() {
+		return Collections.singletonMap("tail recursive calls", eliminated);
+	}
+
+	public List<LlvmInstruction> run(List<LlvmInstruction> function) {
+		String self = null;
+		boolean recursive = false;
+		for (LlvmInstruction instr : function) {
+			if (instr instanceof LlvmDefine)
+				self = ((LlvmDefine) instr).name;
+			else if (instr instanceof LlvmAlloca)
+				return function;
+			else if (self != null && isSelfCall(instr, self))
+				recursive = true;
+		}
+		if (!recursive)
+			return function;
+		Cfg cfg = new Cfg(function);
+		LlvmDefine define = (LlvmDefine) cfg.header;
+		copyReturns(cfg, self);
+
+		List<Site> sites = new ArrayList<Site>();
+		Class<?> operator = null;
+		for (Cfg.Block b : cfg.blocks) {
+			LlvmInstruction term = b.getTerminator();
+			if (!(term instanceof LlvmRet) || ((LlvmRet) term).v == null)
+				continue;
+			Site site = match(b, ((LlvmRet) term).v, self);
+			if (site == null)
+				continue;
+			if (site.op != null) {
+				if (operator == null)
+					operator = site.op.getClass();
+				else if (operator != site.op.getClass())
+					continue;
+			}
+			sites.add(site);
+		}
+		if (sites.isEmpty())
+			return cfg.toInstructions();
+
+		// entry: br label %tailrecurse; the old entry code follows
+		Cfg.Block loop = cfg.split(0, 0, freshLabel("tailrecurse"));
+		Cfg.Block entry = cfg.getEntry();
+		entry.body.add(new LlvmBranch(loop.getLabelValue()));
+		for (Site site : sites)
+			if (site.block == entry)
+				site.block = loop;
+
+		Map<String, LlvmValue> formals = new HashMap<String, LlvmValue>();
+		List<LlvmPhi> phis = new ArrayList<LlvmPhi>();
+		for (LlvmValue arg : define.args) {
+			LlvmPhi phi = new LlvmPhi(new LlvmRegister(arg.type), arg.type);
+			phi.addIncoming(arg, entry.getLabelValue());
+			formals.put(arg.toString(), phi.lhs);
+			phis.add(phi);
+		}
+		for (Cfg.Block b : cfg.blocks)
+			for (LlvmInstruction instr : b.body)
+				instr.replaceOperands(formals);
+
+		LlvmPhi accumulator = null;
+		if (operator != null) {
+			accumulator = new LlvmPhi(new LlvmRegister(LlvmPrimitiveType.I32),
+					LlvmPrimitiveType.I32);
+			accumulator.addIncoming(new LlvmIntegerLiteral(
+					operator == LlvmTimes.class ? 1 : 0), entry.getLabelValue());
+			phis.add(accumulator);
+		}
+		loop.body.addAll(0, phis);
+
+		Set<Cfg.Block> jumps = new HashSet<Cfg.Block>();
+		for (Site site : sites) {
+			List<LlvmInstruction> body = site.block.body;
+			body.subList(body.indexOf(site.call), body.size()).clear();
+			LlvmLabelValue from = site.block.getLabelValue();
+			for (int i = 0; i < define.args.size(); i++)
+				phis.get(i).addIncoming(site.call.args.get(i), from);
+			if (accumulator != null) {
+				LlvmValue next = accumulator.lhs;
+				if (site.op != null) {
+					LlvmValue operand = formals.get(site.operand.toString());
+					next = combine(body, operator, accumulator.lhs,
+							operand != null ? operand : site.operand);
+				}
+				accumulator.addIncoming(next, from);
+			}
+			body.add(new LlvmBranch(loop.getLabelValue()));
+			jumps.add(site.block);
+			eliminated++;
+		}
+
+		// the other rets finish what the calls left in the accumulator
+		if (accumulator != null) {
+			for (Cfg.Block b : cfg.blocks) {
+				LlvmInstruction term = b.getTerminator();
+				if (jumps.contains(b) || !(term instanceof LlvmRet))
+					continue;
+				b.body.remove(b.body.size() - 1);
+				b.body.add(new LlvmRet(combine(b.body, operator,
+						accumulator.lhs, ((LlvmRet) term).v)));
+			}
+		}
+		cfg.link();
+		return cfg.toInstructions();
+	}
+
+	/*
+	 * Copies the blocks holding only phis and a ret into the predecessors
+	 * that jump to them right after a recursive call, so that the call is
+	 * followed by a ret. Nested ifs join their results in several such
+	 * blocks, one jumping to the next: those are copied first.
+	 */
+	private static void copyReturns(Cfg cfg, String self) {
+		boolean copied = false;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Cfg.Block p : cfg.blocks) {
+				LlvmValue value = cfg.returnedFrom(p);
+				if (value != null && (Cfg.onlyPhis(p)
+						|| match(p, value, self) != null)) {
+					cfg.copyReturn(p);
+					cfg.link();
+					changed = copied = true;
+				}
+			}
+		}
+		if (copied) {
+			// a join whose every predecessor got its own ret
+			cfg.removeUnreachable();
+			cfg.prunePhis();
+		}
+	}
+
+	/*
+	 * The site at the end of 'b', which returns 'result':
+	 * "%r = call @self(...)" and then "result = %r" or
+	 * "result = add/mul %r, x" (either order).
+	 */
+	private static Site match(Cfg.Block b, LlvmValue result, String self) {
+		int end = b.body.size() - 1; // the terminator
+		Site site = new Site();
+		site.block = b;
+		if (end >= 1 && isSelfCall(b.body.get(end - 1), self)) {
+			site.call = (LlvmCall) b.body.get(end - 1);
+			return sameValue(site.call.lhs, result) ? site : null;
+		}
+		if (end < 2 || !isSelfCall(b.body.get(end - 2), self))
+			return null;
+		site.call = (LlvmCall) b.body.get(end - 2);
+		site.op = b.body.get(end - 1);
+		LlvmValue op1, op2;
+		if (site.op instanceof LlvmPlus) {
+			op1 = ((LlvmPlus) site.op).op1;
+			op2 = ((LlvmPlus) site.op).op2;
+		} else if (site.op instanceof LlvmTimes) {
+			op1 = ((LlvmTimes) site.op).op1;
+			op2 = ((LlvmTimes) site.op).op2;
+		} else {
+			return null;
+		}
+		if (!sameValue(site.op.getResult(), result))
+			return null;
+		LlvmValue r = site.call.lhs;
+		if (sameValue(op1, r) && !sameValue(op2, r))
+			site.operand = op2;
+		else if (sameValue(op2, r) && !sameValue(op1, r))
+			site.operand = op1;
+		else
+			return null;
+		return site;
+	}
+
+	private static boolean isSelfCall(LlvmInstruction instr, String self) {
+		return instr instanceof LlvmCall && ((LlvmCall) instr).fnValue == null
+				&& ((LlvmCall) instr).lhs != null
+				&& ((LlvmCall) instr).fnName.equals(self);
+	}
+
+	private static boolean sameValue(LlvmValue a, LlvmValue b) {
+		return a.toString().equals(b.toString());
+	}
+
+	// Appends "r = operator a, b" to 'body' and returns r
+	private static LlvmValue combine(List<LlvmInstruction> body,
+			Class<?> operator, LlvmValue a, LlvmValue b) {
+		LlvmRegister r = new LlvmRegister(LlvmPrimitiveType.I32);
+		if (operator == LlvmTimes.class)
+			body.add(new LlvmTimes(r, LlvmPrimitiveType.I32, a, b));
+		else
+			body.add(new LlvmPlus(r, LlvmPrimitiveType.I32, a, b));
+		return r;
+	}
+
+	private static LlvmLabelValue freshLabel(String name) {
+		return new LlvmLabelValue(name + LlvmContext.current().newLabelNumber());
+	}
+}
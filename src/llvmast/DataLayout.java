@@ -0,0 +1,88 @@
+package llvmast;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sizes and alignments of LLVM types, following the rules of LLVM's
+ * DataLayout for the usual 64-bit targets (x86-64, AArch64):
+ *
+ * <pre>
+ *   i1, i8      size 1, align 1
+ *   i32         size 4, align 4
+ *   T *         size 8, align 8
+ *   [n x T]     n * size(T), align(T)
+ *   { ... }     each field at the next multiple of its alignment; the
+ *               struct is aligned as its most aligned field and its size
+ *               is rounded up to that alignment
+ * </pre>
+ *
+ * Named class types (%class.X) are resolved through the structures given
+ * to define(). Nothing is cached, so a layout that is no longer being
+ * defined can be read from several threads.
+ */
+public class DataLayout {
+	public static final int POINTER_SIZE = 8;
+
+	private final Map<String, LlvmStructure> classes = new HashMap<String, LlvmStructure>();
+
+	// Body of %class.<name>
+	public void define(String className, LlvmStructure structure) {
+		classes.put(className, structure);
+	}
+
+	// Bytes between consecutive elements of type 't' in memory
+	public int sizeOf(LlvmType t) {
+		if (t instanceof LlvmPointer)
+			return POINTER_SIZE;
+		if (t == LlvmPrimitiveType.I32)
+			return 4;
+		if (t == LlvmPrimitiveType.I1 || t == LlvmPrimitiveType.I8)
+			return 1;
+		if (t instanceof LlvmArray)
+			return ((LlvmArray) t).length * sizeOf(((LlvmArray) t).content);
+		if (t instanceof LlvmClassType)
+			return sizeOf(resolve((LlvmClassType) t));
+		if (t instanceof LlvmStructure) {
+			List<LlvmType> fields = ((LlvmStructure) t).typeList;
+			return align(endOf(fields, fields.size()), alignOf(t));
+		}
+		throw new IllegalArgumentException("sem tamanho: " + t);
+	}
+
+	public int alignOf(LlvmType t) {
+		if (t instanceof LlvmArray)
+			return alignOf(((LlvmArray) t).content);
+		if (t instanceof LlvmClassType)
+			return alignOf(resolve((LlvmClassType) t));
+		if (t instanceof LlvmStructure) {
+			int align = 1;
+			for (LlvmType field : ((LlvmStructure) t).typeList)
+				align = Math.max(align, alignOf(field));
+			return align;
+		}
+		return sizeOf(t);
+	}
+
+	// End of the first 'count' fields
+	private int endOf(List<LlvmType> fields, int count) {
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			LlvmType field = fields.get(i);
+			offset = align(offset, alignOf(field)) + sizeOf(field);
+		}
+		return offset;
+	}
+
+	private LlvmStructure resolve(LlvmClassType t) {
+		LlvmStructure s = classes.get(t.name);
+		if (s == null)
+			throw new IllegalArgumentException("classe sem layout: " + t);
+		return s;
+	}
+
+	private static int align(int offset, int align) {
+		return (offset + align - 1) / align * align;
+	}
+}
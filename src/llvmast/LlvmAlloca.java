@@ -17,4 +17,21 @@ public  class LlvmAlloca extends LlvmInstruction{
 	    nrs = nrs + ", " + v.type + " " + v;
 	return "  " + lhs + " = alloca " + type + nrs;
     }
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return new LinkedList<LlvmValue>(numbers);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	for(ListIterator<LlvmValue> it = numbers.listIterator(); it.hasNext();)
+	    it.set(subst(it.next(), subst));
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmAlloca(subst(lhs, subst), type, substAll(numbers, subst));
+    }
 }
@@ -0,0 +1,37 @@
+package llvmast;
+import java.util.*;
+
+/*
+ * A label and the instructions up to the next one. The last instruction
+ * is the terminator (br, ret or unreachable) once the block is complete.
+ */
+public class LlvmBasicBlock{
+    public LlvmLabel label;
+    public List<LlvmInstruction> body = new ArrayList<LlvmInstruction>();
+
+    public LlvmBasicBlock(LlvmLabel label){
+	this.label = label;
+    }
+
+    public String getName(){
+	return label.label.value;
+    }
+
+    public LlvmLabelValue getLabelValue(){
+	return label.label;
+    }
+
+    public LlvmInstruction getTerminator(){
+	if(body.isEmpty())
+	    return null;
+	LlvmInstruction last = body.get(body.size() - 1);
+	if(last instanceof LlvmBranch || last instanceof LlvmRet
+	   || last instanceof LlvmUnreachable)
+	    return last;
+	return null;
+    }
+
+    public String toString(){
+	return getName();
+    }
+}
@@ -15,4 +15,19 @@ public class LlvmBitcast extends LlvmInstruction{
     	return "  " + lhs + " = bitcast " + source.type + " " + source +" to " + toType;
     }
 
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return operands(source);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	source = subst(source, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmBitcast(subst(lhs, subst), subst(source, subst), toType);
+    }
 }
@@ -1,4 +1,5 @@
 package llvmast;
+import java.util.*;
 public  class LlvmBranch extends LlvmInstruction{
 	
 	public LlvmLabelValue brTrue = null; 
@@ -32,4 +33,19 @@ public  class LlvmBranch extends LlvmInstruction{
 			return "  " + "br i1 " + cond + ", label %" + brTrue + ", label %" + brFalse;
 		}
     }
-}
\ No newline at end of file
+
+    public List<LlvmValue> getOperands(){
+	return operands(cond);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	if(cond != null)
+	    cond = subst(cond, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	if(cond == null)
+	    return new LlvmBranch(label(brTrue, subst));
+	return new LlvmBranch(subst(cond, subst), label(brTrue, subst), label(brFalse, subst));
+    }
+}
@@ -7,7 +7,9 @@ public  class LlvmCall extends LlvmInstruction{
     public LlvmPointer fnType = null;
     public List<LlvmType> fnTypeList = null;
     public String fnName;
+    public LlvmValue fnValue = null; // callee held in a register (indirect call)
     public List<LlvmValue> args;
+    public boolean tail = false; // in tail position: the callee needs no stack of the caller
 
     public LlvmCall(LlvmRegister lhs, LlvmType type, LlvmPointer fnType, String fnName, List<LlvmValue> args){
 	this.lhs = lhs;
@@ -24,6 +26,14 @@ public  class LlvmCall extends LlvmInstruction{
 	this.args = args;
     }
 
+    public LlvmCall(LlvmRegister lhs, LlvmType type, LlvmValue fnValue, List<LlvmValue> args){
+	this.lhs = lhs;
+	this.type = type;
+	this.fnValue = fnValue;
+	this.fnName = fnValue.toString();
+	this.args = args;
+    }
+
     public LlvmCall(LlvmRegister lhs, LlvmType type, List<LlvmType> fnType, String fnName, List<LlvmValue> args) {
     	this.lhs = lhs;
     	this.type = type;
@@ -58,6 +68,38 @@ public  class LlvmCall extends LlvmInstruction{
 			fnTypeResult = fnType.toString();
 	}
 
-	return "  " + lhs + " = " + "call " + type + " " + fnTypeResult + " " + fnName +  "(" + arguments + ")"; 
+	if (fnValue != null)
+		fnName = fnValue.toString();
+
+	// void functions define no register
+	String result = lhs == null ? "" : lhs + " = ";
+	return "  " + result + (tail ? "tail call " : "call ") + type + " " + fnTypeResult + " " + fnName +  "(" + arguments + ")"; 
+    }
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	List<LlvmValue> ops = operands(fnValue);
+	ops.addAll(args);
+	return ops;
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	if (fnValue != null)
+	    fnValue = subst(fnValue, subst);
+	for(ListIterator<LlvmValue> it = args.listIterator(); it.hasNext();)
+	    it.set(subst(it.next(), subst));
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	LlvmRegister result = lhs == null ? null : (LlvmRegister) subst(lhs, subst);
+	LlvmCall call = new LlvmCall(result, type, fnTypeList, fnName, substAll(args, subst));
+	call.fnType = fnType;
+	if (fnValue != null)
+	    call.fnValue = subst(fnValue, subst);
+	// not 'tail': a copy may land where it is no longer one
+	return call;
     }
 }
@@ -0,0 +1,44 @@
+package llvmast;
+
+/*
+ * Naming state of one compilation (register and label numbering).
+ *
+ * Values are created all over the code generator with 'new LlvmRegister(type)',
+ * so the context in use is bound to the current thread: two compilations on
+ * different threads never share numbering. A thread that never binds one
+ * gets its own default context.
+ */
+public class LlvmContext {
+	private static final ThreadLocal<LlvmContext> current = new ThreadLocal<LlvmContext>() {
+		protected LlvmContext initialValue() {
+			return new LlvmContext();
+		}
+	};
+
+	private int registerCount;
+	private int labelCount;
+
+	public static LlvmContext current() {
+		return current.get();
+	}
+
+	// Makes 'context' the current one and returns the previous context
+	public static LlvmContext bind(LlvmContext context) {
+		LlvmContext previous = current.get();
+		current.set(context);
+		return previous;
+	}
+
+	public String newRegisterName() {
+		return "%tmp" + registerCount++;
+	}
+
+	public int newLabelNumber() {
+		return labelCount++;
+	}
+
+	public void rewind() {
+		registerCount = 0;
+		labelCount = 0;
+	}
+}
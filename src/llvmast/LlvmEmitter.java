@@ -0,0 +1,49 @@
+package llvmast;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes LLVM-IR instructions straight to an Appendable (Writer,
+ * StringBuilder, buffered NIO channel...), one line per instruction.
+ *
+ * The code generator drains its pending instructions after every function,
+ * so the module is never held as a single String.
+ */
+public class LlvmEmitter {
+	private final Appendable out;
+	private int count;
+
+	public LlvmEmitter(Appendable out) {
+		this.out = out;
+	}
+
+	public void emit(LlvmInstruction instr) throws IOException {
+		out.append(instr.toString()).append('\n');
+		count++;
+	}
+
+	public void emitAll(List<LlvmInstruction> instrs) throws IOException {
+		for (LlvmInstruction instr : instrs)
+			emit(instr);
+	}
+
+	// Text already rendered elsewhere (e.g. by another thread), holding
+	// 'instructions' lines
+	public void emitRendered(CharSequence text, int instructions)
+			throws IOException {
+		out.append(text);
+		count += instructions;
+	}
+
+	public void flush() throws IOException {
+		if (out instanceof Flushable)
+			((Flushable) out).flush();
+	}
+
+	// Number of instructions written so far
+	public int getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,99 @@
+package llvmast;
+import java.util.*;
+
+/*
+ * One function split into basic blocks:
+ *
+ *   define ... {        <- define
+ *   entry:              <- blocks.get(0)
+ *     ...
+ *   }
+ *
+ * Codegen still emits the flat instruction list; new LlvmFunction(list)
+ * and toInstructions() convert between the two.
+ */
+public class LlvmFunction{
+    public LlvmDefine define;
+    public List<LlvmBasicBlock> blocks = new ArrayList<LlvmBasicBlock>();
+
+    public LlvmFunction(List<LlvmInstruction> instructions){
+	LlvmBasicBlock current = null;
+	for(LlvmInstruction instr : instructions){
+	    if(instr instanceof LlvmDefine)
+		define = (LlvmDefine) instr;
+	    else if(instr instanceof LlvmLabel){
+		current = new LlvmBasicBlock((LlvmLabel) instr);
+		blocks.add(current);
+	    }
+	    else if(!(instr instanceof LlvmCloseDefinition))
+		current.body.add(instr);
+	}
+    }
+
+    public String getName(){
+	return define.name;
+    }
+
+    public List<LlvmInstruction> toInstructions(){
+	List<LlvmInstruction> instrs = new ArrayList<LlvmInstruction>();
+	instrs.add(define);
+	for(LlvmBasicBlock b : blocks){
+	    instrs.add(b.label);
+	    instrs.addAll(b.body);
+	}
+	instrs.add(new LlvmCloseDefinition());
+	return instrs;
+    }
+
+    // Instructions proper: no labels, no define, no closing brace
+    public int size(){
+	int size = 0;
+	for(LlvmBasicBlock b : blocks)
+	    size += b.body.size();
+	return size;
+    }
+
+    public static int sizeOf(List<LlvmInstruction> instructions){
+	int size = 0;
+	for(LlvmInstruction instr : instructions)
+	    if(!(instr instanceof LlvmLabel) && !(instr instanceof LlvmDefine)
+	       && !(instr instanceof LlvmCloseDefinition))
+		size++;
+	return size;
+    }
+
+    public void linkUses(){
+	linkUses(define, blocks);
+    }
+
+    /*
+     * Fills the use lists of every register the function defines (the
+     * formals and the instruction results). Operands naming one of them
+     * are made to point to the defining value itself, so that
+     * v.replaceAllUsesWith(w) reaches every use of v. The lists are a
+     * snapshot: call again after adding or removing instructions.
+     */
+    public static void linkUses(LlvmDefine define, List<? extends LlvmBasicBlock> blocks){
+	Map<String, LlvmValue> defs = new HashMap<String, LlvmValue>();
+	if(define != null)
+	    for(LlvmValue arg : define.args)
+		defs.put(arg.toString(), arg);
+	for(LlvmBasicBlock b : blocks)
+	    for(LlvmInstruction instr : b.body)
+		if(instr.getResult() != null)
+		    defs.put(instr.getResult().toString(), instr.getResult());
+	for(LlvmValue v : defs.values())
+	    v.uses = new ArrayList<LlvmInstruction>();
+
+	for(LlvmBasicBlock b : blocks){
+	    for(LlvmInstruction instr : b.body){
+		instr.replaceOperands(defs);
+		for(LlvmValue op : instr.getOperands()){
+		    LlvmValue def = defs.get(op.toString());
+		    if(def != null && !def.uses.contains(instr))
+			def.uses.add(instr);
+		}
+	    }
+	}
+    }
+}
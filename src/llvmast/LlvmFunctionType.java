@@ -9,5 +9,13 @@ public class LlvmFunctionType extends LlvmType{
 	this.parametersTypes = parametersTypes;
     }
 
-
-}
\ No newline at end of file
+    public String toString(){
+	String params = "";
+	for(int i = 0; i<parametersTypes.size(); i++){
+	    params = params + parametersTypes.get(i);
+	    if(i+1<parametersTypes.size())
+		params = params + ", ";
+	}
+	return resultType + " (" + params + ")";
+    }
+}
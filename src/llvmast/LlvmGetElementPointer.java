@@ -22,4 +22,23 @@ public class LlvmGetElementPointer extends LlvmInstruction{
 	return "  " + lhs + " = getelementptr " + source.type + " " + source +", " + ps;
     }
 
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	List<LlvmValue> ops = operands(source);
+	ops.addAll(offsets);
+	return ops;
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	source = subst(source, subst);
+	for(ListIterator<LlvmValue> it = offsets.listIterator(); it.hasNext();)
+	    it.set(subst(it.next(), subst));
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmGetElementPointer(subst(lhs, subst), subst(source, subst), substAll(offsets, subst));
+    }
 }
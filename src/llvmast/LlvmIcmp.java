@@ -1,10 +1,12 @@
 package llvmast;
+import java.util.*;
 public  class LlvmIcmp extends LlvmInstruction{
     
 	public LlvmRegister lhs;
 	public LlvmType type;
 	public LlvmValue op1, op2;
 	String condition;
+	public int conditionCode;
 	
 	public static final int EQ  = 1;
     public static final int NE  = 2;
@@ -23,6 +25,7 @@ public  class LlvmIcmp extends LlvmInstruction{
     	this.type = type;
     	this.op1 = op1;
     	this.op2 = op2;
+    	this.conditionCode = conditionCode;
     	
     	switch(conditionCode) {
 	        case EQ:	this.condition = "eq" ;
@@ -55,4 +58,21 @@ public  class LlvmIcmp extends LlvmInstruction{
     public String toString(){
     	return "  " + lhs + " = icmp " + condition + " " + type + " " + op1 + ", " + op2;
     }
-}
\ No newline at end of file
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return operands(op1, op2);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	op1 = subst(op1, subst);
+	op2 = subst(op2, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmIcmp((LlvmRegister) subst(lhs, subst), conditionCode, type, subst(op1, subst), subst(op2, subst));
+    }
+}
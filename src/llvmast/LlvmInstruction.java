@@ -1,3 +1,51 @@
 package llvmast;
+import java.util.*;
 public abstract class LlvmInstruction{
-}
\ No newline at end of file
+
+    // Register defined by this instruction (null if none)
+    public LlvmValue getResult(){
+	return null;
+    }
+
+    // Values read by this instruction
+    public List<LlvmValue> getOperands(){
+	return new LinkedList<LlvmValue>();
+    }
+
+    // Rewrites every operand naming a register in 'subst' (keyed by name)
+    public void replaceOperands(Map<String, LlvmValue> subst){
+    }
+
+    // Copy of this instruction with its registers (operands and result) and
+    // branch targets renamed through 'subst', keyed by name; null if this
+    // kind of instruction cannot be copied
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return null;
+    }
+
+    protected static LlvmValue subst(LlvmValue v, Map<String, LlvmValue> subst){
+	if(v instanceof LlvmRegister && subst.containsKey(v.toString()))
+	    return subst.get(v.toString());
+	return v;
+    }
+
+    protected static List<LlvmValue> substAll(List<LlvmValue> values, Map<String, LlvmValue> subst){
+	List<LlvmValue> copy = new LinkedList<LlvmValue>();
+	for(LlvmValue v : values)
+	    copy.add(subst(v, subst));
+	return copy;
+    }
+
+    protected static LlvmLabelValue label(LlvmLabelValue l, Map<String, LlvmValue> subst){
+	LlvmValue v = subst.get(l.value);
+	return v instanceof LlvmLabelValue ? (LlvmLabelValue) v : l;
+    }
+
+    protected static List<LlvmValue> operands(LlvmValue... values){
+	List<LlvmValue> ops = new LinkedList<LlvmValue>();
+	for(LlvmValue v : values)
+	    if(v != null)
+		ops.add(v);
+	return ops;
+    }
+}
@@ -1,4 +1,5 @@
 package llvmast;
+import java.util.*;
 public class LlvmLoad extends LlvmInstruction{
     public LlvmValue lhs;
     public LlvmValue address; // includes its type
@@ -11,4 +12,20 @@ public class LlvmLoad extends LlvmInstruction{
     public String toString(){
 	return "  " + lhs + " = load " + address.type + " " + address;
     }
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return operands(address);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	address = subst(address, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmLoad(subst(lhs, subst), subst(address, subst));
+    }
 }
@@ -5,16 +5,11 @@ public  class LlvmMalloc extends LlvmInstruction{
     public LlvmType type;
     public LlvmValue nElements;
     
-    // Armazena o tamanho do último objeto. 
-    // Útil para pegar o Lenght do vetor 
-    public static LlvmValue lastArraySize = null;
-
-    
     private int size; 
+    private LlvmValue count;
+    private String className;
     private LlvmRegister lhsTimes;
     private LlvmRegister lhsCall;
-    
-	String times, call, bitcast;
 
 	/**
 	 * 
@@ -25,33 +20,31 @@ public  class LlvmMalloc extends LlvmInstruction{
 	 * @param size
 	 */
 	public LlvmMalloc(LlvmValue lhs, LlvmValue size){
-		call = new String();
-		bitcast = new String();
-
-		LlvmValue lhsCall = new  LlvmRegister(LlvmPrimitiveType.I8);
-
-		// Malloc de <size> bytes
-		call = "  " + lhsCall + " = call i8* @malloc ( i32 "+ size + ")\n";  
-		bitcast = "  " + lhs + " = bitcast i8* " + lhsCall + " to i32*\n";
+		this.lhs = lhs;
+		this.count = size;
+		this.lhsCall = new  LlvmRegister(LlvmPrimitiveType.I8);
 	}
 	
 	
 	/**
-	 * Construtor para Alocar objetos de Classe: recebe o tipo (que deve ser LlvmStructure)
-	 * e o nome da Classe (objName)
+	 * Construtor para Alocar objetos de Classe: recebe o tipo (que deve ser LlvmStructure),
+	 * o nome da Classe (objName) e o tamanho do objeto, calculado pelo DataLayout
+	 * (a estrutura sozinha nao conhece o tamanho das superclasses que contem)
 	 *  
 	 * @param lhs
 	 * @param type
 	 * @param className
+	 * @param sizeByte
 	 */
-	public LlvmMalloc(LlvmValue lhs, LlvmType type, String className){
+	public LlvmMalloc(LlvmValue lhs, LlvmType type, String className, int sizeByte){
 		MallocImpl(lhs, type, new LlvmIntegerLiteral(1), className);
+		this.size = sizeByte;
 	}
 
 	
 	/**
 	 * Construtor para Alocar Vetor de Inteiros: recebe o tipo (que deve ser I32)
-	 * e o numero de elementos
+	 * e o numero de elementos; o resultado tem o tipo de lhs
 	 * 
 	 * @param lhs
 	 * @param type
@@ -71,36 +64,76 @@ public  class LlvmMalloc extends LlvmInstruction{
 		this.lhs = lhs;
 		this.type = type;
 		this.nElements = nElements;
+		this.count = nElements;
+		this.className = className;
 		this.size = 0;
-		this.lastArraySize = null;
 		
-		// calculando o tamanho do malloc (em Bytes)
-		if ( type instanceof LlvmStructure ){
-			size = ((LlvmStructure) type).sizeByte;
-		} else {
+		// calculando o tamanho do malloc (em Bytes); o de objetos vem do construtor
+		if ( !(type instanceof LlvmStructure) ){
 			this.nElements = null;
-			if ( type == LlvmPrimitiveType.I32 ){
-				size = 4;
-				this.lastArraySize = nElements;
-			} else { 
-				// Se é um bool
-				size = 1;
-			}
+			size = new DataLayout().sizeOf(type);
 		}		
 		
 		lhsTimes = new LlvmRegister(LlvmPrimitiveType.I32);
 		lhsCall = new  LlvmRegister(LlvmPrimitiveType.I8);
-
-		times = new String("  " + lhsTimes + " = mul i32 " + size + ", " + nElements + "\n");
-		call = new String("  " + lhsCall + " = call i8* @malloc ( i32 "+ lhsTimes + ")\n");
-		if (className == null)
-			bitcast = new String("  " + lhs + " = bitcast i8* " + lhsCall + " to " + type + "*");
-		else
-			bitcast = new String("  " + lhs + " = bitcast i8* " + lhsCall + " to " + className + "*");
 	}    
 	
     public String toString(){
+	// Malloc de <size> bytes
+	if (lhsTimes == null)
+		return "  " + lhsCall + " = call i8* @malloc ( i32 "+ count + ")\n"
+			+ "  " + lhs + " = bitcast i8* " + lhsCall + " to i32*\n";
+
+	// Tamanho constante (objetos): nada a multiplicar
+	String times = "";
+	LlvmValue bytes = lhsTimes;
+	if (count instanceof LlvmIntegerLiteral)
+		bytes = new LlvmIntegerLiteral(size * ((LlvmIntegerLiteral) count).value);
+	else
+		times = "  " + lhsTimes + " = mul i32 " + size + ", " + count + "\n";
+	String call = "  " + lhsCall + " = call i8* @malloc ( i32 "+ bytes + ")\n";
+	String bitcast;
+	if (className == null)
+		bitcast = "  " + lhs + " = bitcast i8* " + lhsCall + " to " + lhs.type;
+	else
+		bitcast = "  " + lhs + " = bitcast i8* " + lhsCall + " to " + className + "*";
 	return times + call  + bitcast;
     }
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    // Class allocated (%class.X), or null for byte and array allocations
+    public String getClassName(){
+	return className;
+    }
+
+    // Bytes of one element (objects: the whole object)
+    public int getSize(){
+	return size;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return operands(count);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	count = subst(count, subst);
+	if (nElements != null)
+		nElements = count;
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	// the copy gets registers of its own for the mul and the call
+	LlvmMalloc m = new LlvmMalloc(subst(lhs, subst), subst(count, subst));
+	m.type = type;
+	m.className = className;
+	m.size = size;
+	if (nElements != null)
+		m.nElements = m.count;
+	if (lhsTimes != null)
+		m.lhsTimes = new LlvmRegister(LlvmPrimitiveType.I32);
+	return m;
+    }
 }
-	
@@ -1,4 +1,5 @@
 package llvmast;
+import java.util.*;
 
 public  class LlvmMinus extends LlvmInstruction{
 	
@@ -17,4 +18,21 @@ public  class LlvmMinus extends LlvmInstruction{
     public String toString(){
     	return "  " +lhs + " = sub " + type + " " + op1 + ", " + op2;
     }
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return operands(op1, op2);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	op1 = subst(op1, subst);
+	op2 = subst(op2, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmMinus((LlvmRegister) subst(lhs, subst), type, subst(op1, subst), subst(op2, subst));
+    }
 }
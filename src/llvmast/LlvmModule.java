@@ -0,0 +1,33 @@
+package llvmast;
+import java.util.*;
+
+/*
+ * The functions of a whole program, in source order. Codegen gathers
+ * them at -O2 for the passes that read more than one function (inlining,
+ * escape analysis); below, each function is emitted on its own and never
+ * joins a module. Type and vtable declarations come from the symbol
+ * table and are not kept here.
+ */
+public class LlvmModule{
+    public List<LlvmFunction> functions = new ArrayList<LlvmFunction>();
+
+    public void add(LlvmFunction function){
+	functions.add(function);
+    }
+
+    // The function called 'name' (@main, @__m_C), or null
+    public LlvmFunction getFunction(String name){
+	for(LlvmFunction f : functions)
+	    if(f.getName().equals(name))
+		return f;
+	return null;
+    }
+
+    // Instructions in all the functions
+    public int size(){
+	int size = 0;
+	for(LlvmFunction f : functions)
+	    size += f.size();
+	return size;
+    }
+}
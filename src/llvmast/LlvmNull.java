@@ -0,0 +1,10 @@
+package llvmast;
+public class LlvmNull extends LlvmValue{
+    public LlvmNull(LlvmType type){
+	this.type = type;
+    }
+
+    public String toString(){
+	return "null";
+    }
+}
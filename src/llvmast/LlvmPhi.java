@@ -0,0 +1,58 @@
+package llvmast;
+import java.util.*;
+public class LlvmPhi extends LlvmInstruction{
+    public LlvmRegister lhs;
+    public LlvmType type;
+    public List<LlvmValue> values;
+    public List<LlvmLabelValue> labels;
+
+    public LlvmPhi(LlvmRegister lhs, LlvmType type){
+	this(lhs, type, new LinkedList<LlvmValue>(), new LinkedList<LlvmLabelValue>());
+    }
+
+    public LlvmPhi(LlvmRegister lhs, LlvmType type, List<LlvmValue> values, List<LlvmLabelValue> labels){
+	this.lhs = lhs;
+	this.type = type;
+	this.values = values;
+	this.labels = labels;
+    }
+
+    public void addIncoming(LlvmValue value, LlvmLabelValue label){
+	values.add(value);
+	labels.add(label);
+    }
+
+    /*
+     * Return syntax: <result> = phi <ty> [ <val0>, <label0>], ...
+     * @see java.lang.Object#toString()
+     */
+    public String toString(){
+	String incoming = "";
+	for(int i = 0; i<values.size(); i++){
+	    incoming = incoming + "[ " + values.get(i) + ", %" + labels.get(i) + " ]";
+	    if(i+1<values.size())
+		incoming = incoming + ", ";
+	}
+	return "  " + lhs + " = phi " + type + " " + incoming;
+    }
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return new LinkedList<LlvmValue>(values);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	for(ListIterator<LlvmValue> it = values.listIterator(); it.hasNext();)
+	    it.set(subst(it.next(), subst));
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	LlvmPhi phi = new LlvmPhi((LlvmRegister) subst(lhs, subst), type);
+	for(int i = 0; i<values.size(); i++)
+	    phi.addIncoming(subst(values.get(i), subst), label(labels.get(i), subst));
+	return phi;
+    }
+}
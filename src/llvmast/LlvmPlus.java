@@ -1,4 +1,5 @@
 package llvmast;
+import java.util.*;
 public  class LlvmPlus extends LlvmInstruction{
     public LlvmRegister lhs;
     public LlvmType type;
@@ -14,4 +15,21 @@ public  class LlvmPlus extends LlvmInstruction{
     public String toString(){
     	return "  " +lhs + " = add " + type + " " + op1 + ", " + op2;
     }
-}
\ No newline at end of file
+
+    public LlvmValue getResult(){
+	return lhs;
+    }
+
+    public List<LlvmValue> getOperands(){
+	return operands(op1, op2);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	op1 = subst(op1, subst);
+	op2 = subst(op2, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmPlus((LlvmRegister) subst(lhs, subst), type, subst(op1, subst), subst(op2, subst));
+    }
+}
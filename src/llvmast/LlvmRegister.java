@@ -3,11 +3,10 @@ package llvmast;
 
 public class LlvmRegister extends LlvmValue{
 	public String name;
-	static int numberReg = 0;
 	
 	public LlvmRegister(LlvmType type){
 		this.type = type;
-		this.name = "%tmp"+numberReg++;
+		this.name = LlvmContext.current().newRegisterName();
 
 	}
 
@@ -18,7 +17,7 @@ public class LlvmRegister extends LlvmValue{
 	}
 
 	public static void rewind(){
-		numberReg = 0;
+		LlvmContext.current().rewind();
 	}
 
 	public String toString(){
@@ -1,4 +1,5 @@
 package llvmast;
+import java.util.*;
 public class LlvmRet extends LlvmInstruction{
     public LlvmValue v;
     public LlvmRet(LlvmValue v){
@@ -9,4 +10,15 @@ public class LlvmRet extends LlvmInstruction{
 	return "  ret " + v.type + " " + v;
     }
 
-}
\ No newline at end of file
+    public List<LlvmValue> getOperands(){
+	return operands(v);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	v = subst(v, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmRet(subst(v, subst));
+    }
+}
@@ -1,4 +1,5 @@
 package llvmast;
+import java.util.*;
 public class LlvmStore extends LlvmInstruction{
     public LlvmValue content; 
     public LlvmValue address; 
@@ -11,4 +12,17 @@ public class LlvmStore extends LlvmInstruction{
     public String toString(){
 	return "  store " + content.type + " " + content + ", " + address.type + " " + address;
     }
+
+    public List<LlvmValue> getOperands(){
+	return operands(content, address);
+    }
+
+    public void replaceOperands(Map<String, LlvmValue> subst){
+	content = subst(content, subst);
+	address = subst(address, subst);
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmStore(subst(content, subst), subst(address, subst));
+    }
 }
@@ -3,26 +3,11 @@ import java.util.*;
 
 import syntaxtree.VarDecl;
 public class LlvmStructure extends LlvmType{
-    public int sizeByte;
     public List<LlvmType> typeList;
     
+    // O tamanho (com alinhamento e superclasses) e calculado por DataLayout
     public LlvmStructure(List<LlvmType> typeList){
     	this.typeList = typeList;
-    	
-    	// Fazendo a contagem do tamanho da estrutura, caso precise de Malloc
-	for (LlvmType T : typeList){
-		if ( T instanceof LlvmPointer ){ 
-			sizeByte += 8;
-		} else {
-			if ( T instanceof LlvmPrimitiveType){
-				if (T.toString().equals("i32")){
-					sizeByte += 4;
-				} else {
-					sizeByte += 1;
-				}	
-			}
-		}
-	}
     }
     
     public String toString() {
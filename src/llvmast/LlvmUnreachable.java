@@ -0,0 +1,16 @@
+package llvmast;
+import java.util.*;
+public class LlvmUnreachable extends LlvmInstruction{
+
+    /*
+     * Ends a block that control never leaves, e.g. after a call to a runtime
+     * function that does not return.
+     */
+    public String toString(){
+	return "  unreachable";
+    }
+
+    public LlvmInstruction copy(Map<String, LlvmValue> subst){
+	return new LlvmUnreachable();
+    }
+}
@@ -1,4 +1,29 @@
 package llvmast;
+import java.util.*;
 public abstract class LlvmValue{
     public LlvmType type;
-}
\ No newline at end of file
+
+    // Instructions reading this value; only kept for the registers of a
+    // function after LlvmFunction.linkUses
+    List<LlvmInstruction> uses;
+
+    public List<LlvmInstruction> getUses(){
+	if(uses == null)
+	    return Collections.emptyList();
+	return uses;
+    }
+
+    // Makes every use of this value read 'v' instead
+    public void replaceAllUsesWith(LlvmValue v){
+	if(uses == null)
+	    return;
+	Map<String, LlvmValue> subst = new HashMap<String, LlvmValue>();
+	subst.put(toString(), v);
+	for(LlvmInstruction use : uses){
+	    use.replaceOperands(subst);
+	    if(v.uses != null && !v.uses.contains(use))
+		v.uses.add(use);
+	}
+	uses.clear();
+    }
+}
@@ -0,0 +1,142 @@
+package main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import llvm.Codegen;
+import minijava.lexer.Lexer;
+import minijava.node.Start;
+import minijava.parser.Parser;
+import semant.Env;
+import semant.TypeChecker;
+import syntaxtree.Program;
+import util.conversor.SyntaxTreeGenerator;
+
+/*
+ * Compiles many MiniJava files in one JVM on a bounded thread pool.
+ *
+ * Como executar:
+ * $ java -classpath src:lib/projeto2.jar main/Batch [-j N] [-d DIR] a.java b.java ...
+ *
+ * Each input 'x.java' produces 'x.s' in DIR (default: next to the input).
+ * Parsing and code generation run concurrently; type checking is
+ * serialized because symbol.Symbol interns names in an unsynchronized
+ * check-then-put on a shared table.
+ */
+public final class Batch {
+	private static final Object typeCheckLock = new Object();
+
+	private Batch() {
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		File outDir = null;
+		List<File> inputs = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-j") && i + 1 < args.length)
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-d") && i + 1 < args.length)
+				outDir = new File(args[++i]);
+			else
+				inputs.add(new File(args[i]));
+		}
+		if (inputs.isEmpty()) {
+			System.err.println("uso: main.Batch [-j N] [-d DIR] arquivo.java...");
+			System.exit(-1);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		long start = System.nanoTime();
+		for (File input : inputs)
+			results.add(pool.submit(new Job(input, outputFor(input, outDir))));
+		pool.shutdown();
+
+		int failed = 0;
+		long bytes = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			try {
+				bytes += results.get(i).get();
+			} catch (ExecutionException e) {
+				failed++;
+				System.err.println(inputs.get(i) + ": " + e.getCause());
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int ok = inputs.size() - failed;
+		System.out.printf("%d arquivos (%d com erro) em %.3f s com %d threads: "
+				+ "%.1f arquivos/s, %.1f KB/s de IR%n", inputs.size(), failed,
+				seconds, threads, ok / seconds, bytes / 1024.0 / seconds);
+		System.exit(failed == 0 ? 0 : -1);
+	}
+
+	private static File outputFor(File input, File outDir) {
+		String name = input.getName();
+		if (name.endsWith(".java"))
+			name = name.substring(0, name.length() - ".java".length());
+		File dir = outDir != null ? outDir : input.getAbsoluteFile()
+				.getParentFile();
+		return new File(dir, name + ".s");
+	}
+
+	// Compiles one file and returns the size of the emitted IR
+	private static class Job implements Callable<Long> {
+		private final File input;
+		private final File output;
+
+		Job(File input, File output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		public Long call() throws Exception {
+			Program program;
+			Reader in = new InputStreamReader(new FileInputStream(input));
+			try {
+				Start tree = new Parser(new Lexer(new PushbackReader(in)))
+						.parse();
+				program = SyntaxTreeGenerator.convert(tree);
+			} finally {
+				in.close();
+			}
+
+			SimpleError err = new SimpleError(input.getPath());
+			Env env;
+			synchronized (typeCheckLock) {
+				env = TypeChecker.TypeCheck(err, program);
+			}
+			if (err.ErrorCount() != 0)
+				throw new Exception(err.ErrorCount() + " erros");
+
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(output), "UTF-8"), 1 << 16);
+			try {
+				// One file per thread already keeps every core busy
+				Codegen codegen = new Codegen();
+				codegen.setParallel(false);
+				codegen.translate(program, env, out);
+			} finally {
+				out.close();
+			}
+			return output.length();
+		}
+	}
+}
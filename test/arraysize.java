@@ -0,0 +1,23 @@
+// new int[n] com n negativo para com o erro de tamanho depois de imprimir
+// o tamanho do primeiro vetor; sem o teste o vetor teria tamanho -1 e
+// qualquer indice passaria pela verificacao de limites (3)
+class arraysize
+{
+    public static void main(String[] args)
+    {
+        System.out.println(new Sizes().run(3));
+    }
+}
+
+class Sizes
+{
+    public int run(int n)
+    {
+        int[] a;
+        a = new int[n];
+        System.out.println(a.length);
+        a = new int[n - 4];
+        a[5] = 7;
+        return a[5];
+    }
+}
@@ -0,0 +1,52 @@
+// Bounds checks: new int[0] passes the size check, sum() needs none of
+// them, print() reads past the end and must trap only after printing the
+// 5 elements (0 44 0 1 4 9 16). test/arraysize.java traps on the size.
+class Bounds {
+    public static void main(String[] a) {
+        System.out.println(new Walker().run(5));
+    }
+}
+
+class Walker {
+    int[] data;
+    int size;
+
+    public int run(int n) {
+        int i;
+        int s;
+        data = new int[0];
+        System.out.println(data.length);
+        data = new int[n];
+        size = n + 2;
+        i = 0;
+        while (i < data.length) {
+            data[i] = i * i;
+            i = i + 1;
+        }
+        s = this.sum();
+        System.out.println(s);
+        return this.print();
+    }
+
+    public int sum() {
+        int i;
+        int s;
+        i = 1;
+        s = 0;
+        while (i < data.length) {
+            s = s + data[i - 1] + data[i];
+            i = i + 1;
+        }
+        return s;
+    }
+
+    public int print() {
+        int j;
+        j = 0;
+        while (j < size) {
+            System.out.println(data[j]);
+            j = j + 1;
+        }
+        return j;
+    }
+}
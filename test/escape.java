@@ -0,0 +1,92 @@
+// Objetos temporarios (Counter, Pair em Sum) ficam na pilha; os que sao
+// guardados em campo, devolvidos ou levados de uma volta do laco para a
+// outra continuam no heap (140 30 1 0 12)
+class Escape {
+    public static void main(String[] a) {
+        System.out.println(new Runner().run(5));
+    }
+}
+
+class Counter {
+    int n;
+
+    public int add(int x) {
+        n = n + x;
+        return n;
+    }
+}
+
+class Pair {
+    int a;
+    int b;
+    Pair next;
+
+    public int set(int x, int y) {
+        a = x;
+        b = y;
+        return a + b;
+    }
+
+    public int sum() {
+        return a + b;
+    }
+
+    public Pair link(Pair p) {
+        next = p;
+        return this;
+    }
+
+    public Pair getNext() {
+        return next;
+    }
+}
+
+class Runner {
+    Pair kept;
+
+    public int run(int n) {
+        int i;
+        int s;
+        Counter c;
+        Pair p;
+        Pair last;
+        c = new Counter();
+        s = 0;
+        i = 0;
+        while (i < n) {
+            p = new Pair();
+            s = p.set(i, i * i);
+            s = c.add(p.sum() + p.sum());
+            i = i + 1;
+        }
+        System.out.println(c.add(s - 60) + c.add(0) - 60);
+        kept = this.make(10, 20);
+        System.out.println(kept.sum());
+        last = new Pair();
+        i = 0;
+        while (i < 3) {
+            p = new Pair();
+            s = p.set(i, 0);
+            p = p.link(last);
+            last = p;
+            i = i + 1;
+        }
+        System.out.println(last.getNext().sum());
+        System.out.println(last.getNext().getNext().sum());
+        return last.sum() + this.fresh() + 10;
+    }
+
+    public Pair make(int x, int y) {
+        Pair p;
+        int t;
+        p = new Pair();
+        t = p.set(x, y);
+        return p;
+    }
+
+    public int fresh() {
+        Counter c;
+        c = new Counter();
+        return c.add(0);
+    }
+}
@@ -0,0 +1,59 @@
+// campos herdados de varios niveis (layout achatado)
+class inheritance
+{
+    public static void main(String[] args)
+    {
+        System.out.println(new C().Run());
+    }
+}
+
+class A
+{
+    boolean fa;
+    int a;
+
+    public int SetA(int v)
+    {
+        a = v;
+        fa = true;
+        return a;
+    }
+}
+
+class B extends A
+{
+    boolean fb;
+    int b;
+    int[] arr;
+
+    public int SetB(int v)
+    {
+        b = v + a;
+        arr = new int[3];
+        arr[1] = b;
+        return b;
+    }
+}
+
+class C extends B
+{
+    int c;
+
+    public int Run()
+    {
+        int x;
+        x = this.SetA(5);
+        x = this.SetB(7);
+        c = a + b;
+        a = a + 100;
+        arr[2] = a;
+        System.out.println(a);
+        System.out.println(arr[1]);
+        System.out.println(arr[2]);
+        if (fa)
+            System.out.println(1);
+        else
+            System.out.println(0);
+        return c;
+    }
+}
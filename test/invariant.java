@@ -0,0 +1,81 @@
+// leituras de campos e tamanhos de arrays dentro de loops
+class invariant
+{
+    public static void main(String[] args)
+    {
+    	System.out.println(new Loops().run(5));
+    }
+}
+
+class Counter
+{
+	int count;
+
+	public int bump(){
+		count = count + 1;
+		return count;
+	}
+
+	public int get(){
+		return count;
+	}
+}
+
+class Loops
+{
+	int[] a;
+	int[] never;
+	int limit;
+	Counter c;
+
+	public int run(int n){
+		int i;
+		int sum;
+		int r;
+		a = new int[n];
+		limit = 3;
+		c = new Counter();
+
+		// a.length e this.limit nao mudam no loop
+		i = 0;
+		sum = 0;
+		while (i < a.length) {
+			a[i] = i * limit;
+			sum = sum + a[i];
+			i = i + 1;
+		}
+		System.out.println(sum);
+
+		// o loop nao roda: never (null) nao pode ser lido antes dele
+		i = 0;
+		while (i < 0) {
+			sum = sum + never.length;
+			i = i + 1;
+		}
+		System.out.println(sum);
+
+		// limit muda dentro do loop
+		i = 0;
+		while (i < limit) {
+			limit = limit - 1;
+			i = i + 1;
+		}
+		System.out.println(limit);
+
+		// a chamada muda c.count
+		i = 0;
+		while (c.get() < 4) {
+			r = c.bump();
+			i = i + 1;
+		}
+		System.out.println(i);
+
+		// a muda dentro do loop, e com ele a.length
+		i = 0;
+		while (i < a.length) {
+			a = new int[a.length - 1];
+			i = i + 1;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,59 @@
+// expressoes e leituras repetidas, com aliasing entre arrays e objetos
+class numbering
+{
+    public static void main(String[] args)
+    {
+    	System.out.println(new Values().run(4));
+    }
+}
+
+class Box
+{
+	int v;
+
+	public int set(int x){
+		v = x;
+		return v;
+	}
+
+	public int get(){
+		return v;
+	}
+}
+
+class Values
+{
+	int[] a;
+	Box p;
+
+	public int run(int n){
+		int[] b;
+		Box q;
+		int x;
+		int y;
+		a = new int[n];
+		b = a;
+		a[1] = 3;
+		x = a[1] + a[1];
+		b[1] = 5;
+		y = a[1] + a[1];
+		System.out.println(x);
+		System.out.println(y);
+		System.out.println((n + 1) * (1 + n));
+
+		p = new Box();
+		q = p;
+		x = p.set(7);
+		x = p.get() + q.get();
+		y = q.set(9);
+		y = p.get() + q.get();
+		System.out.println(x);
+		System.out.println(y);
+
+		if (n < 5)
+			a[0] = a[1] + 1;
+		else
+			b[0] = 2;
+		return a[0] + b[0] + b.length;
+	}
+}
@@ -0,0 +1,52 @@
+// formal e local escondendo atributos; atribuicao em array recebido como parametro
+class shadowing
+{
+    public static void main(String[] args)
+    {
+    	System.out.println(new Names().run(3));
+    }
+}
+
+class Base
+{
+	int x;
+	int[] a;
+
+	public int setBase(int v){
+		x = v;
+		a = new int[2];
+		return x;
+	}
+}
+
+class Names extends Base
+{
+	int y;
+
+	public int run(int x){
+		int y;
+		int[] a;
+		int r;
+		r = this.setBase(10);
+		y = 20;
+		a = new int[3];
+		r = this.fill(a, x);
+		System.out.println(x);
+		System.out.println(y);
+		System.out.println(a[2]);
+		System.out.println(this.fields());
+		return a[0] + a[1];
+	}
+
+	public int fill(int[] a, int v){
+		a[0] = v;
+		a[1] = v + 1;
+		a[2] = v + 2;
+		y = 7;
+		return 0;
+	}
+
+	public int fields(){
+		return x + y + a.length;
+	}
+}
@@ -0,0 +1,29 @@
+// && avalia o lado direito apenas se necessario (OK)
+class ShortCircuit {
+    public static void main(String[] a) {
+        System.out.println(new SC().Run(3));
+    }
+}
+
+class SC {
+    int hits;
+    public boolean Hit(boolean r) {
+        hits = hits + 1;
+        System.out.println(hits);
+        return r;
+    }
+    public int Run(int n) {
+        boolean b;
+        int x;
+        hits = 0;
+        x = 0;
+        if (this.Hit(false) && this.Hit(true)) x = 1; else x = 2;
+        b = this.Hit(true) && (this.Hit(false) && this.Hit(true));
+        if (!b) x = x + 10; else x = x + 20;
+        if (!(this.Hit(true) && !this.Hit(false))) x = x + 100; else x = x + 200;
+        while ((x < 1000) && this.Hit(true)) x = x * 2;
+        b = !(x < 3) && true;
+        if (b && (n < 4)) x = x + 1; else {}
+        return x;
+    }
+}
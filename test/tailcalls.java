@@ -0,0 +1,101 @@
+// recursao de cauda: direta, com acumulador (soma e produto) e mutua
+class tailcalls
+{
+    public static void main(String[] args)
+    {
+    	System.out.println(new Recursion().run(20));
+    }
+}
+
+class Recursion
+{
+	int calls;
+
+	public int run(int n){
+		int r;
+		calls = 0;
+		System.out.println(this.sum(n));
+		System.out.println(this.gcd(1071, 462));
+		System.out.println(this.power(3, 7));
+		System.out.println(this.mixed(5));
+		if (this.even(n))
+			System.out.println(1);
+		else
+			System.out.println(0);
+		r = this.count(n);
+		return calls;
+	}
+
+	// soma acumulada: o resultado da chamada e somado a n
+	public int sum(int n){
+		int r;
+		if (n < 1)
+			r = 0;
+		else
+			r = n + this.sum(n - 1);
+		return r;
+	}
+
+	// chamada em posicao de cauda, sem acumulador
+	public int gcd(int a, int b){
+		int r;
+		if (a < b)
+			r = this.gcd(a, b - a);
+		else if (b < a)
+			r = this.gcd(a - b, b);
+		else
+			r = a;
+		return r;
+	}
+
+	public int power(int b, int e){
+		int r;
+		if (e < 1)
+			r = 1;
+		else
+			r = this.power(b, e - 1) * b;
+		return r;
+	}
+
+	// soma e produto na mesma funcao: so um dos dois vira laco
+	public int mixed(int n){
+		int r;
+		if (n < 1)
+			r = 1;
+		else if (n < 3)
+			r = 2 * this.mixed(n - 1);
+		else
+			r = n + this.mixed(n - 1);
+		return r;
+	}
+
+	// recursao mutua: chamadas marcadas tail
+	public boolean even(int n){
+		boolean r;
+		if (n < 1)
+			r = true;
+		else
+			r = this.odd(n - 1);
+		return r;
+	}
+
+	public boolean odd(int n){
+		boolean r;
+		if (n < 1)
+			r = false;
+		else
+			r = this.even(n - 1);
+		return r;
+	}
+
+	// o campo muda a cada nivel
+	public int count(int n){
+		int r;
+		calls = calls + 1;
+		if (n < 1)
+			r = calls;
+		else
+			r = this.count(n - 1);
+		return r;
+	}
+}
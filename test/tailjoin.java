@@ -0,0 +1,88 @@
+// chamadas de cauda nos dois ramos do if: o bloco de juncao fica sem predecessores
+class tailjoin
+{
+    public static void main(String[] args)
+    {
+    	System.out.println(new Parity().run(7));
+    }
+}
+
+class Parity
+{
+	int steps;
+
+	public int run(int n){
+		int r;
+		steps = 0;
+		if (this.even(n))
+			System.out.println(1);
+		else
+			System.out.println(0);
+		r = this.pick(n);
+		return steps;
+	}
+
+	public boolean even(int n){
+		boolean r;
+		if (n < 1)
+			r = this.done(true);
+		else
+			r = this.odd(n - 1);
+		return r;
+	}
+
+	public boolean odd(int n){
+		boolean r;
+		if (n < 1)
+			r = this.done(false);
+		else
+			r = this.even(n - 1);
+		return r;
+	}
+
+	// grande demais para ser copiado nos chamadores
+	public boolean done(boolean b){
+		int i;
+		int j;
+		i = 0;
+		j = 0;
+		while (i < 3) {
+			j = j + i * 2;
+			steps = steps + 1;
+			i = i + 1;
+		}
+		while (0 < j) {
+			j = j - 1;
+			steps = steps + 1;
+		}
+		if (steps < 100)
+			steps = steps + 1;
+		else
+			steps = steps - 1;
+		return b;
+	}
+
+	// recursao propria nos dois ramos
+	public int pick(int n){
+		int r;
+		if (n < 1)
+			r = this.last(n);
+		else
+			r = this.pick(n - 1);
+		return r;
+	}
+
+	public int last(int n){
+		int i;
+		i = 0;
+		while (i < 4) {
+			steps = steps + n + 1;
+			i = i + 1;
+		}
+		if (steps < 1000)
+			steps = steps * 2;
+		else
+			steps = steps - 1;
+		return steps;
+	}
+}